@@ -34,7 +34,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -52,7 +52,8 @@ public class ProxyConfiguration
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final Set<ServiceConfig> services = Collections.synchronizedSet( new HashSet<>() );
+    // in proxy.yaml order, which is the order services are matched in
+    private final Set<ServiceConfig> services = Collections.synchronizedSet( new LinkedHashSet<>() );
 
     @Inject
     transient EventBus bus;
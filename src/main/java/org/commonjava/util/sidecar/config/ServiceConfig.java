@@ -19,6 +19,23 @@ public class ServiceConfig
     @JsonProperty( "path-pattern" )
     public String pathPattern;
 
+    /**
+     * Upstream client implementation, 'okhttp' (default) or 'vertx'. Not part of the identity, so changing it replaces
+     * the service instead of adding another one.
+     */
+    public String engine;
+
+    /**
+     * Overrides proxy read-timeout for this service, same format, e.g. '5m'.
+     */
+    @JsonProperty( "read-timeout" )
+    public String readTimeout;
+
+    /**
+     * Connection pool and dispatcher limits of the upstream client. Unset values keep the engine defaults.
+     */
+    public Pool pool;
+
     @Override
     public boolean equals( Object o )
     {
@@ -40,7 +57,8 @@ public class ServiceConfig
     public String toString()
     {
         return "ServiceConfig{" + "host='" + host + '\'' + ", port=" + port + ", ssl=" + ssl + ", methods='" + methods
-                        + '\'' + ", pathPattern='" + pathPattern + '\'' + '}';
+                        + '\'' + ", pathPattern='" + pathPattern + '\'' + ", engine='" + engine + '\''
+                        + ", readTimeout='" + readTimeout + '\'' + ", pool=" + pool + '}';
     }
 
     void normalize()
@@ -49,5 +67,58 @@ public class ServiceConfig
         {
             methods = methods.toUpperCase();
         }
+        if ( engine != null )
+        {
+            engine = engine.trim().toLowerCase();
+        }
+    }
+
+    @RegisterForReflection
+    public static class Pool
+    {
+        @JsonProperty( "max-requests" )
+        public int maxRequests;
+
+        @JsonProperty( "max-requests-per-host" )
+        public int maxRequestsPerHost;
+
+        @JsonProperty( "max-idle" )
+        public int maxIdle;
+
+        @JsonProperty( "keep-alive" )
+        public String keepAlive; // same format as read-timeout, e.g. '5m'
+
+        @JsonProperty( "send-buffer" )
+        public int sendBuffer; // bytes
+
+        @JsonProperty( "receive-buffer" )
+        public int receiveBuffer; // bytes
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( this == o )
+                return true;
+            if ( o == null || getClass() != o.getClass() )
+                return false;
+            Pool that = (Pool) o;
+            return maxRequests == that.maxRequests && maxRequestsPerHost == that.maxRequestsPerHost
+                            && maxIdle == that.maxIdle && sendBuffer == that.sendBuffer
+                            && receiveBuffer == that.receiveBuffer && Objects.equals( keepAlive, that.keepAlive );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash( maxRequests, maxRequestsPerHost, maxIdle, keepAlive, sendBuffer, receiveBuffer );
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Pool{" + "maxRequests=" + maxRequests + ", maxRequestsPerHost=" + maxRequestsPerHost + ", maxIdle="
+                            + maxIdle + ", keepAlive='" + keepAlive + '\'' + ", sendBuffer=" + sendBuffer
+                            + ", receiveBuffer=" + receiveBuffer + '}';
+        }
     }
 }
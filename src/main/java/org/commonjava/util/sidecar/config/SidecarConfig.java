@@ -28,4 +28,132 @@ public class SidecarConfig
 
     @ConfigProperty( name = "local-repository" )
     public Optional<String> localRepository;
+
+    /**
+     * Threads writing the entries of the build archive into the local repository at startup.
+     */
+    @ConfigProperty( name = "pre-seed.workers", defaultValue = "8" )
+    public int preSeedWorkers;
+
+    /**
+     * How the build archive is kept: 'extract' unpacks it into the local repository, 'zip' keeps the zip file and
+     * serves entries from it.
+     */
+    @ConfigProperty( name = "pre-seed.storage", defaultValue = "extract" )
+    public String preSeedStorage;
+
+    /**
+     * Keep extracted content once per sha256 and hard link repository paths to it, see BlobStore.
+     */
+    @ConfigProperty( name = "pre-seed.dedup", defaultValue = "true" )
+    public boolean preSeedDedup;
+
+    /**
+     * Fetch what the historical report lists but the local repository is missing once the sidecar is up.
+     */
+    @ConfigProperty( name = "prefetch.enabled", defaultValue = "true" )
+    public boolean prefetchEnabled;
+
+    /**
+     * Upstream fetches the prefetch runs at a time.
+     */
+    @ConfigProperty( name = "prefetch.concurrency", defaultValue = "4" )
+    public int prefetchConcurrency;
+
+    /**
+     * Journal the tracking records under the local repository, so they survive a crash. The journal is deleted once
+     * the report was imported, and on a clean shutdown.
+     */
+    @ConfigProperty( name = "tracking-journal.enabled", defaultValue = "true" )
+    public boolean trackingJournalEnabled;
+
+    /**
+     * Records the journal takes before it is compacted into a snapshot.
+     */
+    @ConfigProperty( name = "tracking-journal.compact-after", defaultValue = "10000" )
+    public long trackingJournalCompactAfter;
+
+    /**
+     * Gzip the tracking report for clients that accept it.
+     */
+    @ConfigProperty( name = "report.gzip", defaultValue = "true" )
+    public boolean reportGzip;
+
+    /**
+     * Push the tracking records to Indy during the build, so Indy has the report so far before the build ends. Indy
+     * replaces the record of a tracking id on import, so each push and the final import send the whole report; this
+     * does not make the final import shorter.
+     */
+    @ConfigProperty( name = "report.push.enabled", defaultValue = "false" )
+    public boolean reportPushEnabled;
+
+    /**
+     * Most new records added to the report in one push.
+     */
+    @ConfigProperty( name = "report.push.batch-size", defaultValue = "1000" )
+    public int reportPushBatchSize;
+
+    /**
+     * How long shutdown waits for the local repository to be deleted; the rest is deleted on the next start.
+     */
+    @ConfigProperty( name = "cleanup.deadline", defaultValue = "5s" )
+    public String cleanupDeadline;
+
+    /**
+     * Check pre-seeded content against the checksums of the historical report before serving it.
+     */
+    @ConfigProperty( name = "verify.enabled", defaultValue = "true" )
+    public boolean verifyEnabled;
+
+    /**
+     * Threads verifying pre-seeded content in the background.
+     */
+    @ConfigProperty( name = "verify.threads", defaultValue = "2" )
+    public int verifyThreads;
+
+    /**
+     * Cap on how fast the background verification reads, so it leaves the disk to requests; 0 for no cap.
+     */
+    @ConfigProperty( name = "verify.max-mb-per-sec", defaultValue = "50" )
+    public int verifyMaxMbPerSec;
+
+    /**
+     * Keep immutable proxied content (jars, poms, tarballs, checksums) on disk under the local repository.
+     */
+    @ConfigProperty( name = "proxy-cache.enabled", defaultValue = "false" )
+    public boolean proxyCacheEnabled;
+
+    @ConfigProperty( name = "proxy-cache.max-size-mb", defaultValue = "2048" )
+    public long proxyCacheMaxSizeMb;
+
+    /**
+     * 'lru' or 'lfu'.
+     */
+    @ConfigProperty( name = "proxy-cache.eviction", defaultValue = "lru" )
+    public String proxyCacheEviction;
+
+    /**
+     * Add cache hits of tracked builds to the report, with the digests recorded when the content was cached.
+     */
+    @ConfigProperty( name = "proxy-cache.track-hits", defaultValue = "true" )
+    public boolean proxyCacheTrackHits;
+
+    /**
+     * Keep maven-metadata.xml and package.json in memory and revalidate them upstream once the TTL has passed.
+     */
+    @ConfigProperty( name = "metadata-cache.enabled", defaultValue = "false" )
+    public boolean metadataCacheEnabled;
+
+    @ConfigProperty( name = "metadata-cache.ttl", defaultValue = "1m" )
+    public String metadataCacheTtl;
+
+    /**
+     * How long after the TTL an entry is still served while it is revalidated in the background. Older entries are
+     * revalidated before they are served, and only served stale if that fails.
+     */
+    @ConfigProperty( name = "metadata-cache.stale-while-revalidate", defaultValue = "5m" )
+    public String metadataCacheStaleWhileRevalidate;
+
+    @ConfigProperty( name = "metadata-cache.max-entries", defaultValue = "10000" )
+    public int metadataCacheMaxEntries;
 }
@@ -15,11 +15,14 @@
  */
 package org.commonjava.util.sidecar.exception;
 
+/**
+ * Reported to the client as 400. No stack trace is filled in, as it is raised per unmatched request.
+ */
 public class ServiceNotFoundException
                 extends Exception
 {
     public ServiceNotFoundException( String message )
     {
-        super( message );
+        super( message, null, false, false );
     }
 }
\ No newline at end of file
@@ -0,0 +1,483 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.jaxrs;
+
+import io.quarkus.vertx.web.Route;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.mutiny.core.eventbus.EventBus;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.commonjava.util.sidecar.services.ArchiveRetrieveService;
+import org.commonjava.util.sidecar.services.IntegrityVerifier;
+import org.commonjava.util.sidecar.services.ReportService;
+import org.commonjava.util.sidecar.util.ArchiveZip;
+import org.commonjava.util.sidecar.util.ByteRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.IF_RANGE;
+import static io.netty.handler.codec.http.HttpHeaderNames.RANGE;
+import static io.vertx.core.http.HttpHeaders.ACCEPT_RANGES;
+import static io.vertx.core.http.HttpHeaders.CONTENT_LENGTH;
+import static io.vertx.core.http.HttpHeaders.CONTENT_RANGE;
+import static io.vertx.core.http.HttpHeaders.CONTENT_TYPE;
+import static io.vertx.core.http.HttpHeaders.ETAG;
+import static io.vertx.core.http.HttpHeaders.IF_MODIFIED_SINCE;
+import static io.vertx.core.http.HttpHeaders.IF_NONE_MATCH;
+import static io.vertx.core.http.HttpHeaders.LAST_MODIFIED;
+import static javax.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
+import static javax.ws.rs.core.Response.Status.NOT_MODIFIED;
+import static javax.ws.rs.core.Response.Status.PARTIAL_CONTENT;
+import static javax.ws.rs.core.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.FOLO_BUILD;
+
+/**
+ * Serves folo GETs that hit the historical archive straight from the file with sendfile, so the kernel does the copy
+ * and Content-Length is known up front. Revalidation (If-None-Match / If-Modified-Since) and byte ranges are answered
+ * from the file too, using the sha256 of the historical report as ETag. Anything else falls through to
+ * {@link FoloContentAccessResource}, which proxies it.
+ * <p>
+ * When the archive is kept as a zip, stored entries are sent with sendfile from their offset in the zip, and deflated
+ * ones are inflated from the mapped zip on a worker while they are written; those don't support ranges.
+ * <p>
+ * Content is only served once {@link IntegrityVerifier} found it matches the historical report; corrupt content is
+ * proxied.
+ */
+@ApplicationScoped
+public class FoloArchiveRoute
+{
+    // Same shape as the FoloContentAccessResource paths; the only capturing group is the content path
+    static final String FOLO_CONTENT_REGEX =
+                    "/api/folo/track/[^/]+/(?:maven|npm)/(?:hosted|group|remote)/[^/]+/(.+)";
+
+    private static final int INFLATE_CHUNK = 64 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Inject
+    EventBus bus;
+
+    @Inject
+    ArchiveRetrieveService archiveService;
+
+    @Inject
+    ReportService reportService;
+
+    @Inject
+    IntegrityVerifier verifier;
+
+    @Route( regex = FOLO_CONTENT_REGEX, methods = Route.HttpMethod.GET )
+    void get( RoutingContext ctx )
+    {
+        String path = ctx.pathParam( "param0" );
+        if ( archiveService.shouldProxy( path ) )
+        {
+            ctx.next();
+            return;
+        }
+
+        Boolean verified = verifier.getState( path );
+        if ( Boolean.TRUE.equals( verified ) )
+        {
+            serve( ctx, path );
+        }
+        else if ( verified == null )
+        {
+            verifyAndServe( ctx, path );
+        }
+        else
+        {
+            ctx.next(); // corrupt, fetched from upstream instead
+        }
+    }
+
+    /**
+     * Content the background verification did not get to yet is verified before it is served, off the event loop.
+     */
+    private void verifyAndServe( RoutingContext ctx, String path )
+    {
+        IntegrityVerifier.Source source = archiveService.sourceOf( path );
+        if ( source == null )
+        {
+            ctx.next();
+            return;
+        }
+        ctx.vertx().<Boolean>executeBlocking( promise -> promise.complete( verifier.verify( path, source ) ), false,
+                                              result -> {
+                                                  if ( result.succeeded() && result.result() )
+                                                  {
+                                                      serve( ctx, path );
+                                                  }
+                                                  else
+                                                  {
+                                                      ctx.next();
+                                                  }
+                                              } );
+    }
+
+    private void serve( RoutingContext ctx, String path )
+    {
+        File file;
+        long offset = 0;
+        long length;
+        long lastModified;
+        InputStream inflating = null;
+        ArchiveZip archive = archiveService.getArchive();
+        ArchiveZip.Entry zipEntry = archive == null ? null : archive.get( path );
+        if ( zipEntry != null )
+        {
+            file = archive.getFile();
+            length = zipEntry.getSize();
+            lastModified = zipEntry.getLastModified();
+            try
+            {
+                if ( zipEntry.isStored() )
+                {
+                    offset = archive.dataOffset( zipEntry );
+                }
+                else
+                {
+                    inflating = archive.openStream( zipEntry );
+                }
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to read " + path + " from build archive " + file, e );
+                ctx.next();
+                return;
+            }
+        }
+        else
+        {
+            Optional<File> download = archiveService.getLocally( path );
+            if ( download.isEmpty() )
+            {
+                ctx.next();
+                return;
+            }
+            file = download.get();
+            length = file.length();
+            lastModified = file.lastModified();
+        }
+        String etag = etagOf( path );
+
+        HttpServerRequest request = ctx.request();
+        HttpServerResponse response = ctx.response();
+        response.putHeader( ACCEPT_RANGES, inflating == null ? "bytes" : "none" );
+        response.putHeader( LAST_MODIFIED, formatHttpDate( lastModified ) );
+        if ( etag != null )
+        {
+            response.putHeader( ETAG, etag );
+        }
+
+        if ( isNotModified( request, etag, lastModified ) )
+        {
+            logger.debug( "Not modified path: {} from historical archive.", path );
+            closeQuietly( inflating );
+            response.setStatusCode( NOT_MODIFIED.getStatusCode() ).end();
+            bus.publish( FOLO_BUILD, path );
+            return;
+        }
+
+        // deflated entries are only sent as a whole
+        List<ByteRange> ranges = null;
+        String rangeHeader = request.getHeader( RANGE );
+        if ( rangeHeader != null && inflating == null && isRangeApplicable( request.getHeader( IF_RANGE ), etag,
+                                                                             lastModified ) )
+        {
+            ranges = ByteRange.parse( rangeHeader, length );
+        }
+
+        Handler<AsyncResult<Void>> onSent = result -> {
+            if ( result.succeeded() )
+            {
+                logger.debug( "Download path: {} from historical archive.", path );
+                bus.publish( FOLO_BUILD, path );
+            }
+            else
+            {
+                logger.warn( "Failed to send archive file: " + file, result.cause() );
+            }
+        };
+
+        if ( inflating != null )
+        {
+            response.putHeader( CONTENT_TYPE, APPLICATION_OCTET_STREAM )
+                    .putHeader( CONTENT_LENGTH, String.valueOf( length ) );
+            sendInflated( ctx.vertx(), response, inflating, onSent );
+        }
+        else if ( ranges == null )
+        {
+            response.putHeader( CONTENT_TYPE, APPLICATION_OCTET_STREAM );
+            response.sendFile( file.getPath(), offset, length, onSent );
+        }
+        else if ( ranges.isEmpty() )
+        {
+            response.setStatusCode( REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode() )
+                    .putHeader( CONTENT_RANGE, "bytes */" + length )
+                    .end();
+        }
+        else if ( ranges.size() == 1 )
+        {
+            ByteRange range = ranges.get( 0 );
+            response.setStatusCode( PARTIAL_CONTENT.getStatusCode() )
+                    .putHeader( CONTENT_TYPE, APPLICATION_OCTET_STREAM )
+                    .putHeader( CONTENT_RANGE, range.toContentRange( length ) );
+            response.sendFile( file.getPath(), offset + range.getStart(), range.length(), onSent );
+        }
+        else
+        {
+            sendMultipartRanges( ctx.vertx(), response, file, offset, ranges, length, onSent );
+        }
+    }
+
+    /**
+     * Inflate on a worker a chunk at a time, so page faults on the mapped zip don't block the event loop, and write the
+     * chunks as fast as the connection takes them. The blocking steps are ordered, so closing the stream waits for a
+     * read in progress.
+     */
+    private void sendInflated( Vertx vertx, HttpServerResponse response, InputStream in,
+                               Handler<AsyncResult<Void>> done )
+    {
+        response.closeHandler( v -> vertx.executeBlocking( promise -> {
+            closeQuietly( in );
+            promise.complete();
+        }, true, null ) );
+        inflateNext( vertx, response, in, done );
+    }
+
+    private void inflateNext( Vertx vertx, HttpServerResponse response, InputStream in,
+                              Handler<AsyncResult<Void>> done )
+    {
+        vertx.<Buffer>executeBlocking( promise -> {
+            byte[] buf = new byte[INFLATE_CHUNK];
+            try
+            {
+                int n = IOUtils.read( in, buf );
+                promise.complete( n == 0 ? null : Buffer.buffer( n ).appendBytes( buf, 0, n ) );
+            }
+            catch ( IOException e )
+            {
+                promise.fail( e );
+            }
+        }, true, result -> {
+            if ( result.failed() || response.closed() )
+            {
+                closeQuietly( in );
+                response.close();
+                done.handle( Future.failedFuture(
+                                result.failed() ? result.cause() : new IOException( "Connection closed" ) ) );
+                return;
+            }
+            Buffer chunk = result.result();
+            if ( chunk == null )
+            {
+                closeQuietly( in );
+                response.end( done );
+                return;
+            }
+            response.write( chunk );
+            if ( response.writeQueueFull() )
+            {
+                response.drainHandler( v -> inflateNext( vertx, response, in, done ) );
+            }
+            else
+            {
+                inflateNext( vertx, response, in, done );
+            }
+        } );
+    }
+
+    private String etagOf( String path )
+    {
+        HistoricalEntryDTO entry = reportService.getHistoricalEntry( path );
+        if ( entry == null || entry.getSha256() == null || entry.getSha256().isEmpty() )
+        {
+            return null;
+        }
+        return "\"" + entry.getSha256() + "\"";
+    }
+
+    /**
+     * If-None-Match wins over If-Modified-Since when both are sent, and uses the weak comparison (RFC 7232).
+     */
+    private boolean isNotModified( HttpServerRequest request, String etag, long lastModified )
+    {
+        String ifNoneMatch = request.getHeader( IF_NONE_MATCH );
+        if ( ifNoneMatch != null )
+        {
+            if ( etag == null )
+            {
+                return false;
+            }
+            for ( String candidate : ifNoneMatch.split( "," ) )
+            {
+                String tag = candidate.trim();
+                if ( "*".equals( tag ) || stripWeak( tag ).equals( etag ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Long ifModifiedSince = parseHttpDate( request.getHeader( IF_MODIFIED_SINCE ) );
+        return ifModifiedSince != null && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * A Range only applies if If-Range is absent or still matches the file, otherwise the full content is sent.
+     * Entity tags use the strong comparison here.
+     */
+    private boolean isRangeApplicable( String ifRange, String etag, long lastModified )
+    {
+        if ( ifRange == null )
+        {
+            return true;
+        }
+
+        String value = ifRange.trim();
+        if ( value.startsWith( "\"" ) || value.startsWith( "W/" ) )
+        {
+            return value.equals( etag );
+        }
+
+        Long date = parseHttpDate( value );
+        return date != null && date / 1000 == lastModified / 1000;
+    }
+
+    private void sendMultipartRanges( Vertx vertx, HttpServerResponse response, File file, long offset,
+                                      List<ByteRange> ranges, long length, Handler<AsyncResult<Void>> onSent )
+    {
+        String boundary = UUID.randomUUID().toString().replace( "-", "" );
+        List<Buffer> partHeaders = new ArrayList<>( ranges.size() );
+        long contentLength = 0;
+        for ( ByteRange range : ranges )
+        {
+            Buffer header = Buffer.buffer( "\r\n--" + boundary + "\r\n" + CONTENT_TYPE + ": " + APPLICATION_OCTET_STREAM
+                                                           + "\r\n" + CONTENT_RANGE + ": " + range.toContentRange(
+                            length ) + "\r\n\r\n" );
+            partHeaders.add( header );
+            contentLength += header.length() + range.length();
+        }
+        Buffer trailer = Buffer.buffer( "\r\n--" + boundary + "--\r\n" );
+        contentLength += trailer.length();
+
+        response.setStatusCode( PARTIAL_CONTENT.getStatusCode() )
+                .putHeader( CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary )
+                .putHeader( CONTENT_LENGTH, String.valueOf( contentLength ) );
+
+        sendPart( vertx, response, file, offset, ranges, partHeaders, trailer, 0, result -> {
+            if ( result.failed() )
+            {
+                response.close();
+            }
+            onSent.handle( result );
+        } );
+    }
+
+    /**
+     * Parts go out one after the other, each piped from its own file handle so the response back-pressure applies.
+     */
+    private void sendPart( Vertx vertx, HttpServerResponse response, File file, long offset, List<ByteRange> ranges,
+                           List<Buffer> partHeaders, Buffer trailer, int idx, Handler<AsyncResult<Void>> done )
+    {
+        if ( idx == ranges.size() )
+        {
+            response.end( trailer, done );
+            return;
+        }
+
+        ByteRange range = ranges.get( idx );
+        response.write( partHeaders.get( idx ) );
+        vertx.fileSystem().open( file.getPath(), new OpenOptions().setRead( true ).setWrite( false ), opened -> {
+            if ( opened.failed() )
+            {
+                done.handle( Future.failedFuture( opened.cause() ) );
+                return;
+            }
+
+            AsyncFile asyncFile = opened.result();
+            asyncFile.setReadPos( offset + range.getStart() ).setReadLength( range.length() );
+            asyncFile.pipe().endOnComplete( false ).to( response, piped -> {
+                asyncFile.close();
+                if ( piped.failed() )
+                {
+                    done.handle( piped );
+                    return;
+                }
+                sendPart( vertx, response, file, offset, ranges, partHeaders, trailer, idx + 1, done );
+            } );
+        } );
+    }
+
+    private static void closeQuietly( InputStream in )
+    {
+        if ( in != null )
+        {
+            IOUtils.closeQuietly( in, null );
+        }
+    }
+
+    private static String stripWeak( String tag )
+    {
+        return tag.startsWith( "W/" ) ? tag.substring( 2 ) : tag;
+    }
+
+    static String formatHttpDate( long millis )
+    {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format( Instant.ofEpochMilli( millis ).atZone( ZoneOffset.UTC ) );
+    }
+
+    static Long parseHttpDate( String value )
+    {
+        if ( value == null )
+        {
+            return null;
+        }
+        try
+        {
+            return Instant.from( DateTimeFormatter.RFC_1123_DATE_TIME.parse( value.trim() ) ).toEpochMilli();
+        }
+        catch ( DateTimeParseException e )
+        {
+            return null;
+        }
+    }
+}
@@ -17,11 +17,7 @@ package org.commonjava.util.sidecar.jaxrs;
 
 import io.smallrye.mutiny.Uni;
 import io.vertx.core.http.HttpServerRequest;
-import io.vertx.mutiny.core.eventbus.EventBus;
-import org.apache.commons.io.FileUtils;
-import org.commonjava.util.sidecar.services.ArchiveRetrieveService;
 import org.commonjava.util.sidecar.services.ProxyService;
-import org.commonjava.util.sidecar.util.TransferStreamingOutput;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.media.Schema;
 import org.eclipse.microprofile.openapi.annotations.parameters.Parameter;
@@ -39,12 +35,9 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
-import java.io.File;
 import java.io.InputStream;
-import java.util.Optional;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
-import static org.commonjava.util.sidecar.services.PreSeedConstants.FOLO_BUILD;
 import static org.eclipse.microprofile.openapi.annotations.enums.ParameterIn.PATH;
 
 @Path( "/api/folo/track/{id}/{packageType: (maven|npm)}/{type: (hosted|group|remote)}/{name}" )
@@ -52,15 +45,9 @@ public class FoloContentAccessResource
 {
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    @Inject
-    EventBus bus;
-
     @Inject
     ProxyService proxyService;
 
-    @Inject
-    ArchiveRetrieveService archiveService;
-
     @Operation( description = "Retrieve Maven/NPM artifact content from historical archive or proxy" )
     @APIResponse( responseCode = "200", description = "Content stream" )
     @APIResponse( responseCode = "404", description = "Content is not available" )
@@ -76,25 +63,9 @@ public class FoloContentAccessResource
                               @PathParam( "path" ) String path, final @Context HttpServerRequest request )
                     throws Exception
     {
-        if ( archiveService.shouldProxy( path ) )
-        {
-            logger.debug( "Get proxy resource for folo request: {}", path );
-            return proxyService.doGet( packageType, type, name, path, request );
-        }
-
-        Optional<File> download = archiveService.getLocally( path );
-        if ( download.isPresent() && download.get().isFile() )
-        {
-            InputStream inputStream = FileUtils.openInputStream( download.get() );
-            final Response.ResponseBuilder builder = Response.ok( new TransferStreamingOutput( inputStream ) );
-            logger.debug( "Download path: {} from historical archive.", path );
-            bus.publish( FOLO_BUILD, path );
-            return Uni.createFrom().item( builder.build() );
-        }
-        else
-        {
-            return proxyService.doGet( packageType, type, name, path, request );
-        }
+        // Archive hits are answered by FoloArchiveRoute before the request gets here
+        logger.debug( "Get proxy resource for folo request: {}", path );
+        return proxyService.doGet( packageType, type, name, path, request );
     }
 
     @Operation( description = "Store artifact content under the given artifact store (type/name) and path." )
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.jaxrs;
+
+import org.commonjava.util.sidecar.services.Classifier;
+import org.commonjava.util.sidecar.services.SidecarMetrics;
+import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import java.util.Map;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+
+@Path( "/api/admin/sidecar/metrics" )
+public class MetricsResource
+{
+    @Inject
+    SidecarMetrics metrics;
+
+    @Inject
+    Classifier classifier;
+
+    @Operation( description = "Retrieve sidecar counters and gauges" )
+    @APIResponse( responseCode = "200", description = "Metric values by name" )
+    @Produces( APPLICATION_JSON )
+    @GET
+    public Map<String, Long> get()
+    {
+        return metrics.snapshot();
+    }
+
+    @Operation( description = "Retrieve connection pool state of the upstream clients" )
+    @APIResponse( responseCode = "200", description = "Pool state by service" )
+    @Path( "/pools" )
+    @Produces( APPLICATION_JSON )
+    @GET
+    public Map<String, Map<String, Long>> getPools()
+    {
+        return classifier.getPoolStates();
+    }
+}
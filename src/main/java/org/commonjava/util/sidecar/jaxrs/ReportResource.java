@@ -2,8 +2,10 @@ package org.commonjava.util.sidecar.jaxrs;
 
 import io.smallrye.mutiny.Uni;
 import io.vertx.core.http.HttpServerRequest;
+import org.commonjava.util.sidecar.config.SidecarConfig;
 import org.commonjava.util.sidecar.model.TrackedContent;
 import org.commonjava.util.sidecar.services.ReportService;
+import org.commonjava.util.sidecar.util.TrackingReportCodec;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
 import org.slf4j.Logger;
@@ -12,12 +14,18 @@ import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.util.zip.GZIPOutputStream;
 
+import static javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_ENCODING;
+import static javax.ws.rs.core.HttpHeaders.VARY;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 import static javax.ws.rs.core.MediaType.TEXT_PLAIN;
 
@@ -25,19 +33,108 @@ import static javax.ws.rs.core.MediaType.TEXT_PLAIN;
 @Path( "/api/folo/track/{id}/record" )
 public class ReportResource
 {
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    // the other forms rank below JSON, so clients that accept anything keep getting JSON
+    private static final String LOWER_QUALITY = ";qs=0.5";
+
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
     @Inject
     ReportService reportService;
 
+    @Inject
+    SidecarConfig sidecarConfig;
+
     @Operation( description = "Retrieve tracking report content from memory" )
     @APIResponse( responseCode = "200", description = "Tracking report content" )
     @APIResponse( responseCode = "500", description = "Tracking report generation failed" )
     @Produces( APPLICATION_JSON )
     @GET
-    public TrackedContent get()
+    public Response get( final @HeaderParam( ACCEPT_ENCODING ) String acceptEncoding )
+    {
+        return stream( out -> reportService.writeReport( out, false ), acceptEncoding );
+    }
+
+    @Operation( description = "Retrieve tracking report content from memory, one entry per line" )
+    @APIResponse( responseCode = "200", description = "Tracking report entries" )
+    @APIResponse( responseCode = "500", description = "Tracking report generation failed" )
+    @Produces( APPLICATION_NDJSON + LOWER_QUALITY )
+    @GET
+    public Response getLines( final @HeaderParam( ACCEPT_ENCODING ) String acceptEncoding )
+    {
+        return stream( out -> reportService.writeReport( out, true ), acceptEncoding );
+    }
+
+    @Operation( description = "Retrieve tracking report content from memory in the compact binary form" )
+    @APIResponse( responseCode = "200", description = "Tracking report content" )
+    @APIResponse( responseCode = "500", description = "Tracking report generation failed" )
+    @Produces( TrackingReportCodec.MEDIA_TYPE + LOWER_QUALITY )
+    @GET
+    public Response getBinary( final @HeaderParam( ACCEPT_ENCODING ) String acceptEncoding )
+    {
+        return stream( out -> TrackingReportCodec.write( reportService.getTrackedContent().snapshot(), out ),
+                       acceptEncoding );
+    }
+
+    /**
+     * The report is written while it is sent, so a large one is never held in memory as a whole.
+     */
+    private Response stream( StreamingOutput report, String acceptEncoding )
+    {
+        boolean gzip = sidecarConfig.reportGzip && acceptsGzip( acceptEncoding );
+        StreamingOutput body = out -> {
+            if ( !gzip )
+            {
+                report.write( out );
+                return;
+            }
+            GZIPOutputStream gzipOut = new GZIPOutputStream( out, 65536 );
+            report.write( gzipOut );
+            gzipOut.finish();
+        };
+        Response.ResponseBuilder builder = Response.ok( body ).header( VARY, ACCEPT_ENCODING );
+        if ( gzip )
+        {
+            builder.header( CONTENT_ENCODING, "gzip" );
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return whether gzip is listed, and not with a quality of 0
+     */
+    static boolean acceptsGzip( String acceptEncoding )
     {
-        return reportService.getTrackedContent(); //this will automatically serialized by jackson
+        if ( acceptEncoding == null )
+        {
+            return false;
+        }
+        for ( String coding : acceptEncoding.split( "," ) )
+        {
+            String[] params = coding.split( ";" );
+            if ( !params[0].trim().equalsIgnoreCase( "gzip" ) )
+            {
+                continue;
+            }
+            for ( int i = 1; i < params.length; i++ )
+            {
+                String param = params[i].trim();
+                if ( param.startsWith( "q=" ) )
+                {
+                    try
+                    {
+                        return Double.parseDouble( param.substring( 2 ) ) > 0;
+                    }
+                    catch ( NumberFormatException e )
+                    {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
     }
 
     @Operation( description = "Import tracking report content to configured indy" )
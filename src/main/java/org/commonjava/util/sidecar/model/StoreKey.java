@@ -94,14 +94,12 @@ public final class StoreKey
 
     public static StoreKey dedupe( StoreKey key )
     {
-        StoreKey result = deduplications.get( key );
-        if ( result == null )
+        if ( key == null )
         {
-            deduplications.put( key, key );
-            result = key;
+            return null;
         }
-
-        return result;
+        StoreKey result = deduplications.putIfAbsent( key, key );
+        return result == null ? key : result;
     }
 
     public String getPackageType()
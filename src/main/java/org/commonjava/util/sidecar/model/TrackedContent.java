@@ -4,20 +4,30 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static org.commonjava.util.sidecar.util.SidecarUtils.getBuildConfigId;
 
+/**
+ * Uploads and downloads of a build. Appended to concurrently by request and event bus threads, so the entries are kept
+ * in concurrent maps, deduplicated by {@link TrackedContentEntry#equals(Object)}. An entry in a map is never changed:
+ * appending an equal one replaces it with the new entry, carrying the timestamps of both. So the getters, which copy,
+ * always see complete entries.
+ */
 public class TrackedContent
                 implements Externalizable
 {
 
     private TrackingKey key;
 
-    private Set<TrackedContentEntry> uploads = new HashSet<>();
+    private final ConcurrentMap<TrackedContentEntry, TrackedContentEntry> uploads = new ConcurrentHashMap<>();
 
-    private Set<TrackedContentEntry> downloads = new HashSet<>();
+    private final ConcurrentMap<TrackedContentEntry, TrackedContentEntry> downloads = new ConcurrentHashMap<>();
 
     public TrackedContent()
     {
@@ -28,8 +38,8 @@ public class TrackedContent
                            final Set<TrackedContentEntry> downloads )
     {
         this.key = key;
-        this.uploads = uploads;
-        this.downloads = downloads;
+        appendAll( this.uploads, uploads );
+        appendAll( this.downloads, downloads );
     }
 
     public TrackingKey getKey()
@@ -37,24 +47,108 @@ public class TrackedContent
         return key;
     }
 
+    /**
+     * @return a copy of the uploads at the time of the call
+     */
     public Set<TrackedContentEntry> getUploads()
     {
-        return uploads;
+        return copyOf( uploads );
     }
 
+    /**
+     * The entry must not be changed after it was appended.
+     */
     public void appendUpload( TrackedContentEntry upload )
     {
-        this.uploads.add( upload );
+        append( uploads, upload );
     }
 
+    /**
+     * @return a copy of the downloads at the time of the call
+     */
     public Set<TrackedContentEntry> getDownloads()
     {
-        return downloads;
+        return copyOf( downloads );
     }
 
+    /**
+     * The entry must not be changed after it was appended.
+     */
     public void appendDownload( TrackedContentEntry download )
     {
-        this.downloads.add( download );
+        append( downloads, download );
+    }
+
+    /**
+     * @return the uploads as they are, e.g. to write them out without a copy. Each entry seen is complete, but appends
+     * during the iteration may or may not be seen.
+     */
+    public Collection<TrackedContentEntry> uploads()
+    {
+        return Collections.unmodifiableCollection( uploads.values() );
+    }
+
+    /**
+     * @return the downloads as they are, see {@link #uploads()}
+     */
+    public Collection<TrackedContentEntry> downloads()
+    {
+        return Collections.unmodifiableCollection( downloads.values() );
+    }
+
+    /**
+     * @return a copy to report, which is not changed by later appends. Only the references to the entries are copied,
+     * as entries are never changed once appended.
+     */
+    public TrackedContent snapshot()
+    {
+        TrackedContent snapshot = new TrackedContent( key, null, null );
+        snapshot.uploads.putAll( uploads );
+        snapshot.downloads.putAll( downloads );
+        return snapshot;
+    }
+
+    private static void append( ConcurrentMap<TrackedContentEntry, TrackedContentEntry> entries,
+                                TrackedContentEntry entry )
+    {
+        entries.merge( entry, entry, TrackedContent::merge );
+    }
+
+    private static void appendAll( ConcurrentMap<TrackedContentEntry, TrackedContentEntry> entries,
+                                   Collection<TrackedContentEntry> toAppend )
+    {
+        if ( toAppend != null )
+        {
+            toAppend.forEach( e -> append( entries, e ) );
+        }
+    }
+
+    /**
+     * Like {@link TrackedContentEntry#merge(TrackedContentEntry)}, but into the new entry, which is not shared yet.
+     */
+    private static TrackedContentEntry merge( TrackedContentEntry current, TrackedContentEntry added )
+    {
+        if ( current == added )
+        {
+            return current;
+        }
+        Set<Long> timestamps = new HashSet<>();
+        if ( current.getTimestamps() != null )
+        {
+            timestamps.addAll( current.getTimestamps() );
+        }
+        if ( added.getTimestamps() != null )
+        {
+            timestamps.addAll( added.getTimestamps() );
+        }
+        added.setTimestamps( timestamps );
+        added.setIndex( Math.min( current.getIndex(), added.getIndex() ) );
+        return added;
+    }
+
+    private static Set<TrackedContentEntry> copyOf( ConcurrentMap<TrackedContentEntry, TrackedContentEntry> entries )
+    {
+        return Collections.unmodifiableSet( new HashSet<>( entries.values() ) );
     }
 
     @Override
@@ -85,18 +179,18 @@ public class TrackedContent
     public void writeExternal( ObjectOutput objectOutput ) throws IOException
     {
         objectOutput.writeObject( key );
-        objectOutput.writeObject( uploads );
-        objectOutput.writeObject( downloads );
+        objectOutput.writeObject( new HashSet<>( uploads.values() ) );
+        objectOutput.writeObject( new HashSet<>( downloads.values() ) );
     }
 
     @Override
     public void readExternal( ObjectInput objectInput ) throws IOException, ClassNotFoundException
     {
         key = (TrackingKey) objectInput.readObject();
-        Set<TrackedContentEntry> ups = (Set<TrackedContentEntry>) objectInput.readObject();
-        uploads = ups == null ? new HashSet<>() : new HashSet<>( ups );
+        uploads.clear();
+        appendAll( uploads, (Set<TrackedContentEntry>) objectInput.readObject() );
 
-        Set<TrackedContentEntry> downs = (Set<TrackedContentEntry>) objectInput.readObject();
-        downloads = downs == null ? new HashSet<>() : new HashSet<>( downs );
+        downloads.clear();
+        appendAll( downloads, (Set<TrackedContentEntry>) objectInput.readObject() );
     }
 }
\ No newline at end of file
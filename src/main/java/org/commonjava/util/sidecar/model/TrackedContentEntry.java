@@ -1,16 +1,26 @@
 package org.commonjava.util.sidecar.model;
 
+import org.commonjava.util.sidecar.util.WeakInterner;
+
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import static org.commonjava.util.sidecar.model.pkg.PackageTypeConstants.PKG_TYPE_GENERIC_HTTP;
 import static org.commonjava.util.sidecar.model.pkg.PackageTypeConstants.PKG_TYPE_MAVEN;
 
+/**
+ * One tracked path of a build. Builds track up to millions of them, so they are kept compact: tracking and store keys
+ * are shared between entries, hex digests are held as bytes, the origin URL without the path it usually ends with,
+ * and timestamps as a sorted array. The getters and setters convert from and to the usual form.
+ */
 public class TrackedContentEntry
                 implements Comparable<TrackedContentEntry>, Externalizable
 {
@@ -18,6 +28,12 @@ public class TrackedContentEntry
 
     private static final int VERSION = 3;
 
+    private static final long NO_SIZE = Long.MIN_VALUE;
+
+    private static final byte[] EMPTY_DIGEST = new byte[0];
+
+    private static final WeakInterner<String> originPrefixes = new WeakInterner<>();
+
     private TrackingKey trackingKey;
 
     private StoreKey storeKey;
@@ -26,21 +42,25 @@ public class TrackedContentEntry
 
     private String path;
 
-    private String originUrl;
+    private String originUrl; // just the prefix if originIsPrefix, then the path follows
+
+    private boolean originIsPrefix;
 
     private StoreEffect effect;
 
-    private String md5;
+    private Object md5; // byte[] for a lower case hex digest, String otherwise, see pack(String)
 
-    private String sha256;
+    private Object sha256;
 
-    private String sha1;
+    private Object sha1;
 
-    private Long size;
+    private long size = NO_SIZE;
 
     private long index = System.currentTimeMillis();
 
-    private Set<Long> timestamps;
+    private long[] timestamps; // sorted, no duplicates
+
+    private int hash;
 
     public TrackedContentEntry()
     {
@@ -51,57 +71,66 @@ public class TrackedContentEntry
                                 final StoreEffect effect, final Long size, final String md5, final String sha1,
                                 final String sha256 )
     {
-        this.trackingKey = trackingKey;
-        this.storeKey = storeKey;
+        this.trackingKey = TrackingKey.dedupe( trackingKey );
+        this.storeKey = StoreKey.dedupe( storeKey );
         this.accessChannel = accessChannel;
         this.path = path;
-        this.originUrl = originUrl;
+        setOriginUrl( originUrl );
         this.effect = effect;
-        this.md5 = md5;
-        this.sha1 = sha1;
-        this.sha256 = sha256;
-        this.size = size;
-        this.timestamps = new HashSet<>( Collections.singleton( System.currentTimeMillis() ) );
+        this.md5 = pack( md5 );
+        this.sha1 = pack( sha1 );
+        this.sha256 = pack( sha256 );
+        setSize( size );
+        this.timestamps = new long[] { System.currentTimeMillis() };
     }
 
     public String getOriginUrl()
     {
-        return originUrl;
+        return originIsPrefix ? originUrl + path : originUrl;
     }
 
     public void setOriginUrl( String originUrl )
     {
-        this.originUrl = originUrl;
+        originIsPrefix = originUrl != null && path != null && !path.isEmpty() && originUrl.endsWith( path );
+        if ( originIsPrefix )
+        {
+            String prefix = originUrl.substring( 0, originUrl.length() - path.length() );
+            this.originUrl = originPrefixes.intern( prefix );
+        }
+        else
+        {
+            this.originUrl = originUrl;
+        }
     }
 
     public String getMd5()
     {
-        return md5;
+        return unpack( md5 );
     }
 
     public void setMd5( String md5 )
     {
-        this.md5 = md5;
+        this.md5 = pack( md5 );
     }
 
     public String getSha256()
     {
-        return sha256;
+        return unpack( sha256 );
     }
 
     public void setSha256( String sha256 )
     {
-        this.sha256 = sha256;
+        this.sha256 = pack( sha256 );
     }
 
     public String getSha1()
     {
-        return sha1;
+        return unpack( sha1 );
     }
 
     public void setSha1( String sha1 )
     {
-        this.sha1 = sha1;
+        this.sha1 = pack( sha1 );
     }
 
     public StoreKey getStoreKey()
@@ -111,7 +140,8 @@ public class TrackedContentEntry
 
     public void setStoreKey( StoreKey storeKey )
     {
-        this.storeKey = storeKey;
+        this.storeKey = StoreKey.dedupe( storeKey );
+        this.hash = 0;
     }
 
     public AccessChannel getAccessChannel()
@@ -122,6 +152,7 @@ public class TrackedContentEntry
     public void setAccessChannel( AccessChannel accessChannel )
     {
         this.accessChannel = accessChannel;
+        this.hash = 0;
     }
 
     public String getPath()
@@ -131,7 +162,10 @@ public class TrackedContentEntry
 
     public void setPath( String path )
     {
+        String origin = getOriginUrl();
         this.path = path;
+        this.hash = 0;
+        setOriginUrl( origin ); // it may or may not end with the new path
     }
 
     public TrackingKey getTrackingKey()
@@ -141,7 +175,8 @@ public class TrackedContentEntry
 
     public void setTrackingKey( TrackingKey trackingKey )
     {
-        this.trackingKey = trackingKey;
+        this.trackingKey = TrackingKey.dedupe( trackingKey );
+        this.hash = 0;
     }
 
     public StoreEffect getEffect()
@@ -152,16 +187,17 @@ public class TrackedContentEntry
     public void setEffect( StoreEffect effect )
     {
         this.effect = effect;
+        this.hash = 0;
     }
 
     public Long getSize()
     {
-        return size;
+        return size == NO_SIZE ? null : size;
     }
 
     public void setSize( Long size )
     {
-        this.size = size;
+        this.size = size == null ? NO_SIZE : size;
     }
 
     public long getIndex()
@@ -201,6 +237,10 @@ public class TrackedContentEntry
     @Override
     public int hashCode()
     {
+        if ( hash != 0 )
+        {
+            return hash;
+        }
         final int prime = 31;
         int result = 1;
         result = prime * result + ( ( trackingKey == null ) ? 0 : trackingKey.hashCode() );
@@ -208,6 +248,7 @@ public class TrackedContentEntry
         result = prime * result + ( ( storeKey == null ) ? 0 : storeKey.hashCode() );
         result = prime * result + ( ( accessChannel == null ) ? 0 : accessChannel.hashCode() );
         result = prime * result + ( ( effect == null ) ? 0 : effect.hashCode() );
+        hash = result;
         return result;
     }
 
@@ -284,7 +325,8 @@ public class TrackedContentEntry
     {
         return String.format(
                         "TrackedContentEntry [\n  trackingKey=%s\n  storeKey=%s\n  accessChannel=%s\n  path=%s\n  originUrl=%s\n  effect=%s\n  md5=%s\n  sha1=%s\n  sha256=%s\nObject hashcode=%s\n]",
-                        trackingKey, storeKey, accessChannel, path, originUrl, effect, md5, sha1, sha256,
+                        trackingKey, storeKey, accessChannel, path, getOriginUrl(), effect, getMd5(), getSha1(),
+                        getSha256(),
                         super.hashCode() );
     }
 
@@ -298,14 +340,14 @@ public class TrackedContentEntry
         out.writeObject( storeKey.getType().name() );
         out.writeObject( accessChannel.name() );
         out.writeObject( path == null ? "" : path );
-        out.writeObject( originUrl == null ? "" : originUrl );
+        out.writeObject( originUrl == null ? "" : getOriginUrl() );
         out.writeObject( effect == null ? "" : effect.name() );
-        out.writeObject( md5 == null ? "" : md5 );
-        out.writeObject( sha1 == null ? "" : sha1 );
-        out.writeObject( sha256 == null ? "" : sha256 );
-        out.writeObject( size );
+        out.writeObject( md5 == null ? "" : getMd5() );
+        out.writeObject( sha1 == null ? "" : getSha1() );
+        out.writeObject( sha256 == null ? "" : getSha256() );
+        out.writeObject( getSize() );
         out.writeLong( index );
-        out.writeObject( timestamps );
+        out.writeObject( timestamps == null ? null : new HashSet<>( getTimestamps() ) );
     }
 
     @Override
@@ -331,13 +373,13 @@ public class TrackedContentEntry
         else if ( whatIsThis instanceof TrackingKey )
         {
             version = 1;
-            trackingKey = (TrackingKey) whatIsThis;
+            trackingKey = TrackingKey.dedupe( (TrackingKey) whatIsThis );
             packageType = PKG_TYPE_MAVEN;
         }
         else
         {
             version = Integer.parseInt( String.valueOf( whatIsThis ) );
-            trackingKey = (TrackingKey) in.readObject();
+            trackingKey = TrackingKey.dedupe( (TrackingKey) in.readObject() );
             packageType = (String) in.readObject();
         }
 
@@ -360,45 +402,58 @@ public class TrackedContentEntry
             packageType = PKG_TYPE_GENERIC_HTTP;
         }
 
-        storeKey = new StoreKey( packageType, storeType, storeKeyName );
+        storeKey = StoreKey.dedupe( new StoreKey( packageType, storeType, storeKeyName ) );
 
         final String pathStr = (String) in.readObject();
         path = "".equals( pathStr ) ? null : pathStr;
 
         final String originUrlStr = (String) in.readObject();
-        originUrl = "".equals( originUrlStr ) ? null : originUrlStr;
+        setOriginUrl( "".equals( originUrlStr ) ? null : originUrlStr );
 
         final String effectStr = (String) in.readObject();
         effect = "".equals( effectStr ) ? null : StoreEffect.valueOf( effectStr );
 
         final String md5Str = (String) in.readObject();
-        md5 = "".equals( md5Str ) ? null : md5Str;
+        md5 = "".equals( md5Str ) ? null : pack( md5Str );
 
         final String sha1Str = (String) in.readObject();
-        sha1 = "".equals( sha1Str ) ? null : sha1Str;
+        sha1 = "".equals( sha1Str ) ? null : pack( sha1Str );
 
         final String sha256Str = (String) in.readObject();
-        sha256 = "".equals( sha256Str ) ? null : sha256Str;
+        sha256 = "".equals( sha256Str ) ? null : pack( sha256Str );
 
-        size = (Long) in.readObject();
+        setSize( (Long) in.readObject() );
 
         index = in.readLong();
 
         if ( version > 2 )
         {
             final Set<Long> tstamps = (Set<Long>) in.readObject();
-            timestamps = tstamps;
+            setTimestamps( tstamps );
         }
     }
 
+    /**
+     * @return the timestamps in ascending order, a copy
+     */
     public Set<Long> getTimestamps()
     {
-        return timestamps;
+        if ( timestamps == null )
+        {
+            return null;
+        }
+        Set<Long> ret = new LinkedHashSet<>();
+        for ( long timestamp : timestamps )
+        {
+            ret.add( timestamp );
+        }
+        return Collections.unmodifiableSet( ret );
     }
 
     public void setTimestamps( final Set<Long> timestamps )
     {
-        this.timestamps = timestamps;
+        this.timestamps =
+                        timestamps == null ? null : timestamps.stream().mapToLong( Long::longValue ).sorted().toArray();
     }
 
     public void merge( TrackedContentEntry from )
@@ -407,6 +462,66 @@ public class TrackedContentEntry
         this.sha1 = from.sha1;
         this.sha256 = from.sha256;
         this.size = from.size;
-        this.timestamps.addAll( from.timestamps );
+        if ( this.timestamps == null || from.timestamps == null )
+        {
+            this.timestamps = this.timestamps == null ? from.timestamps : this.timestamps;
+            return;
+        }
+        long[] merged = new long[this.timestamps.length + from.timestamps.length];
+        System.arraycopy( this.timestamps, 0, merged, 0, this.timestamps.length );
+        System.arraycopy( from.timestamps, 0, merged, this.timestamps.length, from.timestamps.length );
+        this.timestamps = Arrays.stream( merged ).sorted().distinct().toArray();
+    }
+
+    /**
+     * @return the bytes of a lower case hex digest, which are converted back to the same String; anything else as is
+     */
+    private static Object pack( String digest )
+    {
+        if ( digest == null || digest.length() % 2 != 0 )
+        {
+            return digest;
+        }
+        if ( digest.isEmpty() )
+        {
+            return EMPTY_DIGEST;
+        }
+        byte[] bytes = new byte[digest.length() / 2];
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            int high = hexDigit( digest.charAt( i * 2 ) );
+            int low = hexDigit( digest.charAt( i * 2 + 1 ) );
+            if ( high < 0 || low < 0 )
+            {
+                return digest;
+            }
+            bytes[i] = (byte) ( high << 4 | low );
+        }
+        return bytes;
+    }
+
+    private static int hexDigit( char c )
+    {
+        if ( c >= '0' && c <= '9' )
+        {
+            return c - '0';
+        }
+        return c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+    }
+
+    private static String unpack( Object digest )
+    {
+        if ( !( digest instanceof byte[] ) )
+        {
+            return (String) digest;
+        }
+        byte[] bytes = (byte[]) digest;
+        byte[] hex = new byte[bytes.length * 2];
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            hex[i * 2] = (byte) Character.forDigit( ( bytes[i] >> 4 ) & 0xF, 16 );
+            hex[i * 2 + 1] = (byte) Character.forDigit( bytes[i] & 0xF, 16 );
+        }
+        return new String( hex, StandardCharsets.US_ASCII );
     }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package org.commonjava.util.sidecar.model;
 
+import org.commonjava.util.sidecar.util.WeakInterner;
+
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
@@ -8,6 +10,7 @@ import java.io.ObjectOutput;
 public class TrackingKey
                 implements Externalizable
 {
+    private static final WeakInterner<TrackingKey> deduplications = new WeakInterner<>();
 
     private String id;
 
@@ -21,6 +24,14 @@ public class TrackingKey
         setId( id );
     }
 
+    /**
+     * @return the instance shared by all equal keys in use, e.g. by the entries of a build
+     */
+    public static TrackingKey dedupe( TrackingKey key )
+    {
+        return deduplications.intern( key );
+    }
+
     public String getId()
     {
         return id;
@@ -15,8 +15,15 @@
  */
 package org.commonjava.util.sidecar.services;
 
+import io.quarkus.runtime.StartupEvent;
+import io.vertx.mutiny.core.eventbus.EventBus;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.HttpEntity;
 import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -24,23 +31,60 @@ import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.commonjava.util.sidecar.util.ArchiveZip;
+import org.commonjava.util.sidecar.util.PathIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
 import javax.inject.Inject;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.SocketTimeoutException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.TERMINATE;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static javax.ws.rs.core.Response.Status.OK;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_REPO_PATH;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.EVENT_LOCAL_REPO_READY;
+import static org.commonjava.util.sidecar.util.SidecarUtils.resolveTimeout;
 
 @ApplicationScoped
 public class ArchiveRetrieveService
@@ -58,13 +102,54 @@ public class ArchiveRetrieveService
 
     private final static String NPM_META = "package.json";
 
+    private final static String STORAGE_ZIP = "zip";
+
+    // entries up to this size are read into memory and written by the worker pool, larger ones by the reader
+    private final static int BUFFERED_ENTRY_SIZE = 1024 * 1024;
+
+    private final static long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis( 5 );
+
+    private final static long DEFAULT_CLEANUP_DEADLINE = TimeUnit.SECONDS.toMillis( 5 );
+
+    private final static int CLEANUP_THREADS = 8;
+
+    private final static String TRASH_PREFIX = ".trash-";
+
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
+    private final AtomicInteger seededEntries = new AtomicInteger();
+
+    private final AtomicLong seededBytes = new AtomicLong();
+
     @Inject
     SidecarConfig sidecarConfig;
 
+    @Inject
+    SidecarMetrics metrics;
+
+    @Inject
+    ReportService reportService;
+
+    @Inject
+    BlobStore blobStore;
+
+    @Inject
+    IntegrityVerifier verifier;
+
+    @Inject
+    Prefetcher prefetcher;
+
+    @Inject
+    EventBus bus;
+
     private CloseableHttpClient client;
 
+    private volatile boolean preSeeding;
+
+    private volatile ArchiveZip archive;
+
+    private volatile PathIndex localIndex; // null until built
+
     @PostConstruct
     public void init()
     {
@@ -106,21 +191,526 @@ public class ArchiveRetrieveService
         client = builder.build();
     }
 
-    @PreDestroy
-    public void destroy()
+    void onStart( @Observes StartupEvent event )
+    {
+        Thread purger = new Thread( this::purgeTrash, "local-repo-purge" );
+        purger.setDaemon( true );
+        purger.start();
+
+        startPreSeed();
+        if ( !preSeeding )
+        {
+            Thread indexer = new Thread( () -> {
+                buildIndex();
+                onLocalRepoReady();
+            }, "local-index" );
+            indexer.setDaemon( true );
+            indexer.start();
+        }
+    }
+
+    /**
+     * Fetch the archive of the previous build from the archive API in the background and unpack it into the local
+     * repository. Until that finishes, folo requests are proxied and the sidecar reports not ready.
+     */
+    protected void startPreSeed()
+    {
+        String buildConfigId = getBuildConfigId();
+        if ( sidecarConfig.archiveApi.isEmpty() || buildConfigId == null || buildConfigId.trim().isEmpty() )
+        {
+            return;
+        }
+
+        if ( isZipStorage() )
+        {
+            File zip = archiveFile( buildConfigId );
+            if ( zip.isFile() && openArchive( zip ) )
+            {
+                return; // e.g. put there by an init container
+            }
+        }
+
+        preSeeding = true;
+        metrics.gauge( "preseed.entries", seededEntries::get );
+        metrics.gauge( "preseed.bytes", seededBytes::get );
+        Thread reader = new Thread( () -> {
+            try
+            {
+                preSeed( sidecarConfig.archiveApi.get(), buildConfigId );
+                buildIndex();
+            }
+            finally
+            {
+                preSeeding = false;
+            }
+            onLocalRepoReady();
+        }, "pre-seed" );
+        reader.setDaemon( true );
+        reader.start();
+    }
+
+    /**
+     * @return false while the archive is being retrieved
+     */
+    public boolean isReady()
+    {
+        return !preSeeding;
+    }
+
+    /**
+     * @return the build archive when it is served from the zip instead of being extracted, otherwise null
+     */
+    public ArchiveZip getArchive()
+    {
+        return archive;
+    }
+
+    /**
+     * Index what is in the local repository, so lookups don't need the file system. The top level directories are
+     * walked in parallel; the historical report tells how many paths to expect.
+     */
+    void buildIndex()
+    {
+        long start = System.currentTimeMillis();
+        Path root = new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) ).toPath();
+        PathIndex index = new PathIndex( reportService.getHistoricalEntryCount() );
+        if ( Files.isDirectory( root ) )
+        {
+            List<Path> top;
+            try (Stream<Path> children = Files.list( root ))
+            {
+                top = children.filter( p -> !isInternal( root, p ) ).collect( Collectors.toList() );
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to index local repository " + root + ", lookups will use the file system", e );
+                return;
+            }
+
+            try
+            {
+                top.parallelStream().forEach( dir -> {
+                    try (Stream<Path> files = Files.walk( dir ))
+                    {
+                        files.filter( Files::isRegularFile )
+                             .filter( p -> !isInternal( root, p ) )
+                             .forEach( p -> index.add( relativePath( root, p ) ) );
+                    }
+                    catch ( IOException e )
+                    {
+                        throw new UncheckedIOException( e );
+                    }
+                } );
+            }
+            catch ( UncheckedIOException e )
+            {
+                logger.warn( "Failed to index local repository " + root + ", lookups will use the file system",
+                             e.getCause() );
+                return;
+            }
+        }
+
+        localIndex = index;
+        metrics.gauge( "local.index.paths", index::size );
+        metrics.gauge( "local.index.bytes", index::memoryBytes );
+        logger.info( "Indexed {} local paths in {} ms, {} bytes", index.size(), System.currentTimeMillis() - start,
+                     index.memoryBytes() );
+    }
+
+    /**
+     * Verify everything of the historical report that is available here in the background, see
+     * {@link IntegrityVerifier}, and let others know what is here, e.g. {@link Prefetcher}.
+     */
+    private void onLocalRepoReady()
     {
+        verifier.verifyAll( reportService.getHistoricalPaths(), this::sourceOf );
+        bus.publish( EVENT_LOCAL_REPO_READY, "" );
+    }
+
+    /**
+     * @return whether the path is served from the build archive or the local repository
+     */
+    public boolean isAvailableLocally( String path )
+    {
+        ArchiveZip zip = archive;
+        return zip != null && zip.get( path ) != null || getLocally( path ).isPresent();
+    }
+
+    /**
+     * Add content fetched from upstream to the local repository, the same way as pre-seeded content.
+     *
+     * @return the number of bytes stored
+     */
+    public long storeLocally( String path, InputStream in ) throws IOException
+    {
+        Path root = new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) ).toPath()
+                                                                                         .toAbsolutePath()
+                                                                                         .normalize();
+        Path target = root.resolve( path.replaceFirst( "^/+", "" ) ).normalize();
+        if ( !target.startsWith( root ) || isInternal( root, target ) )
+        {
+            throw new IOException( "Not a path of the local repository: " + path );
+        }
+        return write( root, target, new byte[0], in );
+    }
+
+    /**
+     * @return where to read the content of the path from for verification, or null if it is not available here.
+     * Corrupt files are quarantined, so they are neither served nor indexed again, and fetched again by the
+     * {@link Prefetcher}.
+     */
+    public IntegrityVerifier.Source sourceOf( String path )
+    {
+        ArchiveZip zip = archive;
+        ArchiveZip.Entry entry = zip == null ? null : zip.get( path );
+        if ( entry != null )
+        {
+            return () -> zip.openStream( entry );
+        }
+
+        Optional<File> download = getLocally( path );
+        if ( download.isEmpty() )
+        {
+            return null;
+        }
+        Path file = download.get().toPath();
+        return new IntegrityVerifier.Source()
+        {
+            @Override
+            public InputStream open() throws IOException
+            {
+                return Files.newInputStream( file );
+            }
+
+            @Override
+            public void quarantine()
+            {
+                Path root = new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) ).toPath();
+                Path target = root.resolve( IntegrityVerifier.QUARANTINE_DIR ).resolve( root.relativize( file ) );
+                try
+                {
+                    Files.createDirectories( target.getParent() );
+                    Files.move( file, target, ATOMIC_MOVE, REPLACE_EXISTING );
+                    logger.info( "Quarantined {} to {}", file, target );
+                }
+                catch ( IOException | IllegalArgumentException e )
+                {
+                    logger.warn( "Failed to quarantine " + file, e );
+                    return;
+                }
+                unindexed( root, file );
+                prefetcher.refetch( path );
+            }
+        };
+    }
+
+    /**
+     * Cache, blob and quarantine directories, and files still being written.
+     */
+    private static boolean isInternal( Path root, Path path )
+    {
+        String name = path.getFileName().toString();
+        if ( name.endsWith( ".pre-seed" ) || name.endsWith( ".link" ) )
+        {
+            return true;
+        }
+        return isKept( root, path ) || root.relativize( path ).getName( 0 ).toString()
+                                                                  .equals( IntegrityVerifier.QUARANTINE_DIR );
+    }
+
+    /**
+     * Directories that outlive a run of the sidecar, or are cleaned up on their own.
+     */
+    private static boolean isKept( Path root, Path path )
+    {
+        String first = root.relativize( path ).getName( 0 ).toString();
+        return first.startsWith( TRASH_PREFIX ) || first.equals( ProxyCache.CACHE_DIR ) || first.equals(
+                        BlobStore.BLOB_DIR ) || first.equals( TrackingJournal.JOURNAL_DIR );
+    }
+
+    private static String relativePath( Path root, Path path )
+    {
+        return root.relativize( path ).toString().replace( File.separatorChar, '/' );
+    }
+
+    private void indexed( Path root, Path path )
+    {
+        PathIndex index = localIndex;
+        if ( index != null )
+        {
+            index.add( relativePath( root, path ) );
+        }
+    }
+
+    private void unindexed( Path root, Path path )
+    {
+        PathIndex index = localIndex;
+        if ( index != null )
+        {
+            index.remove( relativePath( root, path ) );
+        }
+    }
+
+    private boolean isZipStorage()
+    {
+        return STORAGE_ZIP.equalsIgnoreCase( sidecarConfig.preSeedStorage );
+    }
+
+    private File archiveFile( String buildConfigId )
+    {
+        return new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ), buildConfigId + ".zip" );
+    }
+
+    private boolean openArchive( File zip )
+    {
+        long start = System.currentTimeMillis();
         try
         {
-            File downloadDir = new File( sidecarConfig.localRepository.get() );
-            List<File> downloads = Files.walk( downloadDir.toPath() )
-                                        .filter( Files::isRegularFile )
-                                        .map( Path::toFile )
-                                        .collect( Collectors.toList() );
-            for ( File content : downloads )
+            archive = ArchiveZip.open( zip );
+            logger.info( "Serving {} entries from {}, indexed in {} ms", archive.size(), zip,
+                         System.currentTimeMillis() - start );
+            return true;
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to open build archive " + zip, e );
+            return false;
+        }
+    }
+
+    /**
+     * Keep the archive as is. It only has to be written to disk, which is as fast as the download.
+     */
+    private void download( InputStream in, File zip ) throws IOException
+    {
+        Files.createDirectories( zip.getParentFile().toPath() );
+        Path tmp = zip.toPath().resolveSibling( zip.getName() + ".pre-seed" );
+        try (OutputStream out = Files.newOutputStream( tmp ))
+        {
+            seededBytes.addAndGet( IOUtils.copyLarge( in, out ) );
+        }
+        catch ( IOException e )
+        {
+            Files.deleteIfExists( tmp );
+            throw e;
+        }
+        Files.move( tmp, zip.toPath(), ATOMIC_MOVE, REPLACE_EXISTING );
+        openArchive( zip );
+    }
+
+    private void preSeed( String archiveApi, String buildConfigId )
+    {
+        String url = archiveApi.replaceAll( "/+$", "" ) + "/" + buildConfigId;
+        File repo = new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) );
+        long start = System.currentTimeMillis();
+        logger.info( "Pre-seeding {} from {}", repo, url );
+
+        int workers = Math.max( 1, sidecarConfig.preSeedWorkers );
+        ExecutorService pool = Executors.newFixedThreadPool( workers, r -> {
+            Thread t = new Thread( r, "pre-seed-writer" );
+            t.setDaemon( true );
+            return t;
+        } );
+        try (CloseableHttpResponse response = client.execute( new HttpGet( url ) ))
+        {
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if ( status == NOT_FOUND.getStatusCode() )
+            {
+                logger.info( "No archive for build {}, all content will be proxied", buildConfigId );
+            }
+            else if ( status != OK.getStatusCode() || entity == null )
+            {
+                logger.error( "Failed to retrieve archive for build {}: {}", buildConfigId,
+                              response.getStatusLine() );
+            }
+            else if ( isZipStorage() )
+            {
+                download( entity.getContent(), archiveFile( buildConfigId ) );
+                logger.info( "Retrieved archive, {} bytes in {} ms", seededBytes.get(),
+                             System.currentTimeMillis() - start );
+            }
+            else
+            {
+                unpack( entity.getContent(), repo, pool, workers );
+                long elapsed = System.currentTimeMillis() - start;
+                logger.info( "Pre-seeded {} entries, {} bytes in {} ms", seededEntries.get(), seededBytes.get(),
+                             elapsed );
+                metrics.add( "preseed.time", elapsed );
+                reportService.reloadReport(); // the archive may carry the historical report
+            }
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            logger.error( "Failed to pre-seed from " + url + ", content will be proxied", e );
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Read the zip as it streams in. Small entries are handed to the worker pool, with a bound on how many are in
+     * flight so memory stays flat when the disk is slower than the network.
+     */
+    private void unpack( InputStream in, File repo, ExecutorService pool, int workers ) throws IOException
+    {
+        Path root = repo.toPath().toAbsolutePath().normalize();
+        Semaphore inFlight = new Semaphore( workers * 4 );
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        long lastProgress = System.currentTimeMillis();
+
+        try (ZipInputStream zip = new ZipInputStream( new BufferedInputStream( in, 64 * 1024 ) ))
+        {
+            ZipEntry entry;
+            while ( ( entry = zip.getNextEntry() ) != null )
+            {
+                if ( failure.get() != null )
+                {
+                    throw failure.get();
+                }
+                if ( entry.isDirectory() )
+                {
+                    continue;
+                }
+                String path = entry.getName().replaceFirst( "^/+", "" );
+                Path target = root.resolve( path ).normalize();
+                if ( !target.startsWith( root ) )
+                {
+                    logger.warn( "Skip archive entry outside of the local repository: {}", entry.getName() );
+                    continue;
+                }
+                if ( blobStore.isEnabled() && blobStore.linkExisting( expectedSha256( path ), target ) )
+                {
+                    indexed( root, target );
+                    seededEntries.incrementAndGet();
+                    continue; // the zip stream skips the entry data
+                }
+
+                byte[] head = IOUtils.toByteArray( new BoundedInputStream( zip, BUFFERED_ENTRY_SIZE + 1 ) );
+                if ( head.length <= BUFFERED_ENTRY_SIZE )
+                {
+                    inFlight.acquireUninterruptibly();
+                    pool.execute( () -> {
+                        try
+                        {
+                            seededBytes.addAndGet( write( root, target, head, null ) );
+                            seededEntries.incrementAndGet();
+                        }
+                        catch ( IOException e )
+                        {
+                            failure.compareAndSet( null, e );
+                        }
+                        finally
+                        {
+                            inFlight.release();
+                        }
+                    } );
+                }
+                else
+                {
+                    seededBytes.addAndGet( write( root, target, head, zip ) );
+                    seededEntries.incrementAndGet();
+                }
+
+                long now = System.currentTimeMillis();
+                if ( now - lastProgress > PROGRESS_INTERVAL )
+                {
+                    lastProgress = now;
+                    logger.info( "Pre-seeding, {} entries, {} bytes so far", seededEntries.get(),
+                                 seededBytes.get() );
+                }
+            }
+        }
+
+        inFlight.acquireUninterruptibly( workers * 4 ); // all writes done
+        if ( failure.get() != null )
+        {
+            throw failure.get();
+        }
+    }
+
+    private String expectedSha256( String path )
+    {
+        HistoricalEntryDTO historical = reportService.getHistoricalEntry( path );
+        return historical == null ? null : historical.getSha256();
+    }
+
+    /**
+     * Write the entry under a temp name and move it in place, so a file in the repository is always complete. With
+     * dedup, the file goes to the blob store and the path is linked to it.
+     *
+     * @return the size of the file
+     */
+    private long write( Path root, Path target, byte[] head, InputStream rest ) throws IOException
+    {
+        Files.createDirectories( target.getParent() );
+        Path tmp = target.resolveSibling( target.getFileName() + ".pre-seed" );
+        long size = head.length;
+        MessageDigest sha256 = blobStore.isEnabled() ? newSha256() : null;
+        try (OutputStream out = sha256 == null ?
+                        Files.newOutputStream( tmp ) :
+                        new DigestOutputStream( Files.newOutputStream( tmp ), sha256 ))
+        {
+            out.write( head );
+            if ( rest != null )
             {
-                content.delete();
+                size += IOUtils.copyLarge( rest, out );
             }
-            downloadDir.delete();
+        }
+        catch ( IOException e )
+        {
+            Files.deleteIfExists( tmp );
+            throw e;
+        }
+        if ( sha256 == null )
+        {
+            Files.move( tmp, target, ATOMIC_MOVE, REPLACE_EXISTING );
+        }
+        else
+        {
+            blobStore.store( tmp, Hex.encodeHexString( sha256.digest() ), target );
+        }
+        indexed( root, target );
+        return size;
+    }
+
+    private static MessageDigest newSha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "SHA-256 is not available", e );
+        }
+    }
+
+    /**
+     * Move the downloads aside with a few renames and delete them in the background, waiting for that at most until
+     * the cleanup deadline. What is left over is deleted on the next start.
+     */
+    @PreDestroy
+    public void destroy()
+    {
+        try
+        {
+            Path root = new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) ).toPath();
+            long deadline = System.currentTimeMillis() + resolveTimeout( sidecarConfig.cleanupDeadline,
+                                                                         DEFAULT_CLEANUP_DEADLINE );
+            long start = System.currentTimeMillis();
+            Path trash = moveToTrash( root );
+            ExecutorService pool = cleanupPool();
+            Future<?> prune = pool.submit( blobStore::prune );
+            boolean done = ( trash == null || deleteTree( trash, deadline, pool ) ) && await( prune, deadline );
+            pool.shutdownNow();
+
+            long elapsed = System.currentTimeMillis() - start;
+            metrics.add( "cleanup.time", elapsed );
+            logger.info( "Cleaned up local repository in {} ms, {} files deleted{}", elapsed,
+                         metrics.get( "cleanup.deleted" ), done ? "" : ", the rest is deleted on the next start" );
         }
         catch ( IOException e )
         {
@@ -128,24 +718,202 @@ public class ArchiveRetrieveService
         }
         finally
         {
+            IOUtils.closeQuietly( archive, null );
             IOUtils.closeQuietly( client, null );
         }
     }
 
+    /**
+     * @return the trash directory the top level entries of the repository were renamed into, or null if there was
+     * nothing to move. Caches kept across restarts stay in place.
+     */
+    private Path moveToTrash( Path root ) throws IOException
+    {
+        if ( !Files.isDirectory( root ) )
+        {
+            return null;
+        }
+        Path trash = root.resolve( TRASH_PREFIX + System.currentTimeMillis() );
+        List<Path> downloads;
+        try (Stream<Path> children = Files.list( root ))
+        {
+            downloads = children.filter( p -> !isKept( root, p ) ).collect( Collectors.toList() );
+        }
+        if ( downloads.isEmpty() )
+        {
+            return null;
+        }
+        Files.createDirectories( trash );
+        for ( Path download : downloads )
+        {
+            Files.move( download, trash.resolve( download.getFileName() ), ATOMIC_MOVE );
+        }
+        return trash;
+    }
+
+    /**
+     * Remove trash left by a previous run that hit the cleanup deadline.
+     */
+    private void purgeTrash()
+    {
+        Path root = new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) ).toPath();
+        if ( !Files.isDirectory( root ) )
+        {
+            return;
+        }
+        List<Path> leftovers;
+        try (Stream<Path> children = Files.list( root ))
+        {
+            leftovers = children.filter( p -> p.getFileName().toString().startsWith( TRASH_PREFIX ) )
+                                .collect( Collectors.toList() );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to list " + root + " for leftover trash", e );
+            return;
+        }
+        if ( leftovers.isEmpty() )
+        {
+            return;
+        }
+
+        ExecutorService pool = cleanupPool();
+        leftovers.forEach( trash -> deleteTree( trash, Long.MAX_VALUE, pool ) );
+        pool.shutdown();
+        logger.info( "Deleted {} leftover trash directories of {}", leftovers.size(), root );
+    }
+
+    private static ExecutorService cleanupPool()
+    {
+        return Executors.newFixedThreadPool( CLEANUP_THREADS, r -> {
+            Thread t = new Thread( r, "local-repo-cleanup" );
+            t.setDaemon( true );
+            return t;
+        } );
+    }
+
+    /**
+     * Delete the directory with the subtrees on its second level in parallel on the pool, each of them depth first.
+     * That level is used since a few top level directories, like 'org', hold most of the files.
+     *
+     * @return false if that did not finish before the deadline
+     */
+    private boolean deleteTree( Path dir, long deadline, ExecutorService pool )
+    {
+        List<Path> dirs = new ArrayList<>();
+        List<Future<?>> subtrees = new ArrayList<>();
+        try (Stream<Path> children = Files.list( dir ))
+        {
+            for ( Path child : (Iterable<Path>) children::iterator )
+            {
+                if ( !Files.isDirectory( child, LinkOption.NOFOLLOW_LINKS ) )
+                {
+                    subtrees.add( pool.submit( () -> deleteSubtree( child, deadline ) ) );
+                    continue;
+                }
+                dirs.add( child );
+                try (Stream<Path> grandChildren = Files.list( child ))
+                {
+                    grandChildren.forEach( p -> subtrees.add( pool.submit( () -> deleteSubtree( p, deadline ) ) ) );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to list " + dir + " for cleanup", e );
+            return false;
+        }
+
+        for ( Future<?> subtree : subtrees )
+        {
+            if ( !await( subtree, deadline ) )
+            {
+                return false;
+            }
+        }
+        try
+        {
+            for ( Path child : dirs )
+            {
+                Files.delete( child );
+            }
+            Files.delete( dir );
+            return true;
+        }
+        catch ( IOException e )
+        {
+            logger.debug( "Failed to delete {}", dir, e );
+            return false;
+        }
+    }
+
+    private boolean await( Future<?> task, long deadline )
+    {
+        try
+        {
+            task.get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+            return true;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch ( ExecutionException | TimeoutException e )
+        {
+            return false;
+        }
+    }
+
+    private void deleteSubtree( Path path, long deadline )
+    {
+        try
+        {
+            Files.walkFileTree( path, new SimpleFileVisitor<>()
+            {
+                @Override
+                public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException
+                {
+                    Files.delete( file );
+                    metrics.increment( "cleanup.deleted" );
+                    return System.currentTimeMillis() < deadline ? CONTINUE : TERMINATE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory( Path dir, IOException e ) throws IOException
+                {
+                    Files.delete( dir );
+                    return System.currentTimeMillis() < deadline ? CONTINUE : TERMINATE;
+                }
+            } );
+        }
+        catch ( IOException e )
+        {
+            metrics.increment( "cleanup.failed" );
+            logger.debug( "Failed to delete {}", path, e );
+        }
+    }
+
+    /**
+     * Answered from the index of the local repository once it is built, without touching the file system.
+     *
+     * @return the file for the path, if there is a regular file
+     */
     public Optional<File> getLocally( final String path )
     {
         File download = new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) + File.separator + path );
-        if ( !download.exists() )
+        PathIndex index = localIndex;
+        if ( index != null )
         {
-            return Optional.empty();
+            return index.contains( path.replaceFirst( "^/+", "" ) ) ? Optional.of( download ) : Optional.empty();
         }
-        return Optional.of( download );
+        return download.isFile() ? Optional.of( download ) : Optional.empty();
     }
 
     public boolean shouldProxy( final String path )
     {
-        return getBuildConfigId() == null || getBuildConfigId().trim().isEmpty() || path.endsWith( MAVEN_META )
-                        || path.endsWith( NPM_META );
+        return preSeeding || getBuildConfigId() == null || getBuildConfigId().trim().isEmpty()
+                        || path.endsWith( MAVEN_META ) || path.endsWith( NPM_META );
     }
 
     public String getBuildConfigId()
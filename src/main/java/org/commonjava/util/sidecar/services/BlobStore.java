@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_REPO_PATH;
+
+/**
+ * Content-addressed store for the local repository. Each distinct content is kept once, as
+ * '.blobs/&lt;first 2 hex chars&gt;/&lt;sha256&gt;', and repository paths are hard links to it, or copies where the file
+ * system can't link. Blobs survive a restart, so the next build only writes what changed; blobs no path used during
+ * this run are pruned on shutdown.
+ */
+@ApplicationScoped
+public class BlobStore
+{
+    public static final String BLOB_DIR = ".blobs";
+
+    private static final Pattern SHA256 = Pattern.compile( "[0-9a-f]{64}" );
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
+    @Inject
+    SidecarMetrics metrics;
+
+    private Path baseDir;
+
+    private volatile boolean canLink = true;
+
+    @PostConstruct
+    void init()
+    {
+        baseDir = Paths.get( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ), BLOB_DIR )
+                       .toAbsolutePath()
+                       .normalize();
+    }
+
+    public boolean isEnabled()
+    {
+        return sidecarConfig.preSeedDedup;
+    }
+
+    /**
+     * Link the path to the blob of the digest, if it is stored already; the content then doesn't have to be written.
+     *
+     * @param sha256 expected digest of the content, e.g. from the historical report; may be null
+     * @return whether the path now has the content
+     */
+    public boolean linkExisting( String sha256, Path target ) throws IOException
+    {
+        if ( sha256 == null || !SHA256.matcher( sha256 ).matches() )
+        {
+            return false;
+        }
+        Path blob = blobOf( sha256 );
+        if ( !Files.isRegularFile( blob ) )
+        {
+            return false;
+        }
+        link( blob, target );
+        metrics.increment( "blob.dedup" );
+        metrics.add( "blob.dedup.bytes", Files.size( blob ) );
+        return true;
+    }
+
+    /**
+     * Move a completely written file into the store, unless its content is there already, and link the path to it.
+     *
+     * @param sha256 digest of what was written to the file
+     */
+    public void store( Path tmp, String sha256, Path target ) throws IOException
+    {
+        Path blob = blobOf( sha256 );
+        if ( Files.isRegularFile( blob ) )
+        {
+            Files.delete( tmp );
+            metrics.increment( "blob.dedup" );
+            metrics.add( "blob.dedup.bytes", Files.size( blob ) );
+        }
+        else
+        {
+            Files.createDirectories( blob.getParent() );
+            Files.move( tmp, blob, ATOMIC_MOVE, REPLACE_EXISTING );
+            metrics.increment( "blob.stored" );
+        }
+        link( blob, target );
+    }
+
+    /**
+     * Delete the blobs no path linked to during this run.
+     */
+    public void prune()
+    {
+        if ( !Files.isDirectory( baseDir ) )
+        {
+            return;
+        }
+        try (Stream<Path> files = Files.walk( baseDir ))
+        {
+            List<Path> unused = files.filter( Files::isRegularFile )
+                                     .filter( p -> !used.contains( p.getFileName().toString() ) )
+                                     .collect( Collectors.toList() );
+            for ( Path blob : unused )
+            {
+                Files.deleteIfExists( blob );
+            }
+            logger.info( "Pruned {} unused blobs, {} kept", unused.size(), used.size() );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to prune blob store " + baseDir, e );
+        }
+    }
+
+    /**
+     * Replace the target atomically with a link to the blob, or a copy of it.
+     */
+    private void link( Path blob, Path target ) throws IOException
+    {
+        used.add( blob.getFileName().toString() );
+        Files.createDirectories( target.getParent() );
+        Path tmp = target.resolveSibling( target.getFileName() + ".link" );
+        Files.deleteIfExists( tmp );
+        if ( canLink )
+        {
+            try
+            {
+                Files.createLink( tmp, blob );
+                Files.move( tmp, target, ATOMIC_MOVE, REPLACE_EXISTING );
+                return;
+            }
+            catch ( UnsupportedOperationException | IOException e )
+            {
+                canLink = false;
+                logger.warn( "Hard links to {} are not possible, copying blobs instead: {}", baseDir, e.toString() );
+            }
+        }
+        Files.copy( blob, tmp, REPLACE_EXISTING );
+        Files.move( tmp, target, ATOMIC_MOVE, REPLACE_EXISTING );
+    }
+
+    private Path blobOf( String sha256 )
+    {
+        return baseDir.resolve( sha256.substring( 0, 2 ) ).resolve( sha256 );
+    }
+}
@@ -17,6 +17,7 @@ package org.commonjava.util.sidecar.services;
 
 import io.opentelemetry.api.trace.Span;
 import io.quarkus.vertx.ConsumeEvent;
+import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
 import org.apache.commons.io.FilenameUtils;
@@ -24,6 +25,8 @@ import org.commonjava.util.sidecar.config.ProxyConfiguration;
 import org.commonjava.util.sidecar.config.ServiceConfig;
 import org.commonjava.util.sidecar.exception.ServiceNotFoundException;
 import org.commonjava.util.sidecar.util.OtelAdapter;
+import org.commonjava.util.sidecar.util.UpstreamClient;
+import org.commonjava.util.sidecar.util.VertxClientAdapter;
 import org.commonjava.util.sidecar.util.WebClientAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,8 +34,12 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -40,6 +47,7 @@ import java.util.function.BiFunction;
 
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.EVENT_PROXY_CONFIG_CHANGE;
+import static org.commonjava.util.sidecar.util.UpstreamClient.ENGINE_VERTX;
 import static org.commonjava.util.sidecar.util.SidecarUtils.parseTimeout;
 
 @ApplicationScoped
@@ -51,7 +59,9 @@ public class Classifier
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final Map<ServiceConfig, WebClientAdapter> clientMap = new ConcurrentHashMap<>();
+    private final Map<ServiceConfig, UpstreamClient> clientMap = new ConcurrentHashMap<>();
+
+    private volatile RouteTable routes = RouteTable.EMPTY;
 
     @Inject
     ProxyConfiguration proxyConfiguration;
@@ -59,10 +69,17 @@ public class Classifier
     @Inject
     OtelAdapter otel;
 
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    SidecarMetrics metrics;
+
     @PostConstruct
     void init()
     {
         readTimeout();
+        loadRoutes();
         logger.debug( "Init, timeout: {}", timeout );
     }
 
@@ -70,10 +87,32 @@ public class Classifier
     void handleConfigChange( String message )
     {
         readTimeout();
+        loadRoutes();
+        clientMap.entrySet().removeIf( e -> {
+            ServiceConfig current = findService( e.getKey() );
+            if ( current == null || !isSameTarget( current, e.getKey() ) )
+            {
+                // removed, moved or switched to the other engine; the next request creates a new client
+                e.getValue().close();
+                return true;
+            }
+            return false;
+        } );
         clientMap.forEach( ( k, client ) -> client.reinit() );
         logger.debug( "Handle event {}, refresh timeout: {}", EVENT_PROXY_CONFIG_CHANGE, timeout );
     }
 
+    private void loadRoutes()
+    {
+        Set<ServiceConfig> services = proxyConfiguration.getServices();
+        List<ServiceConfig> snapshot;
+        synchronized ( services )
+        {
+            snapshot = new ArrayList<>( services );
+        }
+        routes = new RouteTable( snapshot );
+    }
+
     private void readTimeout()
     {
         long t = DEFAULT_TIMEOUT;
@@ -93,12 +132,12 @@ public class Classifier
     }
 
     public <R> R classifyAnd( String path, HttpServerRequest request,
-                              BiFunction<WebClientAdapter, ServiceConfig, R> action ) throws Exception
+                              BiFunction<UpstreamClient, ServiceConfig, R> action ) throws Exception
     {
         return classifyAnd( path, request.method(), action );
     }
 
-    public <R> R classifyAnd( String path, HttpMethod method, BiFunction<WebClientAdapter, ServiceConfig, R> action )
+    public <R> R classifyAnd( String path, HttpMethod method, BiFunction<UpstreamClient, ServiceConfig, R> action )
                     throws Exception
     {
         if ( otel.enabled() )
@@ -135,26 +174,50 @@ public class Classifier
 
     private ServiceConfig getServiceConfig( String path, HttpMethod method )
     {
-        ServiceConfig service = null;
+        return routes.lookup( path, method.name() );
+    }
 
+    private ServiceConfig findService( ServiceConfig key )
+    {
         Set<ServiceConfig> services = proxyConfiguration.getServices();
-        if ( services != null )
+        synchronized ( services )
         {
-            for ( ServiceConfig sv : services )
-            {
-                if ( path.matches( sv.pathPattern ) && ( sv.methods == null || sv.methods.contains( method.name() ) ) )
-                {
-                    service = sv;
-                    break;
-                }
-            }
+            return services.stream().filter( key::equals ).findFirst().orElse( null );
         }
-        return service;
     }
 
-    private WebClientAdapter getWebClient( ServiceConfig service ) throws Exception
+    private boolean isSameTarget( ServiceConfig a, ServiceConfig b )
+    {
+        return Objects.equals( a.host, b.host ) && a.port == b.port && a.ssl == b.ssl && Objects.equals( a.engine,
+                                                                                                         b.engine )
+                        && Objects.equals( a.readTimeout, b.readTimeout ) && Objects.equals( a.pool, b.pool );
+    }
+
+    /**
+     * @return pool state of the clients created so far, by service methods and path pattern
+     */
+    public Map<String, Map<String, Long>> getPoolStates()
+    {
+        Map<String, Map<String, Long>> ret = new TreeMap<>();
+        clientMap.forEach( ( sc, client ) -> {
+            String name = sc.methods == null ? sc.pathPattern : sc.methods + " " + sc.pathPattern;
+            ret.put( name, client.poolState() );
+        } );
+        return ret;
+    }
+
+    private UpstreamClient getWebClient( ServiceConfig service ) throws Exception
     {
-        return clientMap.computeIfAbsent( service,
-                                          sc -> new WebClientAdapter( sc, proxyConfiguration, timeout, otel ) );
+        return clientMap.computeIfAbsent( service, this::createClient );
+    }
+
+    private UpstreamClient createClient( ServiceConfig sc )
+    {
+        logger.info( "Create upstream client, engine: {}, service: {}", sc.engine, sc );
+        if ( ENGINE_VERTX.equals( sc.engine ) )
+        {
+            return new VertxClientAdapter( vertx, sc, proxyConfiguration, timeout, otel, metrics );
+        }
+        return new WebClientAdapter( sc, proxyConfiguration, timeout, otel, metrics );
     }
 }
\ No newline at end of file
@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.apache.commons.codec.binary.Hex;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Checks pre-seeded content against the size and checksum the historical report recorded for it. A background pass
+ * verifies everything on a small pool, with its read rate capped so foreground traffic keeps the disk; content asked
+ * for before the pass got to it is verified on that request. Results are kept per path, so verified content is served
+ * without further checks. Corrupt content is quarantined, and requests for it go upstream.
+ */
+@ApplicationScoped
+public class IntegrityVerifier
+{
+    public static final String QUARANTINE_DIR = ".quarantine";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Map<String, CompletableFuture<Boolean>> results = new ConcurrentHashMap<>();
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
+    @Inject
+    SidecarMetrics metrics;
+
+    @Inject
+    ReportService reportService;
+
+    private ExecutorService pool;
+
+    private final Object rateLock = new Object();
+
+    private long nextRead; // nanoTime from which the background pass may read again, guarded by rateLock
+
+    /**
+     * Where the content of a path is read from.
+     */
+    public interface Source
+    {
+        InputStream open() throws IOException;
+
+        /**
+         * Move the corrupt content out of the way, if it can be.
+         */
+        default void quarantine()
+        {
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return sidecarConfig.verifyEnabled;
+    }
+
+    /**
+     * @return true if the content was verified, or there is nothing recorded to verify it against; false if it is
+     * corrupt; null if it was not verified yet
+     */
+    public Boolean getState( String path )
+    {
+        if ( !isEnabled() )
+        {
+            return Boolean.TRUE;
+        }
+        String key = normalize( path );
+        CompletableFuture<Boolean> result = results.get( key );
+        if ( result == null )
+        {
+            return expectationOf( reportService.getHistoricalEntry( key ) ) == null ? Boolean.TRUE : null;
+        }
+        return result.isDone() ? result.getNow( null ) : null;
+    }
+
+    /**
+     * Verify the content now, or wait for the verification in progress. Blocks on I/O, so not on an event loop.
+     */
+    public boolean verify( String path, Source source )
+    {
+        return verify( normalize( path ), source, false );
+    }
+
+    /**
+     * Start the background pass over the given paths, e.g. all paths of the historical report.
+     *
+     * @param sources the source for a path, or null if the path is not available locally
+     */
+    public synchronized void verifyAll( Collection<String> paths, Function<String, Source> sources )
+    {
+        if ( !isEnabled() || paths.isEmpty() || pool != null )
+        {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        AtomicInteger remaining = new AtomicInteger( paths.size() );
+        pool = Executors.newFixedThreadPool( Math.max( 1, sidecarConfig.verifyThreads ), r -> {
+            Thread t = new Thread( r, "integrity-verifier" );
+            t.setDaemon( true );
+            t.setPriority( Thread.MIN_PRIORITY );
+            return t;
+        } );
+        metrics.gauge( "verify.pending", remaining::get );
+        for ( String path : paths )
+        {
+            pool.execute( () -> {
+                try
+                {
+                    Source source = sources.apply( path );
+                    if ( source != null )
+                    {
+                        verify( normalize( path ), source, true );
+                    }
+                }
+                finally
+                {
+                    if ( remaining.decrementAndGet() == 0 )
+                    {
+                        logger.info( "Verified {} paths in {} ms, {} corrupt", paths.size(),
+                                     System.currentTimeMillis() - start, metrics.get( "verify.corrupt" ) );
+                    }
+                }
+            } );
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Drop the result for the path, e.g. once its content was replaced, so the content is verified again.
+     */
+    public void forget( String path )
+    {
+        results.remove( normalize( path ) );
+    }
+
+    @PreDestroy
+    synchronized void destroy()
+    {
+        if ( pool != null )
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    private boolean verify( String path, Source source, boolean throttled )
+    {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = results.putIfAbsent( path, result );
+        if ( existing != null )
+        {
+            return existing.join();
+        }
+
+        boolean valid = false;
+        try
+        {
+            valid = check( path, source, throttled );
+            if ( !valid )
+            {
+                metrics.increment( "verify.corrupt" );
+                source.quarantine();
+            }
+        }
+        catch ( IOException e )
+        {
+            // can't tell, so it is not served from here this time, and verified again on the next request
+            logger.warn( "Failed to verify " + path, e );
+            results.remove( path, result );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            results.remove( path, result ); // verified again on request
+        }
+        finally
+        {
+            result.complete( valid );
+        }
+        return valid;
+    }
+
+    private boolean check( String path, Source source, boolean throttled ) throws IOException, InterruptedException
+    {
+        HistoricalEntryDTO expected = reportService.getHistoricalEntry( path );
+        String[] digest = expectationOf( expected );
+        if ( digest == null )
+        {
+            return true;
+        }
+
+        MessageDigest md = newDigest( digest[0] );
+        long size = 0;
+        byte[] buf = new byte[BUFFER_SIZE];
+        try (InputStream in = source.open())
+        {
+            int n;
+            while ( ( n = in.read( buf ) ) > 0 )
+            {
+                md.update( buf, 0, n );
+                size += n;
+                if ( throttled )
+                {
+                    throttle( n );
+                }
+            }
+        }
+        metrics.increment( "verify.verified" );
+        metrics.add( "verify.bytes", size );
+
+        Long expectedSize = expected.getSize();
+        boolean valid = digest[1].equalsIgnoreCase( Hex.encodeHexString( md.digest() ) ) && (
+                        expectedSize == null || expectedSize <= 0 || expectedSize == size );
+        if ( !valid )
+        {
+            logger.warn( "Corrupt content: {}, expected {} {} and size {}, read {} bytes", path, digest[0], digest[1],
+                         expectedSize, size );
+        }
+        return valid;
+    }
+
+    /**
+     * Keep the background pass under the configured rate, shared by all its threads.
+     */
+    private void throttle( int bytes ) throws InterruptedException
+    {
+        long rate = sidecarConfig.verifyMaxMbPerSec * 1024L * 1024L;
+        if ( rate <= 0 )
+        {
+            return;
+        }
+        long wait;
+        synchronized ( rateLock )
+        {
+            long now = System.nanoTime();
+            long start = Math.max( now, nextRead );
+            nextRead = start + TimeUnit.SECONDS.toNanos( 1 ) * bytes / rate;
+            wait = start - now;
+        }
+        if ( wait > 0 )
+        {
+            TimeUnit.NANOSECONDS.sleep( wait );
+        }
+    }
+
+    /**
+     * @return the strongest digest the report recorded, as algorithm and hex value; null if none
+     */
+    private static String[] expectationOf( HistoricalEntryDTO expected )
+    {
+        if ( expected == null )
+        {
+            return null;
+        }
+        if ( isSet( expected.getSha256() ) )
+        {
+            return new String[] { "SHA-256", expected.getSha256() };
+        }
+        if ( isSet( expected.getSha1() ) )
+        {
+            return new String[] { "SHA-1", expected.getSha1() };
+        }
+        if ( isSet( expected.getMd5() ) )
+        {
+            return new String[] { "MD5", expected.getMd5() };
+        }
+        return null;
+    }
+
+    private static boolean isSet( String value )
+    {
+        return value != null && !value.trim().isEmpty();
+    }
+
+    private static MessageDigest newDigest( String algorithm )
+    {
+        try
+        {
+            return MessageDigest.getInstance( algorithm );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( algorithm + " is not available", e );
+        }
+    }
+
+    private static String normalize( String path )
+    {
+        return path.startsWith( "/" ) ? path : "/" + path;
+    }
+}
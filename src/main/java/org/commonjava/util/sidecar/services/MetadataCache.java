@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.http.HttpServerRequest;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.util.BufferedUpstreamResponse;
+import org.commonjava.util.sidecar.util.UpstreamCall;
+import org.commonjava.util.sidecar.util.UpstreamClient;
+import org.commonjava.util.sidecar.util.UpstreamResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import static javax.ws.rs.core.HttpHeaders.ACCEPT;
+import static javax.ws.rs.core.HttpHeaders.ETAG;
+import static javax.ws.rs.core.HttpHeaders.IF_MODIFIED_SINCE;
+import static javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH;
+import static javax.ws.rs.core.HttpHeaders.LAST_MODIFIED;
+import static javax.ws.rs.core.Response.Status.NOT_MODIFIED;
+import static javax.ws.rs.core.Response.Status.OK;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.HEADER_PROXY_ORIGIN;
+import static org.commonjava.util.sidecar.util.SidecarUtils.getProxyOrigin;
+import static org.commonjava.util.sidecar.util.SidecarUtils.resolveTimeout;
+
+/**
+ * Short lived in-memory cache for maven-metadata.xml and package.json, which builds ask for all the time. Within the
+ * TTL entries are served as is. After that they are revalidated upstream with If-None-Match / If-Modified-Since:
+ * in the background while still in the stale-while-revalidate window, before serving otherwise. An entry that can't
+ * be revalidated because upstream fails is served stale.
+ * <p>
+ * Indy rewrites npm metadata for the proxy origin, and npm asks for abbreviated metadata with Accept, so both are
+ * part of the key and are the only client headers sent upstream.
+ */
+@ApplicationScoped
+public class MetadataCache
+{
+    private static final String MAVEN_META = "maven-metadata.xml";
+
+    private static final String NPM_META = "package.json";
+
+    private static final int MAX_BODY = 16 * 1024 * 1024;
+
+    private static final long DEFAULT_TTL = 60_000;
+
+    private static final long DEFAULT_STALE_WHILE_REVALIDATE = 300_000;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
+    @Inject
+    SidecarMetrics metrics;
+
+    private long ttl;
+
+    private long staleWhileRevalidate;
+
+    @PostConstruct
+    void init()
+    {
+        ttl = resolveTimeout( sidecarConfig.metadataCacheTtl, DEFAULT_TTL );
+        staleWhileRevalidate =
+                        resolveTimeout( sidecarConfig.metadataCacheStaleWhileRevalidate, DEFAULT_STALE_WHILE_REVALIDATE );
+        metrics.gauge( "metadata.cache.entries", entries::size );
+    }
+
+    public boolean isCacheable( String path )
+    {
+        return sidecarConfig.metadataCacheEnabled && ( path.endsWith( MAVEN_META ) || path.endsWith( NPM_META ) );
+    }
+
+    /**
+     * @return a call answered from the cache when possible, using the client otherwise
+     */
+    public UpstreamCall get( String path, HttpServerRequest request, UpstreamClient client )
+    {
+        Map<String, String> headers = forwardedHeaders( request );
+        String key = path + headers;
+        return () -> {
+            Entry entry = entries.get( key );
+            if ( entry == null )
+            {
+                metrics.increment( "metadata.cache.miss" );
+                return fetch( key, path, headers, client, null );
+            }
+
+            long age = System.currentTimeMillis() - entry.fetchedAt;
+            if ( age < ttl )
+            {
+                metrics.increment( "metadata.cache.hit" );
+                return Uni.createFrom().item( entry.response );
+            }
+            if ( age < ttl + staleWhileRevalidate )
+            {
+                metrics.increment( "metadata.cache.stale" );
+                if ( entry.revalidating.compareAndSet( false, true ) )
+                {
+                    fetch( key, path, headers, client, entry ).subscribe()
+                                                              .with( MetadataCache::closeBody,
+                                                                     e -> logger.debug( "Revalidation failed: {}",
+                                                                                        path, e ) );
+                }
+                return Uni.createFrom().item( entry.response );
+            }
+            entry.revalidating.set( true );
+            return fetch( key, path, headers, client, entry );
+        };
+    }
+
+    /**
+     * @param stale the entry to revalidate, or null to fill a new one
+     */
+    private Uni<UpstreamResponse> fetch( String key, String path, Map<String, String> headers, UpstreamClient client,
+                                         Entry stale )
+    {
+        Map<String, String> requestHeaders = new HashMap<>( headers );
+        if ( stale != null )
+        {
+            metrics.increment( "metadata.cache.revalidate" );
+            String etag = stale.response.header( ETAG );
+            String lastModified = stale.response.header( LAST_MODIFIED );
+            if ( etag != null )
+            {
+                requestHeaders.put( IF_NONE_MATCH, etag );
+            }
+            if ( lastModified != null )
+            {
+                requestHeaders.put( IF_MODIFIED_SINCE, lastModified );
+            }
+        }
+
+        Uni<UpstreamResponse> ret = client.get( path, null, requestHeaders ).enqueue().onItem().transform( resp -> {
+            if ( stale != null && resp.code() == NOT_MODIFIED.getStatusCode() )
+            {
+                closeBody( resp );
+                metrics.increment( "metadata.cache.revalidate.not-modified" );
+                stale.fetchedAt = System.currentTimeMillis();
+                return stale.response;
+            }
+            if ( resp.code() == OK.getStatusCode() )
+            {
+                return store( key, resp );
+            }
+            if ( stale != null && resp.code() >= 500 )
+            {
+                closeBody( resp );
+                metrics.increment( "metadata.cache.stale-on-error" );
+                return stale.response;
+            }
+            if ( stale != null )
+            {
+                entries.remove( key, stale );
+            }
+            return resp;
+        } );
+
+        if ( stale == null )
+        {
+            return ret;
+        }
+        return ret.onFailure().recoverWithItem( e -> {
+            logger.warn( "Failed to revalidate {}, serving it stale: {}", path, e.toString() );
+            metrics.increment( "metadata.cache.stale-on-error" );
+            return stale.response;
+        } ).onTermination().invoke( () -> stale.revalidating.set( false ) );
+    }
+
+    /**
+     * Read the body into memory and keep it, unless it's too large; then it's passed on without being cached.
+     */
+    private UpstreamResponse store( String key, UpstreamResponse resp )
+    {
+        InputStream in = resp.bodyStream();
+        if ( in == null )
+        {
+            return resp;
+        }
+
+        byte[] head;
+        try
+        {
+            head = IOUtils.toByteArray( new BoundedInputStream( in, MAX_BODY + 1 ) );
+        }
+        catch ( IOException e )
+        {
+            IOUtils.closeQuietly( in, null );
+            throw new UncheckedIOException( e );
+        }
+
+        if ( head.length > MAX_BODY )
+        {
+            InputStream rest = new SequenceInputStream( new ByteArrayInputStream( head ), in );
+            return new UpstreamResponse()
+            {
+                @Override
+                public int code()
+                {
+                    return resp.code();
+                }
+
+                @Override
+                public String message()
+                {
+                    return resp.message();
+                }
+
+                @Override
+                public String header( String name )
+                {
+                    return resp.header( name );
+                }
+
+                @Override
+                public void forEachHeader( BiConsumer<String, String> consumer )
+                {
+                    resp.forEachHeader( consumer );
+                }
+
+                @Override
+                public InputStream bodyStream()
+                {
+                    return rest;
+                }
+            };
+        }
+
+        IOUtils.closeQuietly( in, null );
+        Entry entry = new Entry( new BufferedUpstreamResponse( resp, head ) );
+        entries.put( key, entry );
+        if ( entries.size() > sidecarConfig.metadataCacheMaxEntries )
+        {
+            entries.values()
+                   .stream()
+                   .min( Comparator.comparingLong( e -> e.fetchedAt ) )
+                   .ifPresent( oldest -> entries.values().remove( oldest ) );
+        }
+        return entry.response;
+    }
+
+    private Map<String, String> forwardedHeaders( HttpServerRequest request )
+    {
+        Map<String, String> headers = new TreeMap<>();
+        if ( request == null )
+        {
+            return headers;
+        }
+        String origin = request.getHeader( HEADER_PROXY_ORIGIN );
+        if ( origin == null )
+        {
+            origin = getProxyOrigin( request );
+        }
+        if ( origin != null )
+        {
+            headers.put( HEADER_PROXY_ORIGIN, origin );
+        }
+        String accept = request.getHeader( ACCEPT );
+        if ( accept != null )
+        {
+            headers.put( ACCEPT, accept );
+        }
+        return headers;
+    }
+
+    /**
+     * Close the body of a response that is not passed on.
+     */
+    private static void closeBody( UpstreamResponse resp )
+    {
+        InputStream in = resp.bodyStream();
+        if ( in != null )
+        {
+            IOUtils.closeQuietly( in, null );
+        }
+    }
+
+    private static final class Entry
+    {
+        final BufferedUpstreamResponse response;
+
+        final AtomicBoolean revalidating = new AtomicBoolean();
+
+        volatile long fetchedAt = System.currentTimeMillis();
+
+        Entry( BufferedUpstreamResponse response )
+        {
+            this.response = response;
+        }
+    }
+}
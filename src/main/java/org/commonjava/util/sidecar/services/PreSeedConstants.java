@@ -23,10 +23,17 @@ public class PreSeedConstants
     // Vert.x event types
     public static final String EVENT_PROXY_CONFIG_CHANGE = "proxy-config-change";
 
+    // the local repository is pre-seeded and indexed
+    public static final String EVENT_LOCAL_REPO_READY = "local-repo-ready";
+
     // Auto generated, ignore such upstream headers
     public static final List<String> FORBIDDEN_HEADERS =
                     Arrays.asList( "content-length", "connection", "transfer-encoding" );
 
+    public static final String HEADER_PROXY_ORIGIN = "proxy-origin";
+
+    public static final String HEADER_PROXY_TRACE_ID = "Proxy-Trace-Id";
+
     public static final String CONTENT_REST_BASE_PATH = "api/content";
 
     public static final String DEFAULT_REPO_PATH = System.getProperty( "user.home" ) + "/preSeedRepo";
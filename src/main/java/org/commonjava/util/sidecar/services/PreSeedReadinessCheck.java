@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+/**
+ * Not ready while the build archive is being unpacked into the local repository, so builds are only routed here once
+ * their content can be served locally.
+ */
+@Readiness
+@ApplicationScoped
+public class PreSeedReadinessCheck
+                implements HealthCheck
+{
+    @Inject
+    ArchiveRetrieveService archiveService;
+
+    @Inject
+    SidecarMetrics metrics;
+
+    @Override
+    public HealthCheckResponse call()
+    {
+        return HealthCheckResponse.named( "pre-seed" )
+                                  .status( archiveService.isReady() )
+                                  .withData( "entries", metrics.get( "preseed.entries" ) )
+                                  .withData( "bytes", metrics.get( "preseed.bytes" ) )
+                                  .build();
+    }
+}
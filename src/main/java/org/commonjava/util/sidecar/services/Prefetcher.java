@@ -0,0 +1,276 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.quarkus.vertx.ConsumeEvent;
+import io.vertx.core.http.HttpMethod;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.commonjava.util.sidecar.util.UpstreamCall;
+import org.commonjava.util.sidecar.util.UpstreamResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static javax.ws.rs.core.Response.Status.OK;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.CONTENT_REST_BASE_PATH;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.EVENT_LOCAL_REPO_READY;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.FOLO_BUILD;
+import static org.commonjava.util.sidecar.util.SidecarUtils.normalizePathAnd;
+
+/**
+ * Fetches what the previous build downloaded but the local repository doesn't have, e.g. because it was missing from
+ * the build archive, so the build finds it locally instead of waiting for upstream. Starts once the local repository
+ * is ready and fetches on a small pool, poms first since they are resolved before their jars, then small files first.
+ * Fetches go through {@link SingleFlight}, so a request arriving while its path is being fetched shares the transfer.
+ * Paths whose local content is quarantined later, see {@link IntegrityVerifier}, are fetched again, once.
+ * <p>
+ * The upstream time of each fetched path counts as saved when the path is served locally later.
+ */
+@ApplicationScoped
+public class Prefetcher
+{
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis( 5 );
+
+    private static final Duration FETCH_TIMEOUT = Duration.ofMinutes( 10 );
+
+    private static final String MAVEN_META = "maven-metadata.xml";
+
+    private static final String NPM_META = "package.json";
+
+    private static final Comparator<HistoricalEntryDTO> PRIORITY =
+                    Comparator.comparing( ( HistoricalEntryDTO e ) -> !e.getPath().endsWith( ".pom" ) )
+                              .thenComparingLong( e -> e.getSize() == null ? Long.MAX_VALUE : e.getSize() );
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Map<String, Long> fetchTimes = new ConcurrentHashMap<>(); // path -> upstream time, until served
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong lastProgress = new AtomicLong();
+
+    private final Set<String> refetched = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
+    @Inject
+    SidecarMetrics metrics;
+
+    @Inject
+    ReportService reportService;
+
+    @Inject
+    ArchiveRetrieveService archiveService;
+
+    @Inject
+    Classifier classifier;
+
+    @Inject
+    SingleFlight singleFlight;
+
+    @Inject
+    IntegrityVerifier verifier;
+
+    private ExecutorService pool; // kept once started, for paths quarantined later
+
+    @ConsumeEvent( value = EVENT_LOCAL_REPO_READY, blocking = true )
+    void onLocalRepoReady( String message )
+    {
+        start();
+    }
+
+    synchronized void start()
+    {
+        if ( !sidecarConfig.prefetchEnabled || pool != null )
+        {
+            return;
+        }
+        pool = Executors.newFixedThreadPool( Math.max( 1, sidecarConfig.prefetchConcurrency ), r -> {
+            Thread t = new Thread( r, "prefetch" );
+            t.setDaemon( true );
+            return t;
+        } );
+
+        List<HistoricalEntryDTO> missing = reportService.getHistoricalPaths()
+                                                        .stream()
+                                                        .map( reportService::getHistoricalEntry )
+                                                        .filter( Objects::nonNull )
+                                                        .filter( this::isMissing )
+                                                        .sorted( PRIORITY )
+                                                        .collect( Collectors.toList() );
+        if ( missing.isEmpty() )
+        {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        logger.info( "Prefetching {} paths missing from the local repository", missing.size() );
+        pending.set( missing.size() );
+        lastProgress.set( start );
+        metrics.gauge( "prefetch.pending", pending::get );
+        metrics.gauge( "prefetch.hit.ratio", this::hitRatio );
+        for ( HistoricalEntryDTO entry : missing )
+        {
+            pool.execute( () -> {
+                try
+                {
+                    fetch( entry );
+                }
+                finally
+                {
+                    progress( pending.decrementAndGet(), missing.size(), start );
+                }
+            } );
+        }
+    }
+
+    /**
+     * Fetch a path again whose local content was quarantined. Before the prefetch started it is left to that, as the
+     * path is missing now; a path quarantined again is served from upstream.
+     */
+    public synchronized void refetch( String path )
+    {
+        if ( pool == null || pool.isShutdown() || !refetched.add( normalize( path ) ) )
+        {
+            return;
+        }
+        HistoricalEntryDTO entry = reportService.getHistoricalEntry( path );
+        if ( entry != null && isMissing( entry ) )
+        {
+            logger.info( "Prefetching {} again, its local content was quarantined", path );
+            pool.execute( () -> fetch( entry ) );
+        }
+    }
+
+    @PreDestroy
+    synchronized void destroy()
+    {
+        if ( pool != null )
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Count the first local hit of a prefetched path.
+     */
+    @ConsumeEvent( value = FOLO_BUILD )
+    void onServed( String path )
+    {
+        Long saved = fetchTimes.remove( normalize( path ) );
+        if ( saved != null )
+        {
+            metrics.increment( "prefetch.hit" );
+            metrics.add( "prefetch.saved.ms", saved );
+        }
+    }
+
+    private boolean isMissing( HistoricalEntryDTO entry )
+    {
+        String path = entry.getPath();
+        return entry.getStoreKey() != null && path != null && !path.endsWith( MAVEN_META ) && !path.endsWith(
+                        NPM_META ) && !archiveService.shouldProxy( path ) && !archiveService.isAvailableLocally(
+                        path );
+    }
+
+    private void fetch( HistoricalEntryDTO entry )
+    {
+        String path = normalize( entry.getPath() );
+        long start = System.currentTimeMillis();
+        try
+        {
+            UpstreamCall call = normalizePathAnd( CONTENT_REST_BASE_PATH + entry.getStorePath() + path,
+                                                  this::upstreamCall );
+            UpstreamResponse resp = call.enqueue().await().atMost( FETCH_TIMEOUT );
+            try (InputStream in = resp.bodyStream())
+            {
+                if ( resp.code() != OK.getStatusCode() || in == null )
+                {
+                    logger.debug( "Failed to prefetch {}: {} {}", path, resp.code(), resp.message() );
+                    metrics.increment( "prefetch.failed" );
+                    return;
+                }
+                long size = archiveService.storeLocally( path, in );
+                verifier.forget( path ); // content verified before, e.g. quarantined, is verified again
+                fetchTimes.put( path, System.currentTimeMillis() - start );
+                metrics.increment( "prefetch.fetched" );
+                metrics.add( "prefetch.bytes", size );
+            }
+        }
+        catch ( Exception e )
+        {
+            logger.warn( "Failed to prefetch {}: {}", path, e.toString() );
+            metrics.increment( "prefetch.failed" );
+        }
+    }
+
+    private UpstreamCall upstreamCall( String path ) throws Exception
+    {
+        return classifier.classifyAnd( path, HttpMethod.GET, ( client, service ) -> {
+            return singleFlight.get( path, () -> client.get( path, null ) );
+        } );
+    }
+
+    private void progress( int remaining, int total, long start )
+    {
+        long now = System.currentTimeMillis();
+        if ( remaining == 0 )
+        {
+            logger.info( "Prefetched {} of {} paths, {} bytes in {} ms", metrics.get( "prefetch.fetched" ), total,
+                         metrics.get( "prefetch.bytes" ), now - start );
+            return;
+        }
+        long last = lastProgress.get();
+        if ( now - last > PROGRESS_INTERVAL && lastProgress.compareAndSet( last, now ) )
+        {
+            logger.info( "Prefetching, {} of {} paths left, {} fetched, {} failed", remaining, total,
+                         metrics.get( "prefetch.fetched" ), metrics.get( "prefetch.failed" ) );
+        }
+    }
+
+    /**
+     * @return percentage of the prefetched paths that were asked for since
+     */
+    private long hitRatio()
+    {
+        long fetched = metrics.get( "prefetch.fetched" );
+        return fetched == 0 ? 0 : metrics.get( "prefetch.hit" ) * 100 / fetched;
+    }
+
+    private static String normalize( String path )
+    {
+        return path.startsWith( "/" ) ? path : "/" + path;
+    }
+}
@@ -0,0 +1,482 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import io.quarkus.scheduler.Scheduled;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.util.DigestingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_REPO_PATH;
+
+/**
+ * Read-through disk cache for proxied content that never changes once published, e.g. release jars, poms, npm
+ * tarballs and their checksums. Bodies are spooled while they stream to the client and only become visible once they
+ * were received completely. The index is kept in memory and flushed to 'index.json' in the cache directory, so it
+ * survives restarts. When the cache grows over its size cap, least recently (or least frequently) used entries are
+ * evicted down to 90% of the cap.
+ */
+@ApplicationScoped
+public class ProxyCache
+{
+    public static final String CACHE_DIR = ".proxy-cache";
+
+    private static final String INDEX_FILE = "index.json";
+
+    private static final String TMP_DIR = ".tmp";
+
+    private static final Set<String> IMMUTABLE_EXTENSIONS =
+                    Set.of( "jar", "pom", "war", "ear", "aar", "zip", "tgz", "module", "md5", "sha1", "sha256",
+                            "sha512", "asc" );
+
+    private static final Set<String> CHECKSUM_EXTENSIONS = Set.of( "md5", "sha1", "sha256", "sha512", "asc" );
+
+    private static final Set<String> METADATA_FILES = Set.of( "maven-metadata.xml", "package.json" );
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+
+    private final Set<String> spooling = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong totalSize = new AtomicLong();
+
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    SidecarMetrics metrics;
+
+    private File baseDir;
+
+    private File tmpDir;
+
+    private long maxSize;
+
+    private Comparator<Entry> evictionOrder;
+
+    @PostConstruct
+    void init()
+    {
+        if ( !sidecarConfig.proxyCacheEnabled )
+        {
+            return;
+        }
+
+        baseDir = new File( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ), CACHE_DIR );
+        tmpDir = new File( baseDir, TMP_DIR );
+        maxSize = sidecarConfig.proxyCacheMaxSizeMb * 1024 * 1024;
+        Comparator<Entry> byAccess = Comparator.comparingLong( e -> e.lastAccess );
+        evictionOrder = "lfu".equalsIgnoreCase( sidecarConfig.proxyCacheEviction ) ?
+                        Comparator.<Entry>comparingLong( Entry::getHits ).thenComparing( byAccess ) :
+                        byAccess;
+
+        try
+        {
+            FileUtils.deleteDirectory( tmpDir ); // partial spools of a previous run
+            Files.createDirectories( tmpDir.toPath() );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to prepare proxy cache dir " + baseDir + ", cache disabled", e );
+            baseDir = null;
+            return;
+        }
+
+        loadIndex();
+        metrics.gauge( "proxy.cache.size", totalSize::get );
+        metrics.gauge( "proxy.cache.entries", index::size );
+        logger.info( "Proxy cache {}, entries: {}, size: {}, max: {}, eviction: {}", baseDir, index.size(),
+                     totalSize.get(), maxSize, sidecarConfig.proxyCacheEviction );
+    }
+
+    @PreDestroy
+    void destroy()
+    {
+        flushIndex();
+    }
+
+    public boolean isEnabled()
+    {
+        return baseDir != null;
+    }
+
+    /**
+     * Release artifacts only; snapshots and metadata change upstream, and so do the checksums and signatures of
+     * metadata.
+     */
+    public boolean isCacheable( String path )
+    {
+        if ( !isEnabled() || path.contains( "-SNAPSHOT" ) )
+        {
+            return false;
+        }
+        String extension = FilenameUtils.getExtension( path ).toLowerCase();
+        if ( !IMMUTABLE_EXTENSIONS.contains( extension ) )
+        {
+            return false;
+        }
+        String name = FilenameUtils.getName( path );
+        while ( CHECKSUM_EXTENSIONS.contains( extension ) )
+        {
+            name = FilenameUtils.removeExtension( name );
+            extension = FilenameUtils.getExtension( name ).toLowerCase();
+        }
+        return !METADATA_FILES.contains( name );
+    }
+
+    /**
+     * @return the entry for the path, or null on a miss. A hit counts as an access for eviction.
+     */
+    public Entry get( String path )
+    {
+        Entry entry = index.get( path );
+        if ( entry == null )
+        {
+            metrics.increment( "proxy.cache.miss" );
+            return null;
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        entry.hits.increment();
+        dirty.set( true );
+        metrics.increment( "proxy.cache.hit" );
+        return entry;
+    }
+
+    public File fileOf( Entry entry )
+    {
+        return new File( baseDir, entry.path );
+    }
+
+    /**
+     * Drop an entry whose file went missing.
+     */
+    public void remove( String path )
+    {
+        Entry entry = index.remove( path );
+        if ( entry != null )
+        {
+            totalSize.addAndGet( -entry.size );
+            dirty.set( true );
+            fileOf( entry ).delete();
+        }
+    }
+
+    /**
+     * @return a spool for the body of a 200 response, or null if the path can't be stored under the cache directory
+     * or is already being spooled by another request
+     */
+    public Spool spool( String path, String contentType, String origin )
+    {
+        File target = new File( baseDir, path );
+        if ( !target.toPath().normalize().startsWith( baseDir.toPath() ) || !spooling.add( path ) )
+        {
+            return null;
+        }
+        try
+        {
+            File tmp = Files.createTempFile( tmpDir.toPath(), "spool-", ".bin" ).toFile();
+            return new Spool( path, contentType, origin, target, tmp );
+        }
+        catch ( IOException e )
+        {
+            spooling.remove( path );
+            logger.warn( "Failed to create spool file for " + path, e );
+            return null;
+        }
+    }
+
+    @Scheduled( every = "30s" )
+    void flushIndex()
+    {
+        if ( !isEnabled() || !dirty.getAndSet( false ) )
+        {
+            return;
+        }
+
+        File indexFile = new File( baseDir, INDEX_FILE );
+        try
+        {
+            File tmp = Files.createTempFile( tmpDir.toPath(), "index-", ".json" ).toFile();
+            objectMapper.writeValue( tmp, new ArrayList<>( index.values() ) );
+            Files.move( tmp.toPath(), indexFile.toPath(), ATOMIC_MOVE, REPLACE_EXISTING );
+        }
+        catch ( IOException e )
+        {
+            dirty.set( true );
+            logger.warn( "Failed to write proxy cache index " + indexFile, e );
+        }
+    }
+
+    private void loadIndex()
+    {
+        File indexFile = new File( baseDir, INDEX_FILE );
+        if ( !indexFile.isFile() )
+        {
+            return;
+        }
+        try
+        {
+            List<Entry> entries = objectMapper.readValue( indexFile, new TypeReference<List<Entry>>()
+            {
+            } );
+            for ( Entry entry : entries )
+            {
+                File file = fileOf( entry );
+                if ( !isCacheable( entry.path ) )
+                {
+                    file.delete(); // cached before the rules changed
+                }
+                else if ( file.isFile() && file.length() == entry.size )
+                {
+                    index.put( entry.path, entry );
+                    totalSize.addAndGet( entry.size );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to read proxy cache index " + indexFile + ", starting empty", e );
+        }
+    }
+
+    private synchronized void evictIfNeeded()
+    {
+        if ( totalSize.get() <= maxSize )
+        {
+            return;
+        }
+
+        long target = maxSize / 10 * 9;
+        List<Entry> candidates = new ArrayList<>( index.values() );
+        candidates.sort( evictionOrder );
+        for ( Entry entry : candidates )
+        {
+            if ( totalSize.get() <= target )
+            {
+                break;
+            }
+            if ( index.remove( entry.path, entry ) )
+            {
+                totalSize.addAndGet( -entry.size );
+                fileOf( entry ).delete();
+                metrics.increment( "proxy.cache.evicted" );
+            }
+        }
+        dirty.set( true );
+    }
+
+    private void store( Entry entry, File tmp, File target ) throws IOException
+    {
+        Files.createDirectories( target.getParentFile().toPath() );
+        Files.move( tmp.toPath(), target.toPath(), ATOMIC_MOVE, REPLACE_EXISTING );
+        Entry old = index.put( entry.path, entry );
+        totalSize.addAndGet( entry.size - ( old == null ? 0 : old.size ) );
+        dirty.set( true );
+        evictIfNeeded();
+    }
+
+    @RegisterForReflection
+    public static class Entry
+    {
+        public String path;
+
+        public long size;
+
+        public String md5;
+
+        public String sha1;
+
+        public String sha256;
+
+        public String contentType;
+
+        public String origin; // indy-origin header of the upstream response
+
+        public volatile long lastAccess;
+
+        private final LongAdder hits = new LongAdder(); // concurrent hits of one entry must all count for LFU
+
+        public long getHits()
+        {
+            return hits.sum();
+        }
+
+        public void setHits( long hits )
+        {
+            this.hits.reset();
+            this.hits.add( hits );
+        }
+    }
+
+    /**
+     * Receives a copy of the body as it goes to the client. Failing to write the copy only drops it from the cache,
+     * it never fails the response.
+     */
+    public final class Spool
+                    extends OutputStream
+    {
+        private final Entry entry = new Entry();
+
+        private final File target;
+
+        private final File tmp;
+
+        private OutputStream out;
+
+        private boolean failed;
+
+        private boolean done;
+
+        private Spool( String path, String contentType, String origin, File target, File tmp ) throws IOException
+        {
+            entry.path = path;
+            entry.contentType = contentType;
+            entry.origin = origin;
+            this.target = target;
+            this.tmp = tmp;
+            this.out = new BufferedOutputStream( new FileOutputStream( tmp ) );
+        }
+
+        @Override
+        public void write( int b )
+        {
+            if ( failed )
+            {
+                return;
+            }
+            try
+            {
+                out.write( b );
+            }
+            catch ( IOException e )
+            {
+                fail( e );
+            }
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+        {
+            if ( failed )
+            {
+                return;
+            }
+            try
+            {
+                out.write( b, off, len );
+            }
+            catch ( IOException e )
+            {
+                fail( e );
+            }
+        }
+
+        /**
+         * Publish the spooled body, with the digests of the copy that went to the client.
+         */
+        public void commit( DigestingOutputStream digest )
+        {
+            if ( done )
+            {
+                return;
+            }
+            done = true;
+            spooling.remove( entry.path );
+            try
+            {
+                out.close();
+                if ( failed )
+                {
+                    Files.deleteIfExists( tmp.toPath() );
+                    return;
+                }
+                entry.size = digest.getByteCount();
+                entry.md5 = digest.getMd5();
+                entry.sha1 = digest.getSha1();
+                entry.sha256 = digest.getSha256();
+                entry.lastAccess = System.currentTimeMillis();
+                store( entry, tmp, target );
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to cache " + entry.path, e );
+                tmp.delete();
+            }
+        }
+
+        /**
+         * Drop the spooled body, e.g. because the transfer was aborted. Does nothing after commit.
+         */
+        public void abort()
+        {
+            if ( done )
+            {
+                return;
+            }
+            done = true;
+            spooling.remove( entry.path );
+            try
+            {
+                out.close();
+            }
+            catch ( IOException e )
+            {
+                logger.trace( "Failed to close spool " + tmp, e );
+            }
+            tmp.delete();
+        }
+
+        private void fail( IOException e )
+        {
+            failed = true;
+            logger.warn( "Failed to spool " + entry.path + " to the proxy cache", e );
+        }
+    }
+}
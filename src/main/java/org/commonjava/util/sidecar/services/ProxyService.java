@@ -18,9 +18,9 @@ package org.commonjava.util.sidecar.services;
 import io.smallrye.mutiny.Uni;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
-import kotlin.Pair;
 import org.apache.commons.io.IOUtils;
 import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.commonjava.util.sidecar.config.SidecarConfig;
 import org.commonjava.util.sidecar.interceptor.ExceptionHandler;
 import org.commonjava.util.sidecar.model.AccessChannel;
 import org.commonjava.util.sidecar.model.StoreEffect;
@@ -28,24 +28,33 @@ import org.commonjava.util.sidecar.model.StoreKey;
 import org.commonjava.util.sidecar.model.StoreType;
 import org.commonjava.util.sidecar.model.TrackedContentEntry;
 import org.commonjava.util.sidecar.model.TrackingKey;
+import org.commonjava.util.sidecar.util.DigestingOutputStream;
 import org.commonjava.util.sidecar.util.OtelAdapter;
 import org.commonjava.util.sidecar.util.ProxyStreamingOutput;
+import org.commonjava.util.sidecar.util.UpstreamCall;
+import org.commonjava.util.sidecar.util.UpstreamResponse;
 import org.commonjava.util.sidecar.util.UrlUtils;
-import org.commonjava.util.sidecar.util.WebClientAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.core.Response;
-import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.util.function.Consumer;
 
+import static io.netty.handler.codec.http.HttpHeaderNames.RANGE;
 import static io.vertx.core.http.HttpMethod.HEAD;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_TYPE;
 import static javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR;
+import static javax.ws.rs.core.Response.Status.OK;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.CONTENT_REST_BASE_PATH;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.FORBIDDEN_HEADERS;
 import static org.commonjava.util.sidecar.util.SidecarUtils.getBuildConfigId;
@@ -55,6 +64,8 @@ import static org.commonjava.util.sidecar.util.SidecarUtils.normalizePathAnd;
 @ExceptionHandler
 public class ProxyService
 {
+    private static final String INDY_ORIGIN = "indy-origin";
+
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
     @Inject
@@ -69,6 +80,18 @@ public class ProxyService
     @Inject
     ReportService reportService;
 
+    @Inject
+    ProxyCache proxyCache;
+
+    @Inject
+    SingleFlight singleFlight;
+
+    @Inject
+    MetadataCache metadataCache;
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
     public Uni<Response> doHead( String packageType, String type, String name, String path, HttpServerRequest request )
                     throws Exception
     {
@@ -79,7 +102,7 @@ public class ProxyService
     public Uni<Response> doHead( String path, HttpServerRequest request ) throws Exception
     {
         return normalizePathAnd( path, p -> classifier.classifyAnd( p, request, ( client, service ) -> wrapAsyncCall(
-                        client.head( p, request ).call(), request.method() ) ) );
+                        client.head( p, request ), request.method() ) ) );
     }
 
     public Uni<Response> doGet( String packageType, String type, String name, String path, HttpServerRequest request )
@@ -100,14 +123,76 @@ public class ProxyService
                                              (long) 0, "", "", "" );
         }
         TrackedContentEntry finalEntry = entry;
-        return normalizePathAnd( path, p -> classifier.classifyAnd( p, request, ( client, service ) -> wrapAsyncCall(
-                        client.get( p, request ).call(), request.method(), finalEntry ) ) );
+        return normalizePathAnd( path, p -> {
+            String cachePath = null;
+            if ( proxyCache.isCacheable( p ) && request.getHeader( RANGE ) == null )
+            {
+                Response cached = getCached( p, finalEntry );
+                if ( cached != null )
+                {
+                    return Uni.createFrom().item( cached );
+                }
+                cachePath = p;
+            }
+            if ( metadataCache.isCacheable( p ) && request.getHeader( RANGE ) == null )
+            {
+                return classifier.classifyAnd( p, request, ( client, service ) -> wrapAsyncCall(
+                                metadataCache.get( p, request, client ), request.method(), finalEntry ) );
+            }
+            String finalCachePath = cachePath;
+            return classifier.classifyAnd( p, request, ( client, service ) -> wrapAsyncCall(
+                            singleFlight.get( p, request, () -> client.get( p, request ) ), request.method(),
+                            finalEntry, finalCachePath ) );
+        } );
+    }
+
+    /**
+     * @return the response for a proxy cache hit, or null on a miss
+     */
+    private Response getCached( String path, TrackedContentEntry entry )
+    {
+        ProxyCache.Entry cached = proxyCache.get( path );
+        if ( cached == null )
+        {
+            return null;
+        }
+
+        InputStream in;
+        try
+        {
+            in = new FileInputStream( proxyCache.fileOf( cached ) );
+        }
+        catch ( FileNotFoundException e )
+        {
+            logger.warn( "Proxy cache file missing, path: {}", path );
+            proxyCache.remove( path );
+            return null;
+        }
+
+        logger.debug( "Proxy cache hit, path: {}", path );
+        if ( entry != null && sidecarConfig.proxyCacheTrackHits )
+        {
+            setOriginUrl( entry, cached.origin );
+            entry.setSize( cached.size );
+            entry.setMd5( cached.md5 );
+            entry.setSha1( cached.sha1 );
+            entry.setSha256( cached.sha256 );
+            reportService.appendDownload( entry );
+        }
+
+        Response.ResponseBuilder builder = Response.ok( new ProxyStreamingOutput( in, otel ) )
+                                                   .header( CONTENT_LENGTH, cached.size );
+        if ( cached.contentType != null )
+        {
+            builder.header( CONTENT_TYPE, cached.contentType );
+        }
+        return builder.build();
     }
 
     public Uni<Response> doPost( String path, InputStream is, HttpServerRequest request ) throws Exception
     {
         return normalizePathAnd( path, p -> classifier.classifyAnd( p, request, ( client, service ) -> wrapAsyncCall(
-                        client.post( p, is, request ).call(), request.method() ) ) );
+                        client.post( p, is, request ), request.method() ) ) );
     }
 
     public Uni<Response> doPut( String packageType, String type, String name, String path, InputStream is,
@@ -119,38 +204,75 @@ public class ProxyService
 
     public Uni<Response> doPut( String path, InputStream is, HttpServerRequest request ) throws Exception
     {
-        if ( getBuildConfigId() != null )
+        if ( getBuildConfigId() == null )
         {
-            byte[] bytes = IOUtils.toByteArray( is );
-            TrackedContentEntry entry =
-                            new TrackedContentEntry( new TrackingKey( getBuildConfigId() ), generateStoreKey( path ),
-                                                     AccessChannel.NATIVE,
-                                                     "http://" + proxyConfiguration.getServices().iterator().next().host
-                                                                     + "/" + path, path, StoreEffect.UPLOAD,
-                                                     (long) bytes.length, "", "", "" );
-            updateMessageDigest( bytes, entry );
-            reportService.appendUpload( entry );
+            return normalizePathAnd( path, p -> classifier.classifyAnd( p, request,
+                                                                        ( client, service ) -> wrapAsyncCall(
+                                                                                        client.put( p, is, request ),
+                                                                                        request.method() ) ) );
+        }
+
+        // Spool the body once, hashing it on the way to disk. The spool file is then sent upstream as is.
+        File bodyFile = Files.createTempFile( "put-", ".bin" ).toFile();
+        TrackedContentEntry entry;
+        try (DigestingOutputStream dout = new DigestingOutputStream( new FileOutputStream( bodyFile ) ))
+        {
+            IOUtils.copy( is, dout );
+            entry = new TrackedContentEntry( new TrackingKey( getBuildConfigId() ), generateStoreKey( path ),
+                                             AccessChannel.NATIVE,
+                                             "http://" + proxyConfiguration.getServices().iterator().next().host
+                                                             + "/" + path, path, StoreEffect.UPLOAD,
+                                             dout.getByteCount(), dout.getMd5(), dout.getSha1(),
+                                             dout.getSha256() );
+        }
+        catch ( IOException e )
+        {
+            Files.deleteIfExists( bodyFile.toPath() );
+            return Uni.createFrom().item( handleProxyException( e ) );
+        }
+        reportService.appendUpload( entry );
+
+        try
+        {
+            return normalizePathAnd( path, p -> classifier.classifyAnd( p, request,
+                                                                        ( client, service ) -> wrapAsyncCall(
+                                                                                        client.put( p, bodyFile,
+                                                                                                    request ),
+                                                                                        request.method() ) ) );
+        }
+        catch ( Exception e )
+        {
+            Files.deleteIfExists( bodyFile.toPath() );
+            throw e;
         }
-        return normalizePathAnd( path, p -> classifier.classifyAnd( p, request, ( client, service ) -> wrapAsyncCall(
-                        client.put( p, is, request ).call(), request.method() ) ) );
     }
 
     public Uni<Response> doDelete( String path, HttpServerRequest request ) throws Exception
     {
         return normalizePathAnd( path, p -> classifier.classifyAnd( p, request, ( client, service ) -> wrapAsyncCall(
-                        client.delete( p ).headersFrom( request ).call(), request.method() ) ) );
+                        client.delete( p, request ), request.method() ) ) );
     }
 
-    public Uni<Response> wrapAsyncCall( WebClientAdapter.CallAdapter asyncCall, HttpMethod method )
+    public Uni<Response> wrapAsyncCall( UpstreamCall asyncCall, HttpMethod method )
     {
         return wrapAsyncCall( asyncCall, method, null );
     }
 
-    public Uni<Response> wrapAsyncCall( WebClientAdapter.CallAdapter asyncCall, HttpMethod method,
+    public Uni<Response> wrapAsyncCall( UpstreamCall asyncCall, HttpMethod method,
                                         TrackedContentEntry entry )
     {
-        Uni<Response> ret =
-                        asyncCall.enqueue().onItem().transform( ( resp ) -> convertProxyResp( resp, method, entry ) );
+        return wrapAsyncCall( asyncCall, method, entry, null );
+    }
+
+    /**
+     * @param cachePath if given, a successful response body is also stored in the proxy cache under this path
+     */
+    public Uni<Response> wrapAsyncCall( UpstreamCall asyncCall, HttpMethod method, TrackedContentEntry entry,
+                                        String cachePath )
+    {
+        Uni<Response> ret = asyncCall.enqueue()
+                                     .onItem()
+                                     .transform( ( resp ) -> convertProxyResp( resp, method, entry, cachePath ) );
         return ret.onFailure().recoverWithItem( this::handleProxyException );
     }
 
@@ -168,68 +290,63 @@ public class ProxyService
      * Read status and headers from proxy resp and set them to direct response.
      * @param resp proxy resp
      */
-    private Response convertProxyResp( okhttp3.Response resp, HttpMethod method, TrackedContentEntry entry )
+    private Response convertProxyResp( UpstreamResponse resp, HttpMethod method, TrackedContentEntry entry,
+                                       String cachePath )
     {
         logger.debug( "Proxy resp: {} {}", resp.code(), resp.message() );
-        logger.trace( "Raw resp headers:\n{}", resp.headers() );
         Response.ResponseBuilder builder = Response.status( resp.code(), resp.message() );
-        resp.headers().forEach( header -> {
-            if ( isHeaderAllowed( header, method ) )
+        resp.forEachHeader( ( key, value ) -> {
+            if ( isHeaderAllowed( key, method ) )
             {
-                logger.debug( "Setting response header: {} = {}", header.getFirst(), header.getSecond() );
-                builder.header( header.getFirst(), header.getSecond() );
+                logger.debug( "Setting response header: {} = {}", key, value );
+                builder.header( key, value );
             }
         } );
-        if ( resp.body() != null && entry != null )
+        Consumer<DigestingOutputStream> digestConsumer = null;
+        if ( entry != null && resp.isSuccessful() )
         {
-            byte[] bytes = new byte[0];
-            try
-            {
-                bytes = resp.body().bytes();
-            }
-            catch ( IOException e )
-            {
-                logger.error( "Failed to read bytes from okhttp response", e );
-            }
-            entry.setSize( (long) bytes.length );
-            String[] headers = resp.header( "indy-origin" ).split( ":" );
-            entry.setOriginUrl( "http://" + proxyConfiguration.getServices().iterator().next().host + "/api/content/"
-                                                + headers[0] + "/" + headers[1] + "/" + headers[2] + entry.getPath() );
-            updateMessageDigest( bytes, entry );
-            reportService.appendDownload( entry );
+            setOriginUrl( entry, resp.header( INDY_ORIGIN ) );
+            digestConsumer = digest -> trackDownload( entry, digest );
+        }
+        ProxyCache.Spool spool = null;
+        if ( cachePath != null && resp.code() == OK.getStatusCode() )
+        {
+            spool = proxyCache.spool( cachePath, resp.header( CONTENT_TYPE ), resp.header( INDY_ORIGIN ) );
         }
-        builder.entity( new ProxyStreamingOutput( resp.body().byteStream(), otel ) );
+        builder.entity( new ProxyStreamingOutput( resp.bodyStream(), otel, digestConsumer, spool ) );
         return builder.build();
     }
 
-    private void updateMessageDigest( byte[] bytes, TrackedContentEntry entry )
+    private void setOriginUrl( TrackedContentEntry entry, String origin )
     {
-        MessageDigest message;
-        try
-        {
-            message = MessageDigest.getInstance( "MD5" );
-            message.update( bytes );
-            entry.setMd5( DatatypeConverter.printHexBinary( message.digest() ).toLowerCase() );
-            message = MessageDigest.getInstance( "SHA-1" );
-            message.update( bytes );
-            entry.setSha1( DatatypeConverter.printHexBinary( message.digest() ).toLowerCase() );
-            message = MessageDigest.getInstance( "SHA-256" );
-            message.update( bytes );
-            entry.setSha256( DatatypeConverter.printHexBinary( message.digest() ).toLowerCase() );
-        }
-        catch ( NoSuchAlgorithmException e )
+        if ( origin != null )
         {
-            logger.warn( "Bytes hash calculation failed for request" );
+            String[] headers = origin.split( ":" );
+            entry.setOriginUrl( "http://" + proxyConfiguration.getServices().iterator().next().host + "/api/content/"
+                                                + headers[0] + "/" + headers[1] + "/" + headers[2]
+                                                + entry.getPath() );
         }
     }
 
-    private boolean isHeaderAllowed( Pair<? extends String, ? extends String> header, HttpMethod method )
+    /**
+     * Called once the whole body went through to the client, so the size and checksums describe what was actually
+     * delivered.
+     */
+    private void trackDownload( TrackedContentEntry entry, DigestingOutputStream digest )
+    {
+        entry.setSize( digest.getByteCount() );
+        entry.setMd5( digest.getMd5() );
+        entry.setSha1( digest.getSha1() );
+        entry.setSha256( digest.getSha256() );
+        reportService.appendDownload( entry );
+    }
+
+    private boolean isHeaderAllowed( String key, HttpMethod method )
     {
         if ( method == HEAD )
         {
             return true;
         }
-        String key = header.getFirst();
         return !FORBIDDEN_HEADERS.contains( key.toLowerCase() );
     }
 
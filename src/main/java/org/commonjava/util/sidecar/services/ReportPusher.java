@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.scheduler.Scheduled;
+import io.vertx.core.http.HttpMethod;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.StoreEffect;
+import org.commonjava.util.sidecar.model.TrackedContent;
+import org.commonjava.util.sidecar.model.TrackedContentEntry;
+import org.commonjava.util.sidecar.model.TrackingKey;
+import org.commonjava.util.sidecar.util.UpstreamCall;
+import org.commonjava.util.sidecar.util.UpstreamResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static javax.ws.rs.core.HttpHeaders.CONTENT_TYPE;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static org.commonjava.util.sidecar.util.SidecarUtils.getBuildConfigId;
+import static org.commonjava.util.sidecar.util.SidecarUtils.normalizePathAnd;
+
+/**
+ * Sends the tracking records to the Indy report import while the build runs, at most 'report.push.batch-size' new
+ * records at a time. A batch is sent once the one before it was acknowledged; a batch that fails is kept and sent
+ * again first, after a backoff.
+ * <p>
+ * Indy's import replaces the record of the tracking id, so each push is the whole report acknowledged so far plus the
+ * batch, and Indy never holds less than what was pushed. For the same reason the final import still sends the whole
+ * report, and {@link #seal()}s the pusher first, so no push can replace that report afterwards.
+ */
+@ApplicationScoped
+public class ReportPusher
+{
+    public static final String IMPORT_PATH = "api/folo/admin/report/import";
+
+    private static final Duration PUSH_TIMEOUT = Duration.ofMinutes( 10 );
+
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis( 5 );
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Queue<TrackedContentEntry> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    // held while batches are sent, so sealing waits for the batch in flight
+    private final ReentrantLock pushLock = new ReentrantLock();
+
+    private volatile boolean sealed;
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
+    @Inject
+    SidecarMetrics metrics;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    Classifier classifier;
+
+    private List<TrackedContentEntry> acknowledged = new ArrayList<>();
+
+    private List<TrackedContentEntry> unacknowledged = new ArrayList<>();
+
+    private int failures;
+
+    long retryAt;
+
+    @PostConstruct
+    void init()
+    {
+        metrics.gauge( "report.push.pending", pendingCount::get );
+    }
+
+    public boolean isEnabled()
+    {
+        return sidecarConfig.reportPushEnabled;
+    }
+
+    public void offer( TrackedContentEntry entry )
+    {
+        if ( isEnabled() && !sealed )
+        {
+            pending.add( entry );
+            pendingCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Send the records offered so far, batch by batch. Skipped while a previous run is still sending or backing off.
+     */
+    @Scheduled( every = "5s" )
+    void push()
+    {
+        if ( isEnabled() && getBuildConfigId() != null )
+        {
+            pushPending();
+        }
+    }
+
+    void pushPending()
+    {
+        if ( !pushLock.tryLock() )
+        {
+            return;
+        }
+        try
+        {
+            if ( sealed || System.currentTimeMillis() < retryAt )
+            {
+                return;
+            }
+            // only what is there now, so a busy build doesn't keep the final import waiting
+            int batches = ( unacknowledged.size() + pendingCount.get() ) / batchSize() + 1;
+            for ( int i = 0; i < batches; i++ )
+            {
+                if ( !pushBatch() )
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            pushLock.unlock();
+        }
+    }
+
+    /**
+     * Stop pushing before the final import, until the report is cleared. Waits for a batch that is being sent.
+     */
+    public void seal()
+    {
+        pushLock.lock();
+        try
+        {
+            sealed = true;
+            acknowledged = new ArrayList<>();
+            unacknowledged = new ArrayList<>();
+            drain( new ArrayList<>(), Integer.MAX_VALUE );
+        }
+        finally
+        {
+            pushLock.unlock();
+        }
+    }
+
+    public boolean isSealed()
+    {
+        return sealed;
+    }
+
+    public void clear()
+    {
+        pushLock.lock();
+        try
+        {
+            acknowledged = new ArrayList<>();
+            unacknowledged = new ArrayList<>();
+            drain( new ArrayList<>(), Integer.MAX_VALUE );
+            failures = 0;
+            retryAt = 0;
+            sealed = false;
+        }
+        finally
+        {
+            pushLock.unlock();
+        }
+    }
+
+    /**
+     * @return whether the batch was acknowledged and the next one may follow
+     */
+    private boolean pushBatch()
+    {
+        if ( unacknowledged.isEmpty() )
+        {
+            drain( unacknowledged, batchSize() );
+            if ( unacknowledged.isEmpty() )
+            {
+                return false;
+            }
+        }
+
+        List<TrackedContentEntry> batch = unacknowledged;
+        File body = null;
+        try
+        {
+            body = write( batch );
+            File bodyFile = body;
+            UpstreamCall call = normalizePathAnd( IMPORT_PATH, p -> upstreamCall( p, bodyFile ) );
+            UpstreamResponse resp = call.enqueue().await().atMost( PUSH_TIMEOUT );
+            try (InputStream in = resp.bodyStream())
+            {
+                if ( resp.code() / 100 == 2 )
+                {
+                    acknowledged.addAll( batch );
+                    unacknowledged = new ArrayList<>();
+                    failures = 0;
+                    metrics.increment( "report.push.batches" );
+                    metrics.add( "report.push.entries", batch.size() );
+                    return true;
+                }
+                logger.warn( "Failed to push {} tracking records, status: {}", batch.size(), resp.code() );
+            }
+        }
+        catch ( Exception e )
+        {
+            logger.warn( "Failed to push {} tracking records: {}", batch.size(), e.toString() );
+            if ( body != null )
+            {
+                body.delete(); // in case the call was never made
+            }
+        }
+
+        metrics.increment( "report.push.failed" );
+        failures++;
+        retryAt = System.currentTimeMillis() + Math.min( 1000L << Math.min( failures, 20 ), MAX_BACKOFF );
+        return false;
+    }
+
+    private UpstreamCall upstreamCall( String path, File body ) throws Exception
+    {
+        return classifier.classifyAnd( path, HttpMethod.PUT,
+                                       ( client, service ) -> client.put( path, body, null,
+                                                                          Map.of( CONTENT_TYPE, APPLICATION_JSON ) ) );
+    }
+
+    /**
+     * @return a report of the acknowledged records and the batch
+     */
+    private TrackedContent reportOf( TrackingKey key, List<TrackedContentEntry> batch )
+    {
+        Set<TrackedContentEntry> uploads = new HashSet<>();
+        Set<TrackedContentEntry> downloads = new HashSet<>();
+        for ( List<TrackedContentEntry> entries : List.of( acknowledged, batch ) )
+        {
+            for ( TrackedContentEntry entry : entries )
+            {
+                ( entry.getEffect() == StoreEffect.UPLOAD ? uploads : downloads ).add( entry );
+            }
+        }
+        return new TrackedContent( key, uploads, downloads );
+    }
+
+    /**
+     * @return the report to push, in a temp file the client deletes once it's sent
+     */
+    private File write( List<TrackedContentEntry> batch ) throws IOException
+    {
+        File body = Files.createTempFile( "report-", ".json" ).toFile();
+        try
+        {
+            objectMapper.writeValue( body, reportOf( batch.get( 0 ).getTrackingKey(), batch ) );
+        }
+        catch ( IOException e )
+        {
+            Files.deleteIfExists( body.toPath() );
+            throw e;
+        }
+        return body;
+    }
+
+    private void drain( List<TrackedContentEntry> target, int max )
+    {
+        TrackedContentEntry entry;
+        while ( target.size() < max && ( entry = pending.poll() ) != null )
+        {
+            pendingCount.decrementAndGet();
+            target.add( entry );
+        }
+    }
+
+    private int batchSize()
+    {
+        return Math.max( 1, sidecarConfig.reportPushBatchSize );
+    }
+}
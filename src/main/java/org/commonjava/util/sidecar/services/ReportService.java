@@ -15,6 +15,7 @@
  */
 package org.commonjava.util.sidecar.services;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.quarkus.runtime.Startup;
 import io.quarkus.vertx.ConsumeEvent;
@@ -28,6 +29,7 @@ import org.commonjava.util.sidecar.model.TrackedContentEntry;
 import org.commonjava.util.sidecar.model.TrackingKey;
 import org.commonjava.util.sidecar.model.dto.HistoricalContentDTO;
 import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.commonjava.util.sidecar.util.TrackingReportCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,14 +37,22 @@ import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.core.Response;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import static javax.ws.rs.core.HttpHeaders.CONTENT_TYPE;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_REPO_PATH;
 import static org.commonjava.util.sidecar.services.PreSeedConstants.FOLO_BUILD;
 import static org.commonjava.util.sidecar.util.SidecarUtils.getBuildConfigId;
@@ -54,7 +64,7 @@ public class ReportService
 {
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final HashMap<String, HistoricalEntryDTO> historicalContentMap = new HashMap<>();
+    private volatile Map<String, HistoricalEntryDTO> historicalContentMap = new HashMap<>();
 
     @Inject
     ObjectMapper objectMapper;
@@ -68,10 +78,29 @@ public class ReportService
     @Inject
     ProxyService proxyService;
 
-    private TrackedContent trackedContent = new TrackedContent();
+    @Inject
+    TrackingJournal journal;
+
+    @Inject
+    ReportPusher pusher;
+
+    private volatile TrackedContent trackedContent = new TrackedContent();
 
     @PostConstruct
     void init()
+    {
+        reloadReport();
+        if ( getBuildConfigId() != null )
+        {
+            journal.replay( getBuildConfigId(), this::restore );
+        }
+        journal.start( this::getTrackedEntries );
+    }
+
+    /**
+     * Read the historical report of the build from the local repository again, e.g. after it was pre-seeded.
+     */
+    public void reloadReport()
     {
         loadReport( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ) );
     }
@@ -79,11 +108,36 @@ public class ReportService
     public void appendUpload( TrackedContentEntry upload )
     {
         this.trackedContent.appendUpload( upload );
+        journal.append( upload );
+        pusher.offer( upload );
     }
 
     public void appendDownload( TrackedContentEntry download )
     {
         this.trackedContent.appendDownload( download );
+        journal.append( download );
+        pusher.offer( download );
+    }
+
+    private void restore( TrackedContentEntry entry )
+    {
+        if ( entry.getEffect() == StoreEffect.UPLOAD )
+        {
+            trackedContent.appendUpload( entry );
+        }
+        else
+        {
+            trackedContent.appendDownload( entry );
+        }
+        pusher.offer( entry ); // whether it was pushed before the restart is not known
+    }
+
+    private Collection<TrackedContentEntry> getTrackedEntries()
+    {
+        TrackedContent content = trackedContent;
+        List<TrackedContentEntry> entries = new ArrayList<>( content.getUploads() );
+        entries.addAll( content.getDownloads() );
+        return entries;
     }
 
     public TrackedContent getTrackedContent()
@@ -91,6 +145,28 @@ public class ReportService
         return trackedContent;
     }
 
+    /**
+     * @param path content path, with or without the leading '/'
+     * @return what the previous build recorded for this path, or null if it wasn't part of that build
+     */
+    public HistoricalEntryDTO getHistoricalEntry( String path )
+    {
+        return historicalContentMap.get( path.startsWith( "/" ) ? path : "/" + path );
+    }
+
+    public int getHistoricalEntryCount()
+    {
+        return historicalContentMap.size();
+    }
+
+    /**
+     * @return the paths the previous build recorded, with the leading '/'
+     */
+    public Set<String> getHistoricalPaths()
+    {
+        return Collections.unmodifiableSet( historicalContentMap.keySet() );
+    }
+
     private void loadReport( String path )
     {
         if ( getBuildConfigId() != null )
@@ -108,10 +184,12 @@ public class ReportService
                 }
                 else
                 {
+                    Map<String, HistoricalEntryDTO> downloads = new HashMap<>();
                     for ( HistoricalEntryDTO download : content.getDownloads() )
                     {
-                        this.historicalContentMap.put( download.getPath(), download );
+                        downloads.put( download.getPath(), download );
                     }
+                    this.historicalContentMap = downloads;
                 }
             }
             catch ( IOException e )
@@ -124,31 +202,124 @@ public class ReportService
     @ConsumeEvent( value = FOLO_BUILD )
     private void logFoloDownload( String path )
     {
-        HistoricalEntryDTO entryDTO = historicalContentMap.get( path );
-        this.trackedContent.appendDownload(
-                        new TrackedContentEntry( new TrackingKey( getBuildConfigId() ), entryDTO.getStoreKey(),
-                                                 AccessChannel.NATIVE, entryDTO.getOriginUrl(), entryDTO.getPath(),
-                                                 StoreEffect.DOWNLOAD, entryDTO.getSize(), entryDTO.getMd5(),
-                                                 entryDTO.getSha1(), entryDTO.getSha256() ) );
+        HistoricalEntryDTO entryDTO = getHistoricalEntry( path );
+        if ( entryDTO == null )
+        {
+            logger.warn( "Served {} from the archive, but it is not in the historical report", path );
+            return;
+        }
+        appendDownload( new TrackedContentEntry( new TrackingKey( getBuildConfigId() ), entryDTO.getStoreKey(),
+                                                AccessChannel.NATIVE, entryDTO.getOriginUrl(), entryDTO.getPath(),
+                                                StoreEffect.DOWNLOAD, entryDTO.getSize(), entryDTO.getMd5(),
+                                                entryDTO.getSha1(), entryDTO.getSha256() ) );
     }
 
     public Uni<Response> importReport( final HttpServerRequest request ) throws Exception
     {
         //Change here when we decide indy import API
-        String path = "api/folo/admin/report/import";
+        String path = ReportPusher.IMPORT_PATH;
+
+        // the Content-Type of the request goes upstream with it, so it picks the form of the report
+        boolean binary = TrackingReportCodec.isCodecType( request.getHeader( CONTENT_TYPE ) );
+
+        // written once to the file the client sends (and re-sends on retry) anyway
+        File body = Files.createTempFile( "report-", ".json" ).toFile();
+        try (OutputStream out = new BufferedOutputStream( new FileOutputStream( body ) ))
+        {
+            writeImport( out, binary );
+        }
+        catch ( IOException e )
+        {
+            Files.deleteIfExists( body.toPath() );
+            throw e;
+        }
+        Uni<Response> response = normalizePathAnd( path, p -> classifier.classifyAnd( p, request,
+                        ( client, service ) -> proxyService.wrapAsyncCall( client.put( path, body, request ),
+                                                                           request.method() ) ) );
+        return response.onItem().invoke( this::imported );
+    }
 
-        ObjectMapper mapper = new ObjectMapper();
-        InputStream is = new ByteArrayInputStream( mapper.writeValueAsBytes( trackedContent ) );
-        return normalizePathAnd( path, p -> classifier.classifyAnd( p, request,
-                                                                    ( client, service ) -> proxyService.wrapAsyncCall(
-                                                                                    client.put( path, is, request )
-                                                                                          .call(),
-                                                                                    request.method() ) ) );
+    /**
+     * Once Indy has the report, the journal would only replay it into the next build of the configuration.
+     */
+    private void imported( Response response )
+    {
+        if ( response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL )
+        {
+            journal.finish();
+        }
+    }
+
+    /**
+     * Write the whole report for the import. Indy replaces the record of the build on import, so this is sent in full
+     * even if records were pushed during the build, and no push may follow it.
+     */
+    void writeImport( OutputStream out, boolean binary ) throws IOException
+    {
+        if ( pusher.isEnabled() )
+        {
+            pusher.seal();
+        }
+        if ( binary )
+        {
+            TrackingReportCodec.write( trackedContent.snapshot(), out );
+        }
+        else
+        {
+            writeReport( out, false );
+        }
+    }
+
+    /**
+     * Write a snapshot of the report entry by entry, so memory use only grows by the references to the entries.
+     *
+     * @param ndjson one entry per line, uploads and downloads told apart by their effect, instead of one JSON object
+     */
+    public void writeReport( OutputStream out, boolean ndjson ) throws IOException
+    {
+        TrackedContent content = trackedContent.snapshot();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator( out ))
+        {
+            generator.configure( JsonGenerator.Feature.AUTO_CLOSE_TARGET, false );
+            if ( ndjson )
+            {
+                writeLines( generator, content.uploads() );
+                writeLines( generator, content.downloads() );
+                return;
+            }
+            generator.writeStartObject();
+            generator.writeObjectField( "key", content.getKey() );
+            generator.writeArrayFieldStart( "uploads" );
+            for ( TrackedContentEntry entry : content.uploads() )
+            {
+                generator.writeObject( entry );
+            }
+            generator.writeEndArray();
+            generator.writeArrayFieldStart( "downloads" );
+            for ( TrackedContentEntry entry : content.downloads() )
+            {
+                generator.writeObject( entry );
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    private static void writeLines( JsonGenerator generator, Collection<TrackedContentEntry> entries )
+                    throws IOException
+    {
+        for ( TrackedContentEntry entry : entries )
+        {
+            generator.writeObject( entry );
+            generator.writeRaw( '\n' );
+        }
     }
 
     public void clearReport()
     {
         trackedContent = new TrackedContent();
+        journal.clear();
+        pusher.clear();
     }
 
 }
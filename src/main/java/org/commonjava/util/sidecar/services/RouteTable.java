@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable lookup of the service for a path and method, built once per proxy config load. Services are tried in the
+ * order given and the first whose path-pattern matches wins, as before. Patterns like '/api/.+' are matched through a
+ * prefix trie and plain strings by equality, so only real regular expressions are run with a precompiled
+ * {@link Pattern}.
+ */
+public final class RouteTable
+{
+    public static final RouteTable EMPTY = new RouteTable( Collections.emptyList() );
+
+    private static final char LINE_SEPARATOR = (char) 0x2028;
+
+    private static final char PARAGRAPH_SEPARATOR = (char) 0x2029;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Map<String, Routes> byMethod = new HashMap<>();
+
+    private final Routes anyMethod = new Routes();
+
+    public RouteTable( Collection<ServiceConfig> services )
+    {
+        int order = 0;
+        for ( ServiceConfig sv : services )
+        {
+            if ( sv.pathPattern == null )
+            {
+                continue;
+            }
+            Route route;
+            try
+            {
+                route = new Route( sv, order++ );
+            }
+            catch ( PatternSyntaxException e )
+            {
+                logger.error( "Skip service with invalid path-pattern: " + sv, e );
+                continue;
+            }
+            if ( sv.methods == null )
+            {
+                anyMethod.add( route );
+            }
+            else
+            {
+                for ( String m : sv.methods.split( "[^A-Z]+" ) )
+                {
+                    if ( !m.isEmpty() )
+                    {
+                        byMethod.computeIfAbsent( m, k -> new Routes() ).add( route );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the first service matching the path and method, or null
+     */
+    public ServiceConfig lookup( String path, String method )
+    {
+        Route best = anyMethod.lookup( path, null );
+        Routes routes = method == null ? null : byMethod.get( method );
+        if ( routes != null )
+        {
+            best = routes.lookup( path, best );
+        }
+        return best == null ? null : best.service;
+    }
+
+    private static final class Route
+    {
+        final ServiceConfig service;
+
+        final int order;
+
+        final String literal; // exact path, or the prefix in front of '.+' / '.*'
+
+        final int minSuffix; // -1: exact, 0: '.*', 1: '.+'
+
+        final Pattern pattern; // only when the pattern is not one of the literal forms
+
+        Route( ServiceConfig service, int order )
+        {
+            this.service = service;
+            this.order = order;
+
+            String p = service.pathPattern;
+            String head = p;
+            int suffix = -1;
+            if ( p.endsWith( ".+" ) || p.endsWith( ".*" ) )
+            {
+                head = p.substring( 0, p.length() - 2 );
+                suffix = p.endsWith( ".+" ) ? 1 : 0;
+            }
+
+            if ( isLiteral( head ) )
+            {
+                literal = head;
+                minSuffix = suffix;
+                pattern = null;
+            }
+            else
+            {
+                literal = null;
+                minSuffix = -1;
+                pattern = Pattern.compile( p );
+            }
+        }
+
+        boolean matchesSuffix( String path )
+        {
+            // '.' does not match line terminators
+            for ( int i = literal.length(); i < path.length(); i++ )
+            {
+                char c = path.charAt( i );
+                if ( c == '\n' || c == '\r' || c == '\u0085' || c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR )
+                {
+                    return false;
+                }
+            }
+            return path.length() - literal.length() >= minSuffix;
+        }
+
+        private static boolean isLiteral( String s )
+        {
+            for ( int i = 0; i < s.length(); i++ )
+            {
+                if ( "\\[](){}.*+?^$|".indexOf( s.charAt( i ) ) >= 0 )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Routes for one method key.
+     */
+    private static final class Routes
+    {
+        private final TrieNode prefixes = new TrieNode();
+
+        private final Map<String, Route> exact = new HashMap<>();
+
+        private final List<Route> regexes = new ArrayList<>();
+
+        void add( Route route )
+        {
+            if ( route.pattern != null )
+            {
+                regexes.add( route );
+            }
+            else if ( route.minSuffix < 0 )
+            {
+                exact.putIfAbsent( route.literal, route );
+            }
+            else
+            {
+                TrieNode node = prefixes;
+                for ( int i = 0; i < route.literal.length(); i++ )
+                {
+                    node = node.children.computeIfAbsent( route.literal.charAt( i ), k -> new TrieNode() );
+                }
+                node.routes.add( route );
+            }
+        }
+
+        /**
+         * @return the earliest of 'best' and the routes here that match
+         */
+        Route lookup( String path, Route best )
+        {
+            TrieNode node = prefixes;
+            int i = 0;
+            while ( node != null )
+            {
+                for ( Route r : node.routes )
+                {
+                    if ( ( best == null || r.order < best.order ) && r.matchesSuffix( path ) )
+                    {
+                        best = r;
+                    }
+                }
+                node = i < path.length() ? node.children.get( path.charAt( i++ ) ) : null;
+            }
+
+            Route r = exact.get( path );
+            if ( r != null && ( best == null || r.order < best.order ) )
+            {
+                best = r;
+            }
+
+            for ( Route rx : regexes )
+            {
+                if ( best != null && rx.order > best.order )
+                {
+                    break; // regexes are in config order
+                }
+                if ( rx.pattern.matcher( path ).matches() )
+                {
+                    return rx;
+                }
+            }
+            return best;
+        }
+    }
+
+    private static final class TrieNode
+    {
+        final Map<Character, TrieNode> children = new HashMap<>();
+
+        final List<Route> routes = new ArrayList<>( 1 );
+    }
+}
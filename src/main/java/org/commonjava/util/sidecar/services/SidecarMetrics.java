@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, max values and gauges of the sidecar, served as one JSON object by the metrics endpoint. Names are
+ * dotted, e.g. 'upstream.retry.count'.
+ */
+@ApplicationScoped
+public class SidecarMetrics
+{
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAccumulator> maxima = new ConcurrentHashMap<>();
+
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public void increment( String name )
+    {
+        add( name, 1 );
+    }
+
+    public void add( String name, long delta )
+    {
+        counters.computeIfAbsent( name, k -> new LongAdder() ).add( delta );
+    }
+
+    public void updateMax( String name, long value )
+    {
+        maxima.computeIfAbsent( name, k -> new LongAccumulator( Math::max, 0 ) ).accumulate( value );
+    }
+
+    /**
+     * Register a value that is read when the metrics are rendered. Registering the same name again replaces it.
+     */
+    public void gauge( String name, LongSupplier supplier )
+    {
+        gauges.put( name, supplier );
+    }
+
+    public void removeGauge( String name )
+    {
+        gauges.remove( name );
+    }
+
+    public long get( String name )
+    {
+        LongAdder counter = counters.get( name );
+        if ( counter != null )
+        {
+            return counter.sum();
+        }
+        LongAccumulator max = maxima.get( name );
+        if ( max != null )
+        {
+            return max.get();
+        }
+        LongSupplier gauge = gauges.get( name );
+        return gauge == null ? 0 : gauge.getAsLong();
+    }
+
+    public Map<String, Long> snapshot()
+    {
+        Map<String, Long> ret = new TreeMap<>();
+        counters.forEach( ( k, v ) -> ret.put( k, v.sum() ) );
+        maxima.forEach( ( k, v ) -> ret.put( k, v.get() ) );
+        gauges.forEach( ( k, v ) -> ret.put( k, v.getAsLong() ) );
+        return ret;
+    }
+}
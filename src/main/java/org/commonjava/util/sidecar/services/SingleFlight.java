@@ -0,0 +1,611 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.http.HttpServerRequest;
+import org.commonjava.util.sidecar.util.UpstreamCall;
+import org.commonjava.util.sidecar.util.UpstreamResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.IF_MATCH;
+import static io.netty.handler.codec.http.HttpHeaderNames.IF_MODIFIED_SINCE;
+import static io.netty.handler.codec.http.HttpHeaderNames.IF_NONE_MATCH;
+import static io.netty.handler.codec.http.HttpHeaderNames.IF_UNMODIFIED_SINCE;
+import static io.netty.handler.codec.http.HttpHeaderNames.RANGE;
+import static javax.ws.rs.core.Response.Status.OK;
+
+/**
+ * Coalesces concurrent GETs of the same path into one upstream call. The first request leads: its upstream body is
+ * copied to a spool file while it is read. Requests arriving while that transfer is running follow: they get the
+ * leader's status and headers and read the spool file as it grows. Only 200 responses are shared; for anything else,
+ * or if the leader fails before it has a response, followers make their own call. Range and conditional requests are
+ * not coalesced, as their response depends on more than the path.
+ */
+@ApplicationScoped
+public class SingleFlight
+{
+    // a follower gives up when the spool did not grow for this long, e.g. because the leader's body was never read
+    private static final long STALL_TIMEOUT = TimeUnit.MINUTES.toMillis( 5 );
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    // headers that make the response differ from the full body of the path
+    private static final List<CharSequence> UNSHARED_HEADERS =
+                    List.of( RANGE, IF_NONE_MATCH, IF_MODIFIED_SINCE, IF_MATCH, IF_UNMODIFIED_SINCE );
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    @Inject
+    SidecarMetrics metrics;
+
+    // how long a follower waits for the leader's response before it makes its own call
+    Duration followTimeout = Duration.ofMillis( STALL_TIMEOUT );
+
+    /**
+     * Like {@link #get(String, Supplier)}, but a Range or conditional request makes its own call.
+     */
+    public UpstreamCall get( String path, HttpServerRequest request, Supplier<UpstreamCall> upstream )
+    {
+        if ( request != null && UNSHARED_HEADERS.stream().anyMatch( h -> request.getHeader( h ) != null ) )
+        {
+            return upstream.get();
+        }
+        return get( path, upstream );
+    }
+
+    /**
+     * @param path normalized path, the coalescing key
+     * @param upstream makes the actual upstream call, for the leader or for a follower that can't share
+     */
+    public UpstreamCall get( String path, Supplier<UpstreamCall> upstream )
+    {
+        return () -> join( path, upstream );
+    }
+
+    /**
+     * Lead or follow the flight of the path, once the call is made, so a call that is built but never made doesn't
+     * hold up others.
+     */
+    private Uni<UpstreamResponse> join( String path, Supplier<UpstreamCall> upstream )
+    {
+        while ( true )
+        {
+            Flight flight = new Flight( path );
+            Flight existing = flights.putIfAbsent( path, flight );
+            if ( existing == null )
+            {
+                return flight.lead( upstream.get() );
+            }
+            if ( existing.addReader() )
+            {
+                metrics.increment( "upstream.coalesced" );
+                return existing.follow( upstream );
+            }
+            // finished in the meantime
+            flights.remove( path, existing );
+        }
+    }
+
+    private final class Flight
+    {
+        private final String path;
+
+        private final CompletableFuture<SharedResponse> response = new CompletableFuture<>();
+
+        private File spool;
+
+        private OutputStream out;
+
+        private long written;
+
+        private long lastProgress = System.currentTimeMillis();
+
+        private int refs = 1; // the leader
+
+        private boolean complete;
+
+        private IOException failure;
+
+        private boolean closed; // no more readers accepted
+
+        Flight( String path )
+        {
+            this.path = path;
+        }
+
+        Uni<UpstreamResponse> lead( UpstreamCall call )
+        {
+            // cancelled e.g. by a timeout of the caller or a client disconnect, before there is a response
+            return call.enqueue()
+                       .onItem()
+                       .transform( this::share )
+                       .onFailure()
+                       .invoke( e -> decline() )
+                       .onCancellation()
+                       .invoke( this::decline );
+        }
+
+        Uni<UpstreamResponse> follow( Supplier<UpstreamCall> upstream )
+        {
+            return Uni.createFrom()
+                      .completionStage( response )
+                      .ifNoItem()
+                      .after( followTimeout )
+                      .recoverWithItem( (SharedResponse) null )
+                      .onCancellation()
+                      .invoke( this::release )
+                      .onItem()
+                      .transformToUni( shared -> {
+                          if ( shared == null )
+                          {
+                              release();
+                              return upstream.get().enqueue();
+                          }
+                          return Uni.createFrom().item( shared );
+                      } );
+        }
+
+        private UpstreamResponse share( UpstreamResponse resp )
+        {
+            if ( resp.code() != OK.getStatusCode() )
+            {
+                decline();
+                return resp;
+            }
+            InputStream body = resp.bodyStream();
+            if ( body == null )
+            {
+                decline();
+                return resp;
+            }
+
+            try
+            {
+                File file = Files.createTempFile( "flight-", ".bin" ).toFile();
+                synchronized ( this )
+                {
+                    spool = file;
+                    out = new FileOutputStream( file );
+                }
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to create spool for " + path + ", not sharing it", e );
+                decline();
+                return new LeaderResponse( resp, body, false );
+            }
+
+            response.complete( new SharedResponse( resp ) );
+            return new LeaderResponse( resp, body, true );
+        }
+
+        /**
+         * Followers waiting for a response make their own call, and no one else joins. Only the first call counts.
+         */
+        private void decline()
+        {
+            flights.remove( path, this );
+            synchronized ( this )
+            {
+                closed = true;
+            }
+            if ( response.complete( null ) )
+            {
+                release();
+            }
+        }
+
+        synchronized boolean addReader()
+        {
+            if ( closed )
+            {
+                return false;
+            }
+            refs++;
+            return true;
+        }
+
+        synchronized boolean hasReaders()
+        {
+            return refs > 1;
+        }
+
+        synchronized void append( byte[] b, int off, int len )
+        {
+            if ( failure != null )
+            {
+                return;
+            }
+            try
+            {
+                out.write( b, off, len );
+                written += len;
+                lastProgress = System.currentTimeMillis();
+            }
+            catch ( IOException e )
+            {
+                failure = e;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Called by the leader once the body was read completely, or failed to be.
+         */
+        void finish( IOException error )
+        {
+            flights.remove( path, this );
+            synchronized ( this )
+            {
+                closed = true;
+                if ( error != null && failure == null )
+                {
+                    failure = error;
+                }
+                complete = failure == null;
+                closeQuietly( out );
+                notifyAll();
+            }
+            release();
+        }
+
+        /**
+         * @return how many bytes can be read at the position, waiting for the leader if needed; -1 at the end
+         */
+        synchronized long awaitAvailable( long pos ) throws IOException
+        {
+            while ( pos >= written && !complete && failure == null )
+            {
+                if ( System.currentTimeMillis() - lastProgress > STALL_TIMEOUT )
+                {
+                    failure = new IOException( "Shared transfer stalled: " + path );
+                    break;
+                }
+                try
+                {
+                    wait( 1000 );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException( "Interrupted waiting for shared transfer: " + path, e );
+                }
+            }
+            if ( failure != null )
+            {
+                throw new IOException( "Shared transfer failed: " + path, failure );
+            }
+            return pos < written ? written - pos : -1;
+        }
+
+        synchronized void release()
+        {
+            refs--;
+            if ( refs == 0 && spool != null )
+            {
+                closed = true;
+                spool.delete();
+            }
+        }
+
+        /**
+         * The leader's body. What is read is also appended to the spool. If the leader stops reading early while
+         * others follow, the rest is still read so they can finish.
+         */
+        private final class LeaderStream
+                        extends FilterInputStream
+        {
+            private boolean done;
+
+            LeaderStream( InputStream in )
+            {
+                super( in );
+            }
+
+            @Override
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+                int n = read( b, 0, 1 );
+                return n < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read( byte[] b, int off, int len ) throws IOException
+            {
+                int n;
+                try
+                {
+                    n = in.read( b, off, len );
+                }
+                catch ( IOException e )
+                {
+                    done( e );
+                    throw e;
+                }
+                if ( n < 0 )
+                {
+                    done( null );
+                }
+                else
+                {
+                    append( b, off, n );
+                }
+                return n;
+            }
+
+            @Override
+            public long skip( long n ) throws IOException
+            {
+                return read( new byte[(int) Math.min( n, 8192 )] ); // keeps the spool complete
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                if ( !done )
+                {
+                    if ( hasReaders() )
+                    {
+                        drain();
+                    }
+                    else
+                    {
+                        done( new IOException( "Leader stopped reading" ) );
+                    }
+                }
+                super.close();
+            }
+
+            private void drain()
+            {
+                byte[] buf = new byte[8192];
+                try
+                {
+                    while ( !done )
+                    {
+                        read( buf, 0, buf.length );
+                    }
+                }
+                catch ( IOException e )
+                {
+                    logger.debug( "Failed to finish shared transfer of {}", path, e );
+                }
+            }
+
+            private void done( IOException error )
+            {
+                if ( !done )
+                {
+                    done = true;
+                    finish( error );
+                }
+            }
+        }
+
+        /**
+         * Reads the spool as it grows.
+         */
+        private final class FollowerStream
+                        extends InputStream
+        {
+            private final InputStream file;
+
+            private long pos;
+
+            private boolean closed;
+
+            FollowerStream() throws IOException
+            {
+                this.file = new FileInputStream( spool );
+            }
+
+            @Override
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+                int n = read( b, 0, 1 );
+                return n < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read( byte[] b, int off, int len ) throws IOException
+            {
+                if ( len == 0 )
+                {
+                    return 0;
+                }
+                long available = awaitAvailable( pos );
+                if ( available < 0 )
+                {
+                    return -1;
+                }
+                int n = file.read( b, off, (int) Math.min( len, available ) );
+                if ( n > 0 )
+                {
+                    pos += n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                if ( !closed )
+                {
+                    closed = true;
+                    file.close();
+                    release();
+                }
+            }
+        }
+
+        private final class LeaderResponse
+                        extends DelegatingResponse
+        {
+            private final InputStream body;
+
+            LeaderResponse( UpstreamResponse delegate, InputStream body, boolean shared )
+            {
+                super( delegate );
+                this.body = shared ? new LeaderStream( body ) : body;
+            }
+
+            @Override
+            public InputStream bodyStream()
+            {
+                return body;
+            }
+        }
+
+        /**
+         * Status and headers of the leader's response, with a body stream of its own per follower.
+         */
+        private final class SharedResponse
+                        implements UpstreamResponse
+        {
+            private final int code;
+
+            private final String message;
+
+            private final List<String[]> headers = new ArrayList<>();
+
+            SharedResponse( UpstreamResponse resp )
+            {
+                this.code = resp.code();
+                this.message = resp.message();
+                resp.forEachHeader( ( k, v ) -> headers.add( new String[] { k, v } ) );
+            }
+
+            @Override
+            public int code()
+            {
+                return code;
+            }
+
+            @Override
+            public String message()
+            {
+                return message;
+            }
+
+            @Override
+            public String header( String name )
+            {
+                for ( String[] h : headers )
+                {
+                    if ( h[0].equalsIgnoreCase( name ) )
+                    {
+                        return h[1];
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void forEachHeader( BiConsumer<String, String> consumer )
+            {
+                headers.forEach( h -> consumer.accept( h[0], h[1] ) );
+            }
+
+            @Override
+            public InputStream bodyStream()
+            {
+                try
+                {
+                    return new FollowerStream();
+                }
+                catch ( IOException e )
+                {
+                    release();
+                    throw new IllegalStateException( "Failed to open shared body of " + path, e );
+                }
+            }
+        }
+    }
+
+    private abstract static class DelegatingResponse
+                    implements UpstreamResponse
+    {
+        private final UpstreamResponse delegate;
+
+        DelegatingResponse( UpstreamResponse delegate )
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int code()
+        {
+            return delegate.code();
+        }
+
+        @Override
+        public String message()
+        {
+            return delegate.message();
+        }
+
+        @Override
+        public String header( String name )
+        {
+            return delegate.header( name );
+        }
+
+        @Override
+        public void forEachHeader( BiConsumer<String, String> consumer )
+        {
+            delegate.forEachHeader( consumer );
+        }
+    }
+
+    private static void closeQuietly( OutputStream out )
+    {
+        try
+        {
+            if ( out != null )
+            {
+                out.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            // the data that was written is already visible to the followers
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.TrackedContentEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.DEFAULT_REPO_PATH;
+
+/**
+ * Append-only journal of the tracking records, so a restarted sidecar still reports what the build did before. Records
+ * are queued by the request threads and written by one writer thread as JSON lines, a batch at a time with a single
+ * fsync for the batch (group commit); the request path only pays for the enqueue. After a number of records the
+ * journal is compacted: all records in memory are written to a snapshot, and the journal starts over.
+ * <p>
+ * Records must be added in memory before they are appended here. Then the records in memory always include the ones
+ * in the journal, and a snapshot may be taken at any time. A record in both the snapshot and the journal is merged
+ * again on replay, which changes nothing.
+ * <p>
+ * The journal only outlives a crash. It is deleted once the report was imported, and on a clean shutdown, so a later
+ * build of the same configuration on the same volume doesn't replay it.
+ */
+@ApplicationScoped
+public class TrackingJournal
+{
+    public static final String JOURNAL_DIR = ".tracking";
+
+    private static final String JOURNAL_FILE = "journal.jsonl";
+
+    private static final String SNAPSHOT_FILE = "snapshot.jsonl";
+
+    private static final int MAX_BATCH = 1024;
+
+    private static final Object CLEAR = new Object();
+
+    private static final Object FINISH = new Object();
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+    @Inject
+    SidecarConfig sidecarConfig;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    SidecarMetrics metrics;
+
+    private Path dir;
+
+    private FileChannel channel;
+
+    private OutputStream out;
+
+    private Supplier<Collection<TrackedContentEntry>> content;
+
+    private long records; // in the journal since the last compaction
+
+    private volatile boolean running;
+
+    private Thread writer;
+
+    @PostConstruct
+    void init()
+    {
+        if ( !sidecarConfig.trackingJournalEnabled )
+        {
+            return;
+        }
+        Path path = Paths.get( sidecarConfig.localRepository.orElse( DEFAULT_REPO_PATH ), JOURNAL_DIR );
+        try
+        {
+            Files.createDirectories( path );
+            dir = path;
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to create tracking journal dir " + path + ", tracking is kept in memory only", e );
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return dir != null;
+    }
+
+    /**
+     * Read back the records of the build: the snapshot, then the journal. Records of other builds are skipped, as is
+     * a last line torn by a crash.
+     */
+    public void replay( String trackingId, Consumer<TrackedContentEntry> consumer )
+    {
+        if ( !isEnabled() )
+        {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long replayed = replay( dir.resolve( SNAPSHOT_FILE ), trackingId, consumer ) + replay(
+                        dir.resolve( JOURNAL_FILE ), trackingId, consumer );
+        if ( replayed > 0 )
+        {
+            metrics.add( "journal.replayed", replayed );
+            logger.info( "Replayed {} tracking records in {} ms", replayed, System.currentTimeMillis() - start );
+        }
+    }
+
+    /**
+     * Compact what was replayed and start writing.
+     *
+     * @param content all records in memory, for the snapshots
+     */
+    public synchronized void start( Supplier<Collection<TrackedContentEntry>> content )
+    {
+        if ( !isEnabled() || running )
+        {
+            return;
+        }
+        this.content = content;
+        try
+        {
+            channel = FileChannel.open( dir.resolve( JOURNAL_FILE ), CREATE, WRITE, APPEND );
+            out = new BufferedOutputStream( Channels.newOutputStream( channel ), 64 * 1024 );
+            compact();
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to open tracking journal in " + dir + ", tracking is kept in memory only", e );
+            dir = null;
+            return;
+        }
+
+        running = true;
+        writer = new Thread( this::run, "tracking-journal" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    public void append( TrackedContentEntry entry )
+    {
+        if ( running )
+        {
+            queue.offer( entry );
+        }
+    }
+
+    /**
+     * Drop the records in the journal and snapshot, after the records in memory were dropped.
+     */
+    public void clear()
+    {
+        if ( running )
+        {
+            queue.offer( CLEAR );
+        }
+    }
+
+    /**
+     * The report was imported, the build is over: write what is queued, then delete the journal. Nothing is appended
+     * after this.
+     */
+    public void finish()
+    {
+        if ( running )
+        {
+            queue.offer( FINISH );
+            running = false;
+        }
+    }
+
+    @PreDestroy
+    synchronized void destroy()
+    {
+        stop();
+        if ( isEnabled() )
+        {
+            delete();
+        }
+    }
+
+    /**
+     * Stop writing, but keep the journal, as a crash would.
+     */
+    synchronized void stop()
+    {
+        running = false;
+        if ( writer == null )
+        {
+            return;
+        }
+        try
+        {
+            writer.join( TimeUnit.SECONDS.toMillis( 5 ) );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        try
+        {
+            channel.close();
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to close tracking journal", e );
+        }
+    }
+
+    private void delete()
+    {
+        try
+        {
+            for ( String name : List.of( JOURNAL_FILE, SNAPSHOT_FILE, SNAPSHOT_FILE + ".tmp" ) )
+            {
+                Files.deleteIfExists( dir.resolve( name ) );
+            }
+            logger.info( "Deleted tracking journal in {}", dir );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to delete tracking journal in " + dir, e );
+        }
+    }
+
+    private void run()
+    {
+        List<Object> batch = new ArrayList<>( MAX_BATCH );
+        while ( ( running || !queue.isEmpty() ) && channel.isOpen() )
+        {
+            try
+            {
+                Object first = queue.poll( 1, TimeUnit.SECONDS );
+                if ( first == null )
+                {
+                    continue;
+                }
+                batch.add( first );
+                queue.drainTo( batch, MAX_BATCH - 1 );
+                write( batch );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                metrics.increment( "journal.failed" );
+                logger.error( "Failed to write " + batch.size() + " tracking records to the journal", e );
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write( List<Object> batch ) throws IOException
+    {
+        int written = 0;
+        for ( Object record : batch )
+        {
+            if ( record == FINISH )
+            {
+                channel.close();
+                delete();
+                return;
+            }
+            if ( record == CLEAR )
+            {
+                // records appended to the new content before the marker must survive, so it is a compaction
+                compact();
+                continue;
+            }
+            out.write( objectMapper.writeValueAsBytes( record ) );
+            out.write( '\n' );
+            written++;
+        }
+
+        long start = System.nanoTime();
+        out.flush();
+        channel.force( false );
+        metrics.updateMax( "journal.sync.max.us", TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - start ) );
+        metrics.increment( "journal.batches" );
+        metrics.add( "journal.records", written );
+
+        records += written;
+        if ( records >= sidecarConfig.trackingJournalCompactAfter )
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Write all records in memory to a new snapshot, then empty the journal. A crash in between leaves records in both,
+     * which is fine.
+     */
+    private void compact() throws IOException
+    {
+        long start = System.currentTimeMillis();
+        Path snapshot = dir.resolve( SNAPSHOT_FILE );
+        Path tmp = dir.resolve( SNAPSHOT_FILE + ".tmp" );
+        Collection<TrackedContentEntry> entries = content.get();
+        try (FileChannel snapshotChannel = FileChannel.open( tmp, CREATE, WRITE, TRUNCATE_EXISTING );
+             OutputStream snapshotOut = new BufferedOutputStream( Channels.newOutputStream( snapshotChannel ),
+                                                                  64 * 1024 ))
+        {
+            for ( TrackedContentEntry entry : entries )
+            {
+                snapshotOut.write( objectMapper.writeValueAsBytes( entry ) );
+                snapshotOut.write( '\n' );
+            }
+            snapshotOut.flush();
+            snapshotChannel.force( false );
+        }
+        Files.move( tmp, snapshot, ATOMIC_MOVE, REPLACE_EXISTING );
+
+        out.flush();
+        channel.truncate( 0 );
+        channel.force( false );
+        records = 0;
+        metrics.increment( "journal.compactions" );
+        logger.debug( "Compacted tracking journal into {} records in {} ms", entries.size(),
+                      System.currentTimeMillis() - start );
+    }
+
+    private long replay( Path file, String trackingId, Consumer<TrackedContentEntry> consumer )
+    {
+        if ( !Files.isRegularFile( file ) )
+        {
+            return 0;
+        }
+        long replayed = 0;
+        try (BufferedReader reader = Files.newBufferedReader( file, UTF_8 ))
+        {
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                if ( line.isEmpty() )
+                {
+                    continue;
+                }
+                TrackedContentEntry entry;
+                try
+                {
+                    entry = objectMapper.readValue( line, TrackedContentEntry.class );
+                }
+                catch ( IOException e )
+                {
+                    logger.warn( "Skip unreadable tracking record in {}: {}", file, e.toString() );
+                    continue;
+                }
+                String id = entry.getTrackingKey() == null ? null : entry.getTrackingKey().getId();
+                if ( Objects.equals( id, trackingId ) )
+                {
+                    consumer.accept( entry );
+                    replayed++;
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to replay tracking records from " + file, e );
+        }
+        return replayed;
+    }
+}
@@ -0,0 +1,464 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * Read-only view of a zip file that serves its entries in place instead of extracting them. Only the central
+ * directory is read when opening, so that takes milliseconds even for large archives. Entry data is read from a
+ * memory mapping of the file; local headers are read on first access. Supports zip64, and the stored and deflated
+ * methods.
+ */
+public final class ArchiveZip
+                implements Closeable
+{
+    private static final int EOCD_SIG = 0x06054b50;
+
+    private static final int EOCD_SIZE = 22;
+
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+
+    private static final int CEN_SIG = 0x02014b50;
+
+    private static final int CEN_SIZE = 46;
+
+    private static final int LOC_SIG = 0x04034b50;
+
+    private static final int LOC_SIZE = 30;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int STORED = 0;
+
+    private static final int DEFLATED = 8;
+
+    private static final int FLAG_ENCRYPTED = 1;
+
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer mapped; // the whole file, or null if it is too large for one mapping
+
+    private final Map<String, Entry> entries;
+
+    private ArchiveZip( File file, FileChannel channel, ByteBuffer mapped, Map<String, Entry> entries )
+    {
+        this.file = file;
+        this.channel = channel;
+        this.mapped = mapped;
+        this.entries = entries;
+    }
+
+    public static ArchiveZip open( File file ) throws IOException
+    {
+        FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+        try
+        {
+            long length = channel.size();
+            ByteBuffer mapped = null;
+            if ( length <= Integer.MAX_VALUE )
+            {
+                mapped = channel.map( READ_ONLY, 0, length ).order( ByteOrder.LITTLE_ENDIAN );
+            }
+            Map<String, Entry> entries = readCentralDirectory( channel, length, file.lastModified() );
+            return new ArchiveZip( file, channel, mapped, Collections.unmodifiableMap( entries ) );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @param path entry path, with or without the leading '/'
+     * @return the file entry, or null if there is none or it can't be served (encrypted, unsupported method)
+     */
+    public Entry get( String path )
+    {
+        return entries.get( path.startsWith( "/" ) ? path : "/" + path );
+    }
+
+    /**
+     * @return where the entry data starts in the zip file, i.e. behind its local header
+     */
+    public long dataOffset( Entry entry ) throws IOException
+    {
+        long offset = entry.dataOffset;
+        if ( offset < 0 )
+        {
+            ByteBuffer loc = readAt( channel, entry.localHeaderOffset, LOC_SIZE );
+            if ( loc.getInt( 0 ) != LOC_SIG )
+            {
+                throw new ZipException( "Bad local header of " + entry.name + " in " + file );
+            }
+            offset = entry.localHeaderOffset + LOC_SIZE + u16( loc, 26 ) + u16( loc, 28 );
+            entry.dataOffset = offset;
+        }
+        return offset;
+    }
+
+    /**
+     * @return the uncompressed content of the entry, inflated as it is read
+     */
+    public InputStream openStream( Entry entry ) throws IOException
+    {
+        ByteBuffer data = slice( dataOffset( entry ), entry.compressedSize );
+        InputStream in = new ByteBufferInputStream( data );
+        return entry.isStored() ? in : new EntryInflaterStream( in );
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    private ByteBuffer slice( long offset, long length ) throws IOException
+    {
+        if ( length > Integer.MAX_VALUE )
+        {
+            throw new ZipException( "Entry too large to map: " + length );
+        }
+        if ( mapped == null )
+        {
+            return channel.map( READ_ONLY, offset, length );
+        }
+        ByteBuffer dup = mapped.duplicate();
+        dup.position( (int) offset ).limit( (int) ( offset + length ) );
+        return dup.slice();
+    }
+
+    private static Map<String, Entry> readCentralDirectory( FileChannel channel, long length, long fileTime )
+                    throws IOException
+    {
+        // the end record is followed by a comment of up to 64k
+        int tailSize = (int) Math.min( length, EOCD_SIZE + 0xFFFF );
+        ByteBuffer tail = readAt( channel, length - tailSize, tailSize );
+        int eocd = -1;
+        for ( int i = tailSize - EOCD_SIZE; i >= 0; i-- )
+        {
+            if ( tail.getInt( i ) == EOCD_SIG )
+            {
+                eocd = i;
+                break;
+            }
+        }
+        if ( eocd < 0 )
+        {
+            throw new ZipException( "No end of central directory found, not a zip file?" );
+        }
+
+        long count = u16( tail, eocd + 10 );
+        long cenSize = u32( tail, eocd + 12 );
+        long cenOffset = u32( tail, eocd + 16 );
+        if ( count == 0xFFFF || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC )
+        {
+            long locator = length - tailSize + eocd - 20;
+            ByteBuffer loc = readAt( channel, locator, 20 );
+            if ( loc.getInt( 0 ) != ZIP64_LOCATOR_SIG )
+            {
+                throw new ZipException( "Missing zip64 end of central directory locator" );
+            }
+            ByteBuffer end64 = readAt( channel, loc.getLong( 8 ), 56 );
+            if ( end64.getInt( 0 ) != ZIP64_EOCD_SIG )
+            {
+                throw new ZipException( "Bad zip64 end of central directory" );
+            }
+            count = end64.getLong( 32 );
+            cenSize = end64.getLong( 40 );
+            cenOffset = end64.getLong( 48 );
+        }
+        if ( cenSize > Integer.MAX_VALUE )
+        {
+            throw new ZipException( "Central directory too large: " + cenSize );
+        }
+
+        ByteBuffer cen = channel.map( READ_ONLY, cenOffset, cenSize ).order( ByteOrder.LITTLE_ENDIAN );
+        Map<String, Entry> entries = new HashMap<>( (int) Math.min( count * 4 / 3 + 1, 1 << 24 ) );
+        int pos = 0;
+        for ( long i = 0; i < count; i++ )
+        {
+            if ( cen.getInt( pos ) != CEN_SIG )
+            {
+                throw new ZipException( "Bad central directory entry at " + ( cenOffset + pos ) );
+            }
+            int flags = u16( cen, pos + 8 );
+            int method = u16( cen, pos + 10 );
+            long dosTime = u32( cen, pos + 12 );
+            long compressedSize = u32( cen, pos + 20 );
+            long size = u32( cen, pos + 24 );
+            int nameLen = u16( cen, pos + 28 );
+            int extraLen = u16( cen, pos + 30 );
+            int commentLen = u16( cen, pos + 32 );
+            long localHeaderOffset = u32( cen, pos + 42 );
+
+            byte[] nameBytes = new byte[nameLen];
+            cen.position( pos + CEN_SIZE );
+            cen.get( nameBytes );
+            String name = new String( nameBytes, ( flags & FLAG_UTF8 ) != 0 ?
+                            StandardCharsets.UTF_8 :
+                            StandardCharsets.ISO_8859_1 );
+
+            // zip64 extra field: only the values that overflowed are present, in this order
+            int extra = pos + CEN_SIZE + nameLen;
+            int extraEnd = extra + extraLen;
+            while ( extra + 4 <= extraEnd )
+            {
+                int id = u16( cen, extra );
+                int dataSize = u16( cen, extra + 2 );
+                if ( id == ZIP64_EXTRA_ID )
+                {
+                    int p = extra + 4;
+                    if ( size == ZIP64_MAGIC )
+                    {
+                        size = cen.getLong( p );
+                        p += 8;
+                    }
+                    if ( compressedSize == ZIP64_MAGIC )
+                    {
+                        compressedSize = cen.getLong( p );
+                        p += 8;
+                    }
+                    if ( localHeaderOffset == ZIP64_MAGIC )
+                    {
+                        localHeaderOffset = cen.getLong( p );
+                    }
+                    break;
+                }
+                extra += 4 + dataSize;
+            }
+
+            boolean servable = ( flags & FLAG_ENCRYPTED ) == 0 && ( method == STORED || method == DEFLATED );
+            if ( !name.endsWith( "/" ) && servable )
+            {
+                String key = "/" + name.replaceFirst( "^/+", "" );
+                entries.put( key, new Entry( name, method, compressedSize, size, localHeaderOffset,
+                                             dosToMillis( dosTime, fileTime ) ) );
+            }
+            pos += CEN_SIZE + nameLen + extraLen + commentLen;
+        }
+        return entries;
+    }
+
+    private static ByteBuffer readAt( FileChannel channel, long offset, int length ) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+        while ( buf.hasRemaining() )
+        {
+            if ( channel.read( buf, offset + buf.position() ) < 0 )
+            {
+                throw new ZipException( "Unexpected end of zip at " + offset );
+            }
+        }
+        return buf.flip();
+    }
+
+    private static long dosToMillis( long dos, long fallback )
+    {
+        try
+        {
+            LocalDateTime time = LocalDateTime.of( (int) ( ( dos >> 25 ) & 0x7f ) + 1980,
+                                                   (int) ( ( dos >> 21 ) & 0x0f ), (int) ( ( dos >> 16 ) & 0x1f ),
+                                                   (int) ( ( dos >> 11 ) & 0x1f ), (int) ( ( dos >> 5 ) & 0x3f ),
+                                                   (int) ( ( dos << 1 ) & 0x3e ) );
+            return time.atZone( ZoneId.systemDefault() ).toInstant().toEpochMilli();
+        }
+        catch ( DateTimeException e )
+        {
+            return fallback;
+        }
+    }
+
+    private static int u16( ByteBuffer buf, int pos )
+    {
+        return buf.getShort( pos ) & 0xffff;
+    }
+
+    private static long u32( ByteBuffer buf, int pos )
+    {
+        return buf.getInt( pos ) & ZIP64_MAGIC;
+    }
+
+    public static final class Entry
+    {
+        private final String name;
+
+        private final int method;
+
+        private final long compressedSize;
+
+        private final long size;
+
+        private final long localHeaderOffset;
+
+        private final long lastModified;
+
+        private volatile long dataOffset = -1;
+
+        private Entry( String name, int method, long compressedSize, long size, long localHeaderOffset,
+                       long lastModified )
+        {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.lastModified = lastModified;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return whether the data is stored as is, so it can be sent straight from the zip file
+         */
+        public boolean isStored()
+        {
+            return method == STORED;
+        }
+
+        /**
+         * @return the uncompressed size
+         */
+        public long getSize()
+        {
+            return size;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+    }
+
+    private static final class ByteBufferInputStream
+                    extends InputStream
+    {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream( ByteBuffer buf )
+        {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read()
+        {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len )
+        {
+            if ( len == 0 )
+            {
+                return 0;
+            }
+            if ( !buf.hasRemaining() )
+            {
+                return -1;
+            }
+            int n = Math.min( len, buf.remaining() );
+            buf.get( b, off, n );
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * Raw deflate needs one extra byte of input at the end (see {@link Inflater#Inflater(boolean)}), and the inflater
+     * is ours to release.
+     */
+    private static final class EntryInflaterStream
+                    extends InflaterInputStream
+    {
+        private boolean eof;
+
+        EntryInflaterStream( InputStream in )
+        {
+            super( in, new Inflater( true ), 8192 );
+        }
+
+        @Override
+        protected void fill() throws IOException
+        {
+            if ( eof )
+            {
+                throw new ZipException( "Unexpected end of deflated entry" );
+            }
+            len = in.read( buf, 0, buf.length );
+            if ( len == -1 )
+            {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput( buf, 0, len );
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            super.close();
+            inf.end();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Upstream response held in memory, e.g. to be served again from a cache. Each {@link #bodyStream()} starts over.
+ */
+public class BufferedUpstreamResponse
+                implements UpstreamResponse
+{
+    private final int code;
+
+    private final String message;
+
+    private final List<String[]> headers;
+
+    private final byte[] body;
+
+    public BufferedUpstreamResponse( UpstreamResponse resp, byte[] body )
+    {
+        List<String[]> copy = new ArrayList<>();
+        resp.forEachHeader( ( k, v ) -> copy.add( new String[] { k, v } ) );
+        this.code = resp.code();
+        this.message = resp.message();
+        this.headers = Collections.unmodifiableList( copy );
+        this.body = body;
+    }
+
+    @Override
+    public int code()
+    {
+        return code;
+    }
+
+    @Override
+    public String message()
+    {
+        return message;
+    }
+
+    @Override
+    public String header( String name )
+    {
+        for ( String[] h : headers )
+        {
+            if ( h[0].equalsIgnoreCase( name ) )
+            {
+                return h[1];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void forEachHeader( BiConsumer<String, String> consumer )
+    {
+        headers.forEach( h -> consumer.accept( h[0], h[1] ) );
+    }
+
+    @Override
+    public InputStream bodyStream()
+    {
+        return new ByteArrayInputStream( body );
+    }
+
+    public int length()
+    {
+        return body.length;
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One satisfiable range of an HTTP 'Range: bytes=...' request header, with an inclusive end.
+ */
+public final class ByteRange
+{
+    private static final String BYTES_UNIT = "bytes=";
+
+    // More ranges than this are more likely abuse than a download tool resuming, so we just send the whole file
+    private static final int MAX_RANGES = 16;
+
+    private final long start;
+
+    private final long end;
+
+    public ByteRange( long start, long end )
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart()
+    {
+        return start;
+    }
+
+    public long getEnd()
+    {
+        return end;
+    }
+
+    public long length()
+    {
+        return end - start + 1;
+    }
+
+    public String toContentRange( long contentLength )
+    {
+        return "bytes " + start + "-" + end + "/" + contentLength;
+    }
+
+    /**
+     * Parse a Range header against the content length.
+     *
+     * @return null if the header should be ignored and the full content sent (unknown unit, bad syntax or too many
+     * ranges), an empty list if none of the ranges can be satisfied (416), otherwise the satisfiable ranges in
+     * request order.
+     */
+    public static List<ByteRange> parse( String header, long contentLength )
+    {
+        if ( header == null || !header.startsWith( BYTES_UNIT ) )
+        {
+            return null;
+        }
+
+        String[] specs = header.substring( BYTES_UNIT.length() ).split( "," );
+        if ( specs.length > MAX_RANGES )
+        {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>( specs.length );
+        for ( String raw : specs )
+        {
+            String spec = raw.trim();
+            int dash = spec.indexOf( '-' );
+            if ( dash < 0 )
+            {
+                return null;
+            }
+
+            try
+            {
+                String first = spec.substring( 0, dash ).trim();
+                String last = spec.substring( dash + 1 ).trim();
+                if ( first.isEmpty() )
+                {
+                    // suffix range: the final N bytes
+                    long suffix = Long.parseLong( last );
+                    if ( suffix > 0 && contentLength > 0 )
+                    {
+                        ranges.add( new ByteRange( Math.max( 0, contentLength - suffix ), contentLength - 1 ) );
+                    }
+                    continue;
+                }
+
+                long start = Long.parseLong( first );
+                long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong( last );
+                if ( start < 0 || end < start )
+                {
+                    return null;
+                }
+                if ( start < contentLength )
+                {
+                    ranges.add( new ByteRange( start, Math.min( end, contentLength - 1 ) ) );
+                }
+            }
+            catch ( NumberFormatException e )
+            {
+                return null;
+            }
+        }
+
+        return ranges.isEmpty() ? Collections.emptyList() : ranges;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ByteRange{" + start + "-" + end + '}';
+    }
+}
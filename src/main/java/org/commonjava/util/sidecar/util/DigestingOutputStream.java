@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Pass-through stream that calculates MD5, SHA-1 and SHA-256 and counts the bytes as they are written, so tracked
+ * content never has to be held in memory just to be hashed.
+ */
+public class DigestingOutputStream
+                extends FilterOutputStream
+{
+    private final MessageDigest md5;
+
+    private final MessageDigest sha1;
+
+    private final MessageDigest sha256;
+
+    private long byteCount;
+
+    private String md5Hex;
+
+    private String sha1Hex;
+
+    private String sha256Hex;
+
+    public DigestingOutputStream( OutputStream out )
+    {
+        super( out );
+        try
+        {
+            this.md5 = MessageDigest.getInstance( "MD5" );
+            this.sha1 = MessageDigest.getInstance( "SHA-1" );
+            this.sha256 = MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "Required digest algorithm is not available", e );
+        }
+    }
+
+    @Override
+    public void write( int b ) throws IOException
+    {
+        out.write( b );
+        md5.update( (byte) b );
+        sha1.update( (byte) b );
+        sha256.update( (byte) b );
+        byteCount++;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException
+    {
+        out.write( b, off, len );
+        md5.update( b, off, len );
+        sha1.update( b, off, len );
+        sha256.update( b, off, len );
+        byteCount += len;
+    }
+
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    /**
+     * Digests are finished on first access, so only read them once the copy is complete.
+     */
+    public String getMd5()
+    {
+        finish();
+        return md5Hex;
+    }
+
+    public String getSha1()
+    {
+        finish();
+        return sha1Hex;
+    }
+
+    public String getSha256()
+    {
+        finish();
+        return sha256Hex;
+    }
+
+    private void finish()
+    {
+        if ( sha256Hex == null )
+        {
+            md5Hex = Hex.encodeHexString( md5.digest() );
+            sha1Hex = Hex.encodeHexString( sha1.digest() );
+            sha256Hex = Hex.encodeHexString( sha256.digest() );
+        }
+    }
+}
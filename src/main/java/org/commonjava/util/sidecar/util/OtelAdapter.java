@@ -5,6 +5,7 @@ import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.SpanKind;
 import io.opentelemetry.context.Context;
 import io.opentelemetry.context.propagation.TextMapSetter;
+import io.vertx.core.MultiMap;
 import okhttp3.Request;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
@@ -17,6 +18,8 @@ public class OtelAdapter
         rb.header( key, value );
     };
 
+    private static final TextMapSetter<? super MultiMap> VERTX_CONTEXT_SETTER = MultiMap::set;
+
     @ConfigProperty( name = "quarkus.opentelemetry.enabled" )
     Boolean enabled;
 
@@ -53,4 +56,17 @@ public class OtelAdapter
                            .inject( Context.current(), requestBuilder, OKHTTP_CONTEXT_SETTER );
 
     }
-}
\ No newline at end of file
+
+    public void injectContext( MultiMap headers )
+    {
+        if ( !enabled )
+        {
+            return;
+        }
+
+        GlobalOpenTelemetry.get()
+                           .getPropagators()
+                           .getTextMapPropagator()
+                           .inject( Context.current(), headers, VERTX_CONTEXT_SETTER );
+    }
+}
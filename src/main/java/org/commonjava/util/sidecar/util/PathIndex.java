@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Set of relative paths, packed for size: the UTF-8 bytes of all paths share one array, and an open addressing table
+ * holds their hashes and offsets. That is about half of what a HashSet of the same Strings takes, and lookups
+ * don't allocate beyond encoding the path.
+ */
+public final class PathIndex
+{
+    private static final int MAX_PATH_BYTES = 0xFFFF; // length is stored in two bytes
+
+    private int[] hashes;
+
+    private int[] offsets; // offset + 1 of the path in data, 0 for a free slot
+
+    private byte[] data;
+
+    private int dataSize;
+
+    private int size;
+
+    public PathIndex()
+    {
+        this( 1024 );
+    }
+
+    /**
+     * @param expected number of paths to size the table for
+     */
+    public PathIndex( int expected )
+    {
+        int slots = Integer.highestOneBit( Math.max( 16, expected * 4 / 3 ) ) << 1;
+        hashes = new int[slots];
+        offsets = new int[slots];
+        data = new byte[Math.max( 1024, expected * 48 )];
+    }
+
+    /**
+     * @return whether the path was added, i.e. it was not in the index
+     */
+    public synchronized boolean add( String path )
+    {
+        byte[] bytes = encode( path );
+        if ( bytes.length > MAX_PATH_BYTES )
+        {
+            return false;
+        }
+        int hash = hash( bytes );
+        if ( find( bytes, hash ) >= 0 )
+        {
+            return false;
+        }
+
+        if ( ( size + 1 ) * 4 > offsets.length * 3 )
+        {
+            rehash( offsets.length << 1 );
+        }
+        if ( dataSize + 2 + bytes.length > data.length )
+        {
+            data = Arrays.copyOf( data, Math.max( data.length << 1, dataSize + 2 + bytes.length ) );
+        }
+
+        int slot = insertionSlot( hash, offsets, hashes );
+        hashes[slot] = hash;
+        offsets[slot] = dataSize + 1;
+        data[dataSize] = (byte) ( bytes.length >>> 8 );
+        data[dataSize + 1] = (byte) bytes.length;
+        System.arraycopy( bytes, 0, data, dataSize + 2, bytes.length );
+        dataSize += 2 + bytes.length;
+        size++;
+        return true;
+    }
+
+    /**
+     * The bytes of the path stay in the data array, as paths are rarely removed, e.g. when corrupt content is
+     * quarantined.
+     *
+     * @return whether the path was removed, i.e. it was in the index
+     */
+    public synchronized boolean remove( String path )
+    {
+        byte[] bytes = encode( path );
+        int gap = find( bytes, hash( bytes ) );
+        if ( gap < 0 )
+        {
+            return false;
+        }
+
+        // move the paths probed past the freed slot back, so lookups don't stop short at it
+        int mask = offsets.length - 1;
+        for ( int slot = ( gap + 1 ) & mask; offsets[slot] != 0; slot = ( slot + 1 ) & mask )
+        {
+            int home = hashes[slot] & mask;
+            if ( ( ( slot - home ) & mask ) >= ( ( slot - gap ) & mask ) )
+            {
+                hashes[gap] = hashes[slot];
+                offsets[gap] = offsets[slot];
+                gap = slot;
+            }
+        }
+        hashes[gap] = 0;
+        offsets[gap] = 0;
+        size--;
+        return true;
+    }
+
+    public synchronized boolean contains( String path )
+    {
+        byte[] bytes = encode( path );
+        return find( bytes, hash( bytes ) ) >= 0;
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return bytes held by the index arrays
+     */
+    public synchronized long memoryBytes()
+    {
+        return data.length + ( hashes.length + offsets.length ) * (long) Integer.BYTES;
+    }
+
+    private int find( byte[] bytes, int hash )
+    {
+        int mask = offsets.length - 1;
+        for ( int slot = hash & mask; offsets[slot] != 0; slot = ( slot + 1 ) & mask )
+        {
+            if ( hashes[slot] == hash && matches( offsets[slot] - 1, bytes ) )
+            {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches( int offset, byte[] bytes )
+    {
+        int length = ( ( data[offset] & 0xff ) << 8 ) | ( data[offset + 1] & 0xff );
+        return length == bytes.length && Arrays.equals( data, offset + 2, offset + 2 + length, bytes, 0,
+                                                        bytes.length );
+    }
+
+    private void rehash( int slots )
+    {
+        int[] newHashes = new int[slots];
+        int[] newOffsets = new int[slots];
+        for ( int i = 0; i < offsets.length; i++ )
+        {
+            if ( offsets[i] != 0 )
+            {
+                int slot = insertionSlot( hashes[i], newOffsets, newHashes );
+                newHashes[slot] = hashes[i];
+                newOffsets[slot] = offsets[i];
+            }
+        }
+        hashes = newHashes;
+        offsets = newOffsets;
+    }
+
+    private static int insertionSlot( int hash, int[] offsets, int[] hashes )
+    {
+        int mask = offsets.length - 1;
+        int slot = hash & mask;
+        while ( offsets[slot] != 0 )
+        {
+            slot = ( slot + 1 ) & mask;
+        }
+        return slot;
+    }
+
+    private static byte[] encode( String path )
+    {
+        return path.getBytes( StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * FNV-1a, with the bits spread so linear probing works on the low ones.
+     */
+    private static int hash( byte[] bytes )
+    {
+        int h = 0x811c9dc5;
+        for ( byte b : bytes )
+        {
+            h = ( h ^ ( b & 0xff ) ) * 0x01000193;
+        }
+        return h ^ ( h >>> 16 );
+    }
+}
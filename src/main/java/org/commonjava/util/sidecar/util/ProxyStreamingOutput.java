@@ -3,6 +3,8 @@ package org.commonjava.util.sidecar.util;
 import io.opentelemetry.api.trace.Span;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.commonjava.util.sidecar.services.ProxyCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,6 +12,7 @@ import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.function.Consumer;
 
 public class ProxyStreamingOutput
                 implements StreamingOutput
@@ -20,10 +23,36 @@ public class ProxyStreamingOutput
 
     private final OtelAdapter otel;
 
+    private final Consumer<DigestingOutputStream> digestConsumer;
+
+    private final ProxyCache.Spool spool;
+
     public ProxyStreamingOutput( InputStream bodyStream, OtelAdapter otel )
+    {
+        this( bodyStream, otel, null );
+    }
+
+    /**
+     * @param digestConsumer if given, the body is hashed while it is copied and the consumer is called once the
+     *                       whole body has been written to the client. It is not called for an aborted transfer.
+     */
+    public ProxyStreamingOutput( InputStream bodyStream, OtelAdapter otel,
+                                 Consumer<DigestingOutputStream> digestConsumer )
+    {
+        this( bodyStream, otel, digestConsumer, null );
+    }
+
+    /**
+     * @param spool if given, receives a copy of the body and is committed to the proxy cache once the whole body has
+     *              been written to the client, or aborted otherwise.
+     */
+    public ProxyStreamingOutput( InputStream bodyStream, OtelAdapter otel,
+                                 Consumer<DigestingOutputStream> digestConsumer, ProxyCache.Spool spool )
     {
         this.bodyStream = bodyStream;
         this.otel = otel;
+        this.digestConsumer = digestConsumer;
+        this.spool = spool;
     }
 
     @Override
@@ -34,6 +63,16 @@ public class ProxyStreamingOutput
             try
             {
                 OutputStream out = output;
+                if ( spool != null )
+                {
+                    out = new TeeOutputStream( out, spool );
+                }
+                DigestingOutputStream dout = null;
+                if ( digestConsumer != null || spool != null )
+                {
+                    dout = new DigestingOutputStream( out );
+                    out = dout;
+                }
                 CountingOutputStream cout = new CountingOutputStream( out );
                 out = cout;
                 logger.trace( "Copying from: {} to: {}", bodyStream, out );
@@ -43,9 +82,22 @@ public class ProxyStreamingOutput
                 {
                     Span.current().setAttribute( "response.content_length", cout.getByteCount() );
                 }
+
+                if ( spool != null )
+                {
+                    spool.commit( dout );
+                }
+                if ( digestConsumer != null )
+                {
+                    digestConsumer.accept( dout );
+                }
             }
             finally
             {
+                if ( spool != null )
+                {
+                    spool.abort();
+                }
                 closeBodyStream( bodyStream );
             }
         }
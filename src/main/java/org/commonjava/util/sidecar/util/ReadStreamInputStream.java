@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Blocking view of a Vert.x {@link ReadStream}, so a body arriving on the event loop can be copied by a worker
+ * thread (e.g. a JAX-RS StreamingOutput). Buffers are queued as they arrive; the stream is paused once more than the
+ * high water mark is queued and resumed on its own context when the reader drained it below the low water mark.
+ */
+public class ReadStreamInputStream
+                extends InputStream
+{
+    static final int HIGH_WATER_MARK = 512 * 1024;
+
+    static final int LOW_WATER_MARK = 128 * 1024;
+
+    private final ReadStream<Buffer> stream;
+
+    private final Context context;
+
+    private final Runnable onAbort;
+
+    private final Deque<ByteBuf> queue = new ArrayDeque<>();
+
+    private long queuedBytes;
+
+    private boolean paused;
+
+    private boolean ended;
+
+    private boolean closed;
+
+    private Throwable failure;
+
+    /**
+     * Must be called on the context of the stream, before it delivers any data.
+     *
+     * @param onAbort run on the stream context when the reader closes before the end, e.g. to reset the request
+     */
+    public ReadStreamInputStream( ReadStream<Buffer> stream, Context context, Runnable onAbort )
+    {
+        this.stream = stream;
+        this.context = context;
+        this.onAbort = onAbort;
+        stream.handler( this::onBuffer );
+        stream.endHandler( v -> onEnd( null ) );
+        stream.exceptionHandler( this::onEnd );
+    }
+
+    private synchronized void onBuffer( Buffer buffer )
+    {
+        if ( closed )
+        {
+            return;
+        }
+        ByteBuf buf = buffer.getByteBuf();
+        queue.addLast( buf );
+        queuedBytes += buf.readableBytes();
+        if ( !paused && queuedBytes > HIGH_WATER_MARK )
+        {
+            paused = true;
+            stream.pause();
+        }
+        notifyAll();
+    }
+
+    private synchronized void onEnd( Throwable error )
+    {
+        ended = true;
+        failure = error;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] single = new byte[1];
+        int n = read( single, 0, 1 );
+        return n < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read( byte[] b, int off, int len ) throws IOException
+    {
+        if ( len == 0 )
+        {
+            return 0;
+        }
+
+        while ( queue.isEmpty() )
+        {
+            if ( closed )
+            {
+                throw new IOException( "Stream closed" );
+            }
+            if ( ended )
+            {
+                if ( failure != null )
+                {
+                    throw new IOException( "Upstream body failed: " + failure.getMessage(), failure );
+                }
+                return -1;
+            }
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while waiting for upstream body" );
+            }
+        }
+
+        ByteBuf head = queue.peekFirst();
+        int n = Math.min( len, head.readableBytes() );
+        head.readBytes( b, off, n );
+        if ( head.readableBytes() == 0 )
+        {
+            queue.removeFirst();
+        }
+        queuedBytes -= n;
+
+        if ( paused && queuedBytes < LOW_WATER_MARK )
+        {
+            paused = false;
+            context.runOnContext( v -> stream.resume() );
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int available()
+    {
+        return (int) Math.min( queuedBytes, Integer.MAX_VALUE );
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if ( closed )
+        {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        queuedBytes = 0;
+        if ( !ended && onAbort != null )
+        {
+            context.runOnContext( v -> onAbort.run() );
+        }
+        notifyAll();
+    }
+}
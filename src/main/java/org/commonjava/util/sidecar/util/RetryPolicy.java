@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Upstream retry settings from proxy.yaml. Waits grow exponentially with decorrelated jitter, i.e. each wait is random
+ * between the interval and three times the previous wait. maxBackOff is the total time to spend retrying a call, so
+ * no single wait is longer than that either.
+ */
+public final class RetryPolicy
+{
+    static final int DEFAULT_RETRY_COUNT = 3;
+
+    static final long DEFAULT_BACKOFF_MILLIS = Duration.ofSeconds( 3 ).toMillis();
+
+    static final long DEFAULT_MAX_BACKOFF_MILLIS = Duration.ofSeconds( 15 ).toMillis();
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final int count;
+
+    private final long interval;
+
+    private final long maxBackOff;
+
+    public RetryPolicy( int count, long interval, long maxBackOff )
+    {
+        this.count = count;
+        this.interval = Math.max( 1, interval );
+        this.maxBackOff = Math.max( this.interval, maxBackOff );
+    }
+
+    public static RetryPolicy from( ProxyConfiguration.Retry retry )
+    {
+        return new RetryPolicy( retry == null || retry.count < 0 ? DEFAULT_RETRY_COUNT : retry.count,
+                                retry == null || retry.interval < 0 ? DEFAULT_BACKOFF_MILLIS : retry.interval,
+                                retry == null || retry.maxBackOff < 0 ? DEFAULT_MAX_BACKOFF_MILLIS : retry.maxBackOff );
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public long getMaxBackOff()
+    {
+        return maxBackOff;
+    }
+
+    public boolean isRetryable( int code )
+    {
+        return code >= 500 || code == TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * @param previousDelay the previous wait, or 0 before the first retry
+     */
+    public long nextDelay( long previousDelay )
+    {
+        long upper = Math.max( interval, Math.min( maxBackOff, previousDelay * 3 ) );
+        long delay = upper > interval ? ThreadLocalRandom.current().nextLong( interval, upper + 1 ) : interval;
+        return Math.min( delay, maxBackOff );
+    }
+
+    /**
+     * Parse a Retry-After header, either delta-seconds or an HTTP date.
+     *
+     * @return the wait in millis, or null if absent or not parseable
+     */
+    public static Long parseRetryAfter( String value, long now )
+    {
+        if ( value == null || value.isBlank() )
+        {
+            return null;
+        }
+        String v = value.trim();
+        try
+        {
+            return Math.max( 0, Long.parseLong( v ) * 1000 );
+        }
+        catch ( NumberFormatException e )
+        {
+            try
+            {
+                return Math.max( 0, Instant.from( DateTimeFormatter.RFC_1123_DATE_TIME.parse( v ) ).toEpochMilli()
+                                - now );
+            }
+            catch ( DateTimeParseException dte )
+            {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RetryPolicy{" + "count=" + count + ", interval=" + interval + ", maxBackOff=" + maxBackOff + '}';
+    }
+}
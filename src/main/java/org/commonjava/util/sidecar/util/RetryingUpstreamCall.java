@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import io.opentelemetry.api.trace.Span;
+import io.smallrye.mutiny.Uni;
+import org.commonjava.util.sidecar.services.SidecarMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+
+/**
+ * Retries an upstream call on errors and retryable status codes. The waits are scheduled on the Mutiny timer, so no
+ * thread is held while waiting for the next try. maxBackOff bounds the time spent retrying: no try starts after it
+ * ran out, and the last wait is cut short to fit in. A Retry-After of the upstream is honored, unless it asks for more
+ * than what is left, in which case the response is passed on as is.
+ */
+public class RetryingUpstreamCall
+                implements UpstreamCall
+{
+    public static final String METRIC_RETRY_COUNT = "upstream.retry.count";
+
+    public static final String METRIC_RETRY_ON_ERROR = "upstream.retry.on-error";
+
+    public static final String METRIC_RETRY_ON_STATUS = "upstream.retry.on-status";
+
+    public static final String METRIC_RETRY_AFTER = "upstream.retry.retry-after";
+
+    public static final String METRIC_RETRY_EXHAUSTED = "upstream.retry.exhausted";
+
+    public static final String METRIC_RETRY_WAIT_MILLIS = "upstream.retry.wait.millis";
+
+    public static final String METRIC_RETRY_WAIT_MAX_MILLIS = "upstream.retry.wait.max.millis";
+
+    private static final String RETRY_AFTER = "Retry-After";
+
+    // enough for the usual error page; anything longer is cut off by closing the body
+    private static final int DISCARD_LIMIT = 64 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final UpstreamCall attempt;
+
+    private final RetryPolicy policy;
+
+    private final SidecarMetrics metrics;
+
+    private final OtelAdapter otel;
+
+    private final String description;
+
+    /**
+     * @param attempt one try; enqueue() is called again for each retry
+     * @param description used in logs, e.g. the method and path
+     */
+    public RetryingUpstreamCall( UpstreamCall attempt, RetryPolicy policy, SidecarMetrics metrics, OtelAdapter otel,
+                                 String description )
+    {
+        this.attempt = attempt;
+        this.policy = policy;
+        this.metrics = metrics;
+        this.otel = otel;
+        this.description = description;
+    }
+
+    @Override
+    public Uni<UpstreamResponse> enqueue()
+    {
+        return tryCall( 0, 0, System.currentTimeMillis() );
+    }
+
+    private Uni<UpstreamResponse> tryCall( int tryCounter, long previousDelay, long start )
+    {
+        return attempt.enqueue().onItemOrFailure().transformToUni( ( resp, error ) -> {
+            boolean retryable = error != null || policy.isRetryable( resp.code() );
+            if ( !retryable )
+            {
+                return Uni.createFrom().item( resp );
+            }
+
+            long remaining = policy.getMaxBackOff() - ( System.currentTimeMillis() - start );
+            if ( tryCounter >= policy.getCount() || remaining <= 0 )
+            {
+                metrics.increment( METRIC_RETRY_EXHAUSTED );
+                if ( otel.enabled() )
+                {
+                    Span.current().setAttribute( "target.retries", tryCounter );
+                }
+                return error != null ? Uni.createFrom().failure( error ) : Uni.createFrom().item( resp );
+            }
+
+            long delay = Math.min( policy.nextDelay( previousDelay ), remaining );
+            if ( error != null )
+            {
+                metrics.increment( METRIC_RETRY_ON_ERROR );
+                if ( otel.enabled() )
+                {
+                    Span.current().setAttribute( "target.try." + tryCounter + ".error_message", error.getMessage() );
+                    Span.current()
+                        .setAttribute( "target.try." + tryCounter + ".error_class",
+                                       error.getClass().getSimpleName() );
+                }
+                logger.debug( "TRY(" + tryCounter + "/" + policy.getCount() + "): Failed upstream request: "
+                                              + description + ", retry in " + delay + "ms", error );
+            }
+            else
+            {
+                Long retryAfter = RetryPolicy.parseRetryAfter( resp.header( RETRY_AFTER ),
+                                                               System.currentTimeMillis() );
+                if ( retryAfter != null )
+                {
+                    if ( retryAfter > remaining )
+                    {
+                        logger.debug( "Upstream asks to retry {} after {}ms, more than the {}ms left, giving up",
+                                      description, retryAfter, remaining );
+                        metrics.increment( METRIC_RETRY_EXHAUSTED );
+                        return Uni.createFrom().item( resp );
+                    }
+                    metrics.increment( METRIC_RETRY_AFTER );
+                    delay = Math.max( delay, retryAfter );
+                }
+
+                metrics.increment( METRIC_RETRY_ON_STATUS );
+                if ( otel.enabled() )
+                {
+                    Span.current().setAttribute( "target.try." + tryCounter + ".status_code", resp.code() );
+                }
+                logger.debug( "TRY({}/{}): Response indicates server error: {} {} for {}, retry in {}ms", tryCounter,
+                              policy.getCount(), resp.code(), resp.message(), description, delay );
+                discard( resp );
+            }
+
+            metrics.increment( METRIC_RETRY_COUNT );
+            metrics.add( METRIC_RETRY_WAIT_MILLIS, delay );
+            metrics.updateMax( METRIC_RETRY_WAIT_MAX_MILLIS, delay );
+
+            long wait = delay;
+            return Uni.createFrom()
+                      .voidItem()
+                      .onItem()
+                      .delayIt()
+                      .by( Duration.ofMillis( wait ) )
+                      .onItem()
+                      .transformToUni( v -> tryCall( tryCounter + 1, wait, start ) );
+        } );
+    }
+
+    /**
+     * Read what is left of a response we won't pass on, so the connection can be reused.
+     */
+    private void discard( UpstreamResponse resp )
+    {
+        try (InputStream body = resp.bodyStream())
+        {
+            if ( body == null )
+            {
+                return;
+            }
+            byte[] buf = new byte[8192];
+            long total = 0;
+            int n;
+            while ( total < DISCARD_LIMIT && ( n = body.read( buf ) ) >= 0 )
+            {
+                total += n;
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.trace( "Failed to discard response body of: " + description, e );
+        }
+    }
+}
@@ -1,5 +1,18 @@
 package org.commonjava.util.sidecar.util;
 
+import io.vertx.core.http.HttpServerRequest;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
 import java.time.Duration;
 
 import static io.vertx.core.http.impl.HttpUtils.normalizePath;
@@ -18,11 +31,83 @@ public class SidecarUtils
         return Duration.parse( "pt" + timeout ).toMillis();
     }
 
+    /**
+     * @return the override parsed with {@link #parseTimeout(String)}, or the default if it is blank or invalid
+     */
+    public static long resolveTimeout( String override, long defaultMillis )
+    {
+        if ( override == null || override.isBlank() )
+        {
+            return defaultMillis;
+        }
+        try
+        {
+            return parseTimeout( override );
+        }
+        catch ( Exception e )
+        {
+            LoggerFactory.getLogger( SidecarUtils.class )
+                         .error( "Failed to parse timeout: '" + override + "', use " + defaultMillis, e );
+            return defaultMillis;
+        }
+    }
+
     public static <R> R normalizePathAnd( String path, CheckedFunction<String, R> action ) throws Exception
     {
         return action.apply( normalizePath( path ) );
     }
 
+    /**
+     * Copy a request body to a temp file, so it can be sent upstream (and re-sent on retry) without holding it in
+     * memory.
+     */
+    public static File cacheInputStream( InputStream is ) throws IOException
+    {
+        File bodyFile = Files.createTempFile( "post-", ".bin" ).toFile();
+        try (OutputStream os = new FileOutputStream( bodyFile ))
+        {
+            IOUtils.copy( is, os );
+        }
+
+        return bodyFile;
+    }
+
+    public static void deleteBodyFile( File bodyFile )
+    {
+        Logger logger = LoggerFactory.getLogger( SidecarUtils.class );
+        logger.debug( "Deleting input post/put body tempfile: {}", bodyFile );
+        try
+        {
+            if ( !Files.deleteIfExists( bodyFile.toPath() ) )
+            {
+                logger.trace( "Could not delete body input file: {}", bodyFile );
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to delete body input file: " + bodyFile, e );
+        }
+    }
+
+    /**
+     * @return 'protocol://authority' the client used to reach us, or null if the URI can't be parsed
+     */
+    public static String getProxyOrigin( HttpServerRequest request )
+    {
+        String uri = request.absoluteURI();
+        try
+        {
+            URL url = new URL( uri );
+            return String.format( "%s://%s", url.getProtocol(), url.getAuthority() );
+        }
+        catch ( MalformedURLException e )
+        {
+            LoggerFactory.getLogger( SidecarUtils.class )
+                         .error( "Failed to parse requested URI: '" + uri + "'", e ); // shouldn't happen
+            return null;
+        }
+    }
+
     @FunctionalInterface
     public interface CheckedFunction<T, R>
     {
@@ -0,0 +1,502 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.commonjava.util.sidecar.model.AccessChannel;
+import org.commonjava.util.sidecar.model.StoreEffect;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.TrackedContent;
+import org.commonjava.util.sidecar.model.TrackedContentEntry;
+import org.commonjava.util.sidecar.model.TrackingKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary form of a tracking report, about a quarter of the size of the JSON. Numbers are varints, digests raw
+ * bytes and timestamps deltas. Tracking keys, store keys and origin URL prefixes are written once and referenced by
+ * number after that; the origin URL of an entry usually is such a prefix followed by the entry path.
+ * <p>
+ * Layout: magic "TRK", version, report key, then one record per entry, each starting with its set (1 uploads,
+ * 2 downloads), and 0 at the end. Entries are written as they are read, so a report being appended to can be written.
+ */
+public final class TrackingReportCodec
+{
+    public static final String MEDIA_TYPE = "application/vnd.indy.tracking-report";
+
+    private static final byte[] MAGIC = { 'T', 'R', 'K' };
+
+    private static final int VERSION = 1;
+
+    private static final int END = 0;
+
+    private static final int UPLOAD = 1;
+
+    private static final int DOWNLOAD = 2;
+
+    private static final int RAW_MD5 = 1;
+
+    private static final int RAW_SHA1 = 2;
+
+    private static final int RAW_SHA256 = 4;
+
+    private static final AccessChannel[] CHANNELS = AccessChannel.values();
+
+    private static final StoreEffect[] EFFECTS = StoreEffect.values();
+
+    private TrackingReportCodec()
+    {
+    }
+
+    public static boolean isCodecType( String contentType )
+    {
+        return contentType != null && contentType.startsWith( MEDIA_TYPE );
+    }
+
+    /**
+     * Write the report and flush, leaving the stream open.
+     */
+    public static void write( TrackedContent content, OutputStream out ) throws IOException
+    {
+        new Writer( new DataOutputStream( new BufferedOutputStream( out, 65536 ) ) ).write( content );
+    }
+
+    public static TrackedContent read( InputStream in ) throws IOException
+    {
+        return new Reader( new DataInputStream( new BufferedInputStream( in, 65536 ) ) ).read();
+    }
+
+    private static final class Writer
+    {
+        private final DataOutputStream out;
+
+        private final Map<Object, Integer> trackingKeys = new HashMap<>();
+
+        private final Map<Object, Integer> storeKeys = new HashMap<>();
+
+        private final Map<Object, Integer> originPrefixes = new HashMap<>();
+
+        Writer( DataOutputStream out )
+        {
+            this.out = out;
+        }
+
+        void write( TrackedContent content ) throws IOException
+        {
+            out.write( MAGIC );
+            out.writeByte( VERSION );
+            writeString( content.getKey() == null ? null : content.getKey().getId() );
+            writeEntries( UPLOAD, content.uploads() );
+            writeEntries( DOWNLOAD, content.downloads() );
+            out.writeByte( END );
+            out.flush();
+        }
+
+        private void writeEntries( int set, Collection<TrackedContentEntry> entries ) throws IOException
+        {
+            for ( TrackedContentEntry entry : entries )
+            {
+                out.writeByte( set );
+                writeEntry( entry );
+            }
+        }
+
+        private void writeEntry( TrackedContentEntry entry ) throws IOException
+        {
+            TrackingKey trackingKey = entry.getTrackingKey();
+            if ( writeRef( trackingKeys, trackingKey == null ? null : trackingKey.getId() ) )
+            {
+                writeString( trackingKey.getId() );
+            }
+            StoreKey storeKey = entry.getStoreKey();
+            if ( writeRef( storeKeys, storeKey ) )
+            {
+                writeString( storeKey.getPackageType() );
+                writeString( storeKey.getType().name() );
+                writeString( storeKey.getName() );
+            }
+            writeEnum( entry.getAccessChannel() );
+            String path = entry.getPath();
+            writeString( path );
+            writeOrigin( entry.getOriginUrl(), path );
+            writeEnum( entry.getEffect() );
+
+            String md5 = entry.getMd5();
+            String sha1 = entry.getSha1();
+            String sha256 = entry.getSha256();
+            int raw = ( isHex( md5, 16 ) ? RAW_MD5 : 0 ) | ( isHex( sha1, 20 ) ? RAW_SHA1 : 0 )
+                            | ( isHex( sha256, 32 ) ? RAW_SHA256 : 0 );
+            out.writeByte( raw );
+            writeDigest( md5, ( raw & RAW_MD5 ) != 0 );
+            writeDigest( sha1, ( raw & RAW_SHA1 ) != 0 );
+            writeDigest( sha256, ( raw & RAW_SHA256 ) != 0 );
+
+            Long size = entry.getSize();
+            writeVarLong( size == null ? 0 : size + 1 );
+            writeVarLong( entry.getIndex() );
+            Set<Long> timestamps = entry.getTimestamps();
+            if ( timestamps == null )
+            {
+                writeVarLong( 0 );
+                return;
+            }
+            long[] sorted = timestamps.stream().mapToLong( Long::longValue ).sorted().toArray();
+            writeVarLong( sorted.length + 1 );
+            long previous = entry.getIndex();
+            for ( long timestamp : sorted )
+            {
+                writeZigZag( timestamp - previous );
+                previous = timestamp;
+            }
+        }
+
+        /**
+         * Most origin URLs are the URL of the repository followed by the path, so only the repository URL is kept.
+         */
+        private void writeOrigin( String origin, String path ) throws IOException
+        {
+            if ( origin == null )
+            {
+                writeVarLong( 0 );
+                return;
+            }
+            String prefix;
+            String rest;
+            if ( path != null && !path.isEmpty() && origin.endsWith( path ) )
+            {
+                prefix = origin.substring( 0, origin.length() - path.length() );
+                rest = null; // the path
+            }
+            else
+            {
+                prefix = origin.substring( 0, origin.lastIndexOf( '/' ) + 1 );
+                rest = origin.substring( prefix.length() );
+            }
+            if ( writeRef( originPrefixes, prefix ) )
+            {
+                writeString( prefix );
+            }
+            writeString( rest );
+        }
+
+        /**
+         * @return whether the value is new and has to be written after the reference
+         */
+        private boolean writeRef( Map<Object, Integer> dictionary, Object value ) throws IOException
+        {
+            if ( value == null )
+            {
+                writeVarLong( 0 );
+                return false;
+            }
+            Integer ref = dictionary.get( value );
+            if ( ref != null )
+            {
+                writeVarLong( ref );
+                return false;
+            }
+            ref = dictionary.size() + 1;
+            dictionary.put( value, ref );
+            writeVarLong( ref );
+            return true;
+        }
+
+        private void writeEnum( Enum<?> value ) throws IOException
+        {
+            out.writeByte( value == null ? 0 : value.ordinal() + 1 );
+        }
+
+        private void writeDigest( String digest, boolean raw ) throws IOException
+        {
+            if ( !raw )
+            {
+                writeString( digest );
+                return;
+            }
+            for ( int i = 0; i < digest.length(); i += 2 )
+            {
+                int high = Character.digit( digest.charAt( i ), 16 );
+                out.writeByte( high << 4 | Character.digit( digest.charAt( i + 1 ), 16 ) );
+            }
+        }
+
+        private void writeString( String value ) throws IOException
+        {
+            if ( value == null )
+            {
+                writeVarLong( 0 );
+                return;
+            }
+            byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+            writeVarLong( bytes.length + 1 );
+            out.write( bytes );
+        }
+
+        private void writeZigZag( long value ) throws IOException
+        {
+            writeVarLong( ( value << 1 ) ^ ( value >> 63 ) );
+        }
+
+        private void writeVarLong( long value ) throws IOException
+        {
+            while ( ( value & ~0x7FL ) != 0 )
+            {
+                out.writeByte( (int) ( value & 0x7F ) | 0x80 );
+                value >>>= 7;
+            }
+            out.writeByte( (int) value );
+        }
+
+        /**
+         * Only lower case digests are written raw, since they are read back that way.
+         */
+        private static boolean isHex( String digest, int bytes )
+        {
+            if ( digest == null || digest.length() != bytes * 2 )
+            {
+                return false;
+            }
+            for ( int i = 0; i < digest.length(); i++ )
+            {
+                char c = digest.charAt( i );
+                if ( ( c < '0' || c > '9' ) && ( c < 'a' || c > 'f' ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Reader
+    {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final DataInputStream in;
+
+        private final List<TrackingKey> trackingKeys = new ArrayList<>();
+
+        private final List<StoreKey> storeKeys = new ArrayList<>();
+
+        private final List<String> originPrefixes = new ArrayList<>();
+
+        Reader( DataInputStream in )
+        {
+            this.in = in;
+        }
+
+        TrackedContent read() throws IOException
+        {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully( magic );
+            if ( !Arrays.equals( magic, MAGIC ) )
+            {
+                throw new IOException( "Not a tracking report" );
+            }
+            int version = in.readUnsignedByte();
+            if ( version != VERSION )
+            {
+                throw new IOException( "Unsupported tracking report version: " + version );
+            }
+            String id = readString();
+            TrackingKey key = id == null ? null : new TrackingKey( id );
+
+            Set<TrackedContentEntry> uploads = new LinkedHashSet<>();
+            Set<TrackedContentEntry> downloads = new LinkedHashSet<>();
+            for ( int set = in.readUnsignedByte(); set != END; set = in.readUnsignedByte() )
+            {
+                if ( set == UPLOAD )
+                {
+                    uploads.add( readEntry() );
+                }
+                else if ( set == DOWNLOAD )
+                {
+                    downloads.add( readEntry() );
+                }
+                else
+                {
+                    throw new IOException( "Bad tracking report record: " + set );
+                }
+            }
+            return new TrackedContent( key, uploads, downloads );
+        }
+
+        private TrackedContentEntry readEntry() throws IOException
+        {
+            TrackedContentEntry entry = new TrackedContentEntry();
+            entry.setTrackingKey( readTrackingKey() );
+            entry.setStoreKey( readStoreKey() );
+            entry.setAccessChannel( readEnum( CHANNELS ) );
+            String path = readString();
+            entry.setPath( path );
+            entry.setOriginUrl( readOrigin( path ) );
+            entry.setEffect( readEnum( EFFECTS ) );
+
+            int raw = in.readUnsignedByte();
+            entry.setMd5( readDigest( ( raw & RAW_MD5 ) != 0 ? 16 : 0 ) );
+            entry.setSha1( readDigest( ( raw & RAW_SHA1 ) != 0 ? 20 : 0 ) );
+            entry.setSha256( readDigest( ( raw & RAW_SHA256 ) != 0 ? 32 : 0 ) );
+
+            long size = readVarLong();
+            entry.setSize( size == 0 ? null : size - 1 );
+            entry.setIndex( readVarLong() );
+            long count = readVarLong();
+            if ( count > 0 )
+            {
+                Set<Long> timestamps = new HashSet<>();
+                long previous = entry.getIndex();
+                for ( long i = 1; i < count; i++ )
+                {
+                    long delta = readVarLong();
+                    previous += ( delta >>> 1 ) ^ -( delta & 1 );
+                    timestamps.add( previous );
+                }
+                entry.setTimestamps( timestamps );
+            }
+            return entry;
+        }
+
+        private TrackingKey readTrackingKey() throws IOException
+        {
+            int ref = readRef( trackingKeys );
+            if ( ref < 0 || ref < trackingKeys.size() )
+            {
+                return ref < 0 ? null : trackingKeys.get( ref );
+            }
+            return define( trackingKeys, new TrackingKey( readString() ) );
+        }
+
+        private StoreKey readStoreKey() throws IOException
+        {
+            int ref = readRef( storeKeys );
+            if ( ref < 0 || ref < storeKeys.size() )
+            {
+                return ref < 0 ? null : storeKeys.get( ref );
+            }
+            String packageType = readString();
+            StoreType type = StoreType.valueOf( readString() );
+            return define( storeKeys, StoreKey.dedupe( new StoreKey( packageType, type, readString() ) ) );
+        }
+
+        private String readOrigin( String path ) throws IOException
+        {
+            int ref = readRef( originPrefixes );
+            if ( ref < 0 )
+            {
+                return null;
+            }
+            String prefix = ref < originPrefixes.size() ? originPrefixes.get( ref ) :
+                            define( originPrefixes, readString() );
+            String rest = readString();
+            return prefix + ( rest == null ? path : rest );
+        }
+
+        /**
+         * @return the index of the value, which is the size of the dictionary for a value that follows; -1 for null
+         */
+        private int readRef( List<?> dictionary ) throws IOException
+        {
+            long ref = readVarLong();
+            if ( ref > dictionary.size() + 1 )
+            {
+                throw new IOException( "Bad tracking report reference: " + ref );
+            }
+            return (int) ref - 1;
+        }
+
+        private static <T> T define( List<T> dictionary, T value )
+        {
+            dictionary.add( value );
+            return value;
+        }
+
+        private <T extends Enum<T>> T readEnum( T[] values ) throws IOException
+        {
+            int ordinal = in.readUnsignedByte();
+            if ( ordinal > values.length )
+            {
+                throw new IOException( "Bad tracking report constant: " + ordinal );
+            }
+            return ordinal == 0 ? null : values[ordinal - 1];
+        }
+
+        /**
+         * @param raw digest length in bytes, 0 if it was written as a string
+         */
+        private String readDigest( int raw ) throws IOException
+        {
+            if ( raw == 0 )
+            {
+                return readString();
+            }
+            char[] hex = new char[raw * 2];
+            for ( int i = 0; i < raw; i++ )
+            {
+                int b = in.readUnsignedByte();
+                hex[i * 2] = HEX[b >> 4];
+                hex[i * 2 + 1] = HEX[b & 0xF];
+            }
+            return new String( hex );
+        }
+
+        private String readString() throws IOException
+        {
+            long length = readVarLong();
+            if ( length == 0 )
+            {
+                return null;
+            }
+            if ( length > Integer.MAX_VALUE )
+            {
+                throw new IOException( "Bad tracking report string length: " + length );
+            }
+            byte[] bytes = new byte[(int) length - 1];
+            in.readFully( bytes );
+            return new String( bytes, StandardCharsets.UTF_8 );
+        }
+
+        private long readVarLong() throws IOException
+        {
+            long value = 0;
+            for ( int shift = 0; shift < 64; shift += 7 )
+            {
+                int b = in.readUnsignedByte();
+                value |= (long) ( b & 0x7F ) << shift;
+                if ( ( b & 0x80 ) == 0 )
+                {
+                    return value;
+                }
+            }
+            throw new IOException( "Bad tracking report varint" );
+        }
+    }
+}
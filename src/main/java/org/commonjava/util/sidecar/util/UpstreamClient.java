@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import io.vertx.core.http.HttpServerRequest;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * HTTP engine used to talk to one configured upstream service. The incoming request, when given, supplies the headers
+ * to pass on; internal calls may pass null.
+ */
+public interface UpstreamClient
+{
+    String ENGINE_OKHTTP = "okhttp";
+
+    String ENGINE_VERTX = "vertx";
+
+    UpstreamCall head( String path, HttpServerRequest req );
+
+    UpstreamCall get( String path, HttpServerRequest req );
+
+    /**
+     * GET with extra request headers, which replace those of the same name taken from the incoming request.
+     */
+    UpstreamCall get( String path, HttpServerRequest req, Map<String, String> headers );
+
+    UpstreamCall post( String path, InputStream is, HttpServerRequest req );
+
+    UpstreamCall put( String path, InputStream is, HttpServerRequest req );
+
+    /**
+     * Send a body that was already spooled to disk. The file is deleted once the call completes.
+     */
+    UpstreamCall put( String path, File bodyFile, HttpServerRequest req );
+
+    /**
+     * PUT of a spooled body with extra request headers, e.g. the Content-Type of a body the sidecar made itself.
+     */
+    UpstreamCall put( String path, File bodyFile, HttpServerRequest req, Map<String, String> headers );
+
+    UpstreamCall delete( String path, HttpServerRequest req );
+
+    /**
+     * Re-read the proxy configuration, e.g. after proxy.yaml changed.
+     */
+    void reinit();
+
+    /**
+     * @return current connection and call counts, empty if the engine does not expose them
+     */
+    default Map<String, Long> poolState()
+    {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Release connections. Calls already in flight are allowed to finish.
+     */
+    default void close()
+    {
+    }
+}
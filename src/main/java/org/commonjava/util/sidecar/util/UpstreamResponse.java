@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import java.io.InputStream;
+import java.util.function.BiConsumer;
+
+/**
+ * Status, headers and streaming body of an upstream response, independent of the engine that fetched it.
+ */
+public interface UpstreamResponse
+{
+    int code();
+
+    String message();
+
+    default boolean isSuccessful()
+    {
+        return code() >= 200 && code() < 300;
+    }
+
+    /**
+     * @return the first value of the header, or null
+     */
+    String header( String name );
+
+    void forEachHeader( BiConsumer<String, String> consumer );
+
+    /**
+     * @return the body, which the caller has to close
+     */
+    InputStream bodyStream();
+}
@@ -0,0 +1,367 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import io.opentelemetry.api.trace.Span;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.smallrye.mutiny.vertx.UniHelper;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.RequestOptions;
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.services.SidecarMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import static io.vertx.core.http.HttpHeaders.CONTENT_LENGTH;
+import static javax.ws.rs.core.HttpHeaders.HOST;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.HEADER_PROXY_ORIGIN;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.HEADER_PROXY_TRACE_ID;
+import static org.commonjava.util.sidecar.util.SidecarUtils.cacheInputStream;
+import static org.commonjava.util.sidecar.util.SidecarUtils.deleteBodyFile;
+import static org.commonjava.util.sidecar.util.SidecarUtils.getProxyOrigin;
+import static org.commonjava.util.sidecar.util.SidecarUtils.resolveTimeout;
+
+/**
+ * Vert.x based {@link UpstreamClient}. Requests are written and responses read on the event loop, without handing the
+ * call to another thread pool. Only the response item is moved to a worker thread, because the caller copies the body
+ * with blocking IO.
+ */
+public class VertxClientAdapter
+                implements UpstreamClient
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Vertx vertx;
+
+    private final ServiceConfig serviceConfig;
+
+    private final ProxyConfiguration proxyConfiguration;
+
+    private final AtomicLong timeout;
+
+    private final OtelAdapter otel;
+
+    private final SidecarMetrics metrics;
+
+    private volatile HttpClient client;
+
+    private volatile long serviceTimeout;
+
+    public VertxClientAdapter( Vertx vertx, ServiceConfig serviceConfig, ProxyConfiguration proxyConfiguration,
+                               AtomicLong timeout, OtelAdapter otel, SidecarMetrics metrics )
+    {
+        this.vertx = vertx;
+        this.serviceConfig = serviceConfig;
+        this.proxyConfiguration = proxyConfiguration;
+        this.timeout = timeout;
+        this.otel = otel;
+        this.metrics = metrics;
+        reinit();
+    }
+
+    @Override
+    public UpstreamCall head( String path, HttpServerRequest req )
+    {
+        return call( HttpMethod.HEAD, path, req, null );
+    }
+
+    @Override
+    public UpstreamCall get( String path, HttpServerRequest req )
+    {
+        return call( HttpMethod.GET, path, req, null );
+    }
+
+    @Override
+    public UpstreamCall get( String path, HttpServerRequest req, Map<String, String> headers )
+    {
+        return call( HttpMethod.GET, path, req, headers, null );
+    }
+
+    @Override
+    public UpstreamCall post( String path, InputStream is, HttpServerRequest req )
+    {
+        try
+        {
+            return call( HttpMethod.POST, path, req, cacheInputStream( is ) );
+        }
+        catch ( IOException e )
+        {
+            return () -> Uni.createFrom().failure( e );
+        }
+    }
+
+    @Override
+    public UpstreamCall put( String path, InputStream is, HttpServerRequest req )
+    {
+        try
+        {
+            return put( path, cacheInputStream( is ), req );
+        }
+        catch ( IOException e )
+        {
+            return () -> Uni.createFrom().failure( e );
+        }
+    }
+
+    @Override
+    public UpstreamCall put( String path, File bodyFile, HttpServerRequest req )
+    {
+        return call( HttpMethod.PUT, path, req, bodyFile );
+    }
+
+    @Override
+    public UpstreamCall put( String path, File bodyFile, HttpServerRequest req, Map<String, String> headers )
+    {
+        return call( HttpMethod.PUT, path, req, headers, bodyFile );
+    }
+
+    @Override
+    public UpstreamCall delete( String path, HttpServerRequest req )
+    {
+        return call( HttpMethod.DELETE, path, req, null );
+    }
+
+    @Override
+    public void reinit()
+    {
+        serviceTimeout = resolveTimeout( serviceConfig.readTimeout, timeout.get() );
+        int t = (int) Math.min( serviceTimeout, Integer.MAX_VALUE );
+        HttpClientOptions options = new HttpClientOptions().setDefaultHost( serviceConfig.host )
+                                                           .setDefaultPort( getPort() )
+                                                           .setSsl( serviceConfig.ssl )
+                                                           .setConnectTimeout( t )
+                                                           .setKeepAlive( true )
+                                                           .setTryUseCompression( false );
+        applyPool( options, serviceConfig.pool );
+        HttpClient old = client;
+        client = vertx.createHttpClient( options );
+        if ( old != null )
+        {
+            // let calls that already picked the old client finish
+            vertx.setTimer( Math.max( 1, serviceTimeout ), id -> old.close() );
+        }
+    }
+
+    /**
+     * The per host cap maps to the pool size; Vert.x has no separate total or idle limit.
+     */
+    private void applyPool( HttpClientOptions options, ServiceConfig.Pool pool )
+    {
+        if ( pool == null )
+        {
+            return;
+        }
+        if ( pool.maxRequestsPerHost > 0 )
+        {
+            options.setMaxPoolSize( pool.maxRequestsPerHost );
+        }
+        if ( pool.keepAlive != null && !pool.keepAlive.isBlank() )
+        {
+            long keepAlive = resolveTimeout( pool.keepAlive, TimeUnit.SECONDS.toMillis(
+                            HttpClientOptions.DEFAULT_KEEP_ALIVE_TIMEOUT ) );
+            options.setKeepAliveTimeout( (int) Math.max( 1, TimeUnit.MILLISECONDS.toSeconds( keepAlive ) ) );
+        }
+        if ( pool.sendBuffer > 0 )
+        {
+            options.setSendBufferSize( pool.sendBuffer );
+        }
+        if ( pool.receiveBuffer > 0 )
+        {
+            options.setReceiveBufferSize( pool.receiveBuffer );
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        HttpClient current = client;
+        if ( current != null )
+        {
+            current.close();
+        }
+    }
+
+    private int getPort()
+    {
+        if ( serviceConfig.port > 0 )
+        {
+            return serviceConfig.port;
+        }
+        return serviceConfig.ssl ? 443 : 80;
+    }
+
+    private UpstreamCall call( HttpMethod method, String path, HttpServerRequest req, File bodyFile )
+    {
+        return call( method, path, req, Collections.emptyMap(), bodyFile );
+    }
+
+    private UpstreamCall call( HttpMethod method, String path, HttpServerRequest req, Map<String, String> extraHeaders,
+                               File bodyFile )
+    {
+        MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+        RequestOptions options = new RequestOptions().setMethod( method )
+                                                     .setURI( path.startsWith( "/" ) ? path : "/" + path )
+                                                     .setHeaders( headers )
+                                                     .setTimeout( serviceTimeout );
+        headersFrom( req, headers );
+        extraHeaders.forEach( headers::set );
+
+        if ( otel.enabled() )
+        {
+            otel.injectContext( headers );
+            Span.current().setAttribute( "target.timeout", serviceTimeout );
+        }
+
+        UpstreamCall retrying = new RetryingUpstreamCall( () -> attempt( options, bodyFile ),
+                                                          RetryPolicy.from( proxyConfiguration.getRetry() ), metrics,
+                                                          otel, method + " " + path );
+        if ( bodyFile == null )
+        {
+            return retrying;
+        }
+        // the body is re-sent on retries, so it's only deleted once the call is over
+        return () -> retrying.enqueue().onTermination().invoke( () -> deleteBodyFile( bodyFile ) );
+    }
+
+    private Uni<UpstreamResponse> attempt( RequestOptions options, File bodyFile )
+    {
+        return Uni.createFrom().deferred( () -> {
+            // Start from the event loop: the response callbacks then run in line with the connection events, so the
+            // body handlers are set before the first buffer is delivered.
+            Promise<UpstreamResponse> result = Promise.promise();
+            Context context = vertx.getOrCreateContext();
+            HttpClient httpClient = client;
+            context.runOnContext( v -> httpClient.request( options )
+                                                 .compose( request -> send( request, bodyFile ) )
+                                                 .map( this::toUpstreamResponse )
+                                                 .onComplete( result ) );
+            return UniHelper.toUni( result.future() );
+        } ).emitOn( Infrastructure.getDefaultWorkerPool() );
+    }
+
+    private UpstreamResponse toUpstreamResponse( HttpClientResponse resp )
+    {
+        InputStream body = new ReadStreamInputStream( resp, vertx.getOrCreateContext(), () -> resp.request().reset() );
+        return new VertxUpstreamResponse( resp, body );
+    }
+
+    private void headersFrom( HttpServerRequest request, MultiMap target )
+    {
+        if ( request == null )
+        {
+            return;
+        }
+
+        MultiMap headers = request.headers();
+        headers.forEach( h -> {
+            if ( !HOST.equalsIgnoreCase( h.getKey() ) )
+            {
+                target.add( h.getKey(), h.getValue() );
+            }
+        } );
+
+        target.set( HEADER_PROXY_TRACE_ID, UUID.randomUUID().toString() );
+        if ( headers.get( HEADER_PROXY_ORIGIN ) == null )
+        {
+            String proxyOrigin = getProxyOrigin( request );
+            if ( proxyOrigin != null )
+            {
+                target.set( HEADER_PROXY_ORIGIN, proxyOrigin );
+            }
+        }
+    }
+
+    private Future<HttpClientResponse> send( HttpClientRequest request, File bodyFile )
+    {
+        if ( bodyFile == null )
+        {
+            return request.send();
+        }
+
+        return vertx.fileSystem().open( bodyFile.getPath(), new OpenOptions().setRead( true ).setWrite( false ) )
+                    .compose( file -> {
+                        request.putHeader( CONTENT_LENGTH, String.valueOf( bodyFile.length() ) );
+                        return request.send( file ).onComplete( ar -> file.close() );
+                    } );
+    }
+
+    private static final class VertxUpstreamResponse
+                    implements UpstreamResponse
+    {
+        private final HttpClientResponse response;
+
+        private final InputStream body;
+
+        VertxUpstreamResponse( HttpClientResponse response, InputStream body )
+        {
+            this.response = response;
+            this.body = body;
+        }
+
+        @Override
+        public int code()
+        {
+            return response.statusCode();
+        }
+
+        @Override
+        public String message()
+        {
+            return response.statusMessage();
+        }
+
+        @Override
+        public String header( String name )
+        {
+            return response.getHeader( name );
+        }
+
+        @Override
+        public void forEachHeader( BiConsumer<String, String> consumer )
+        {
+            response.headers().forEach( header -> consumer.accept( header.getKey(), header.getValue() ) );
+        }
+
+        @Override
+        public InputStream bodyStream()
+        {
+            return body;
+        }
+    }
+}
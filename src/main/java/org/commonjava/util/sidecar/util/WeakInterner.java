@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shares one instance between equal values, like String.intern(), but only while the instance is in use: the values
+ * are held weakly, so what is no longer referenced, e.g. the keys of a cleared report, is dropped again.
+ */
+public final class WeakInterner<T>
+{
+    private final Map<T, WeakReference<T>> values = new WeakHashMap<>();
+
+    /**
+     * @return the instance equal to the value that is in use, or the value itself if there is none
+     */
+    public synchronized T intern( T value )
+    {
+        if ( value == null )
+        {
+            return null;
+        }
+        WeakReference<T> ref = values.get( value );
+        T existing = ref == null ? null : ref.get();
+        if ( existing != null )
+        {
+            return existing;
+        }
+        values.put( value, new WeakReference<>( value ) );
+        return value;
+    }
+
+    synchronized int size()
+    {
+        return values.size();
+    }
+}
@@ -9,48 +9,65 @@ import io.vertx.core.Future;
 import io.vertx.core.http.HttpServerRequest;
 import okhttp3.Call;
 import okhttp3.Callback;
-import okhttp3.Interceptor;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
-import org.apache.commons.io.IOUtils;
+import okhttp3.ResponseBody;
 import org.commonjava.util.sidecar.config.ProxyConfiguration;
 import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.services.SidecarMetrics;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.SocketFactory;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.file.Files;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
 import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import static javax.ws.rs.core.HttpHeaders.HOST;
-
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.HEADER_PROXY_ORIGIN;
+import static org.commonjava.util.sidecar.services.PreSeedConstants.HEADER_PROXY_TRACE_ID;
+import static org.commonjava.util.sidecar.util.SidecarUtils.cacheInputStream;
+import static org.commonjava.util.sidecar.util.SidecarUtils.deleteBodyFile;
+import static org.commonjava.util.sidecar.util.SidecarUtils.getProxyOrigin;
+import static org.commonjava.util.sidecar.util.SidecarUtils.resolveTimeout;
+
+/**
+ * OkHttp based {@link UpstreamClient}. Calls run on the OkHttp dispatcher, which is also where the response body is
+ * read from.
+ */
 public class WebClientAdapter
+                implements UpstreamClient
 {
-    private final Logger logger = LoggerFactory.getLogger( getClass() );
+    // OkHttp's Dispatcher and ConnectionPool defaults
+    private static final int DEFAULT_MAX_REQUESTS = 64;
 
-    private final String PROXY_ORIGIN = "proxy-origin";
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 5;
 
-    private final String HEADER_PROXY_TRACE_ID = "Proxy-Trace-Id";
+    private static final int DEFAULT_MAX_IDLE = 5;
 
-    private final ProxyConfiguration proxyConfiguration;
+    private static final long DEFAULT_KEEP_ALIVE = TimeUnit.MINUTES.toMillis( 5 );
 
-    private final int DEFAULT_RETRY_COUNT = 3;
-
-    private final long DEFAULT_BACKOFF_MILLIS = Duration.ofSeconds( 3 ).toMillis();
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final long DEFAULT_MAX_BACKOFF_MILLIS = Duration.ofSeconds( 15 ).toMillis();
+    private final ProxyConfiguration proxyConfiguration;
 
     private final ServiceConfig serviceConfig;
 
@@ -58,84 +75,114 @@ public class WebClientAdapter
 
     private final OtelAdapter otel;
 
-    private OkHttpClient client;
+    private final SidecarMetrics metrics;
+
+    // built with the timeout of the service and shared by all calls; only replaced by reinit(), i.e. when the proxy
+    // config changes
+    private volatile OkHttpClient client;
+
+    private volatile long serviceTimeout;
+
+    // kept across reinit() so that queued calls are not rejected by a shut down executor; the limits are adjustable
+    private final Dispatcher dispatcher = new Dispatcher();
 
     public WebClientAdapter( ServiceConfig serviceConfig, ProxyConfiguration proxyConfiguration, AtomicLong timeout,
-                             OtelAdapter otel )
+                             OtelAdapter otel, SidecarMetrics metrics )
     {
         this.serviceConfig = serviceConfig;
         this.proxyConfiguration = proxyConfiguration;
         this.timeout = timeout;
         this.otel = otel;
+        this.metrics = metrics;
         reinit();
     }
 
-    public RequestAdapter head( String path, HttpServerRequest req )
+    @Override
+    public UpstreamCall head( String path, HttpServerRequest req )
     {
-        return new RequestAdapter( new Request.Builder().head().url( calculateUrl( path ) ), path ).headersFrom( req );
+        return new RequestAdapter( new Request.Builder().head().url( calculateUrl( path ) ), path ).headersFrom( req )
+                                                                                                   .call();
     }
 
-    public RequestAdapter get( String path, HttpServerRequest req )
+    @Override
+    public UpstreamCall get( String path, HttpServerRequest req )
     {
-        return new RequestAdapter( new Request.Builder().get().url( calculateUrl( path ) ), path ).headersFrom( req );
+        return new RequestAdapter( new Request.Builder().get().url( calculateUrl( path ) ), path ).headersFrom( req )
+                                                                                                  .call();
     }
 
-    public RequestAdapter post( String path, InputStream is, HttpServerRequest req )
+    @Override
+    public UpstreamCall get( String path, HttpServerRequest req, Map<String, String> headers )
+    {
+        RequestAdapter adapter = new RequestAdapter( new Request.Builder().get().url( calculateUrl( path ) ), path );
+        return adapter.headersFrom( req ).withHeaders( headers ).call();
+    }
+
+    @Override
+    public UpstreamCall post( String path, InputStream is, HttpServerRequest req )
     {
         try
         {
             File bodyFile = cacheInputStream( is );
 
             return new RequestAdapter( new Request.Builder().post( RequestBody.create( bodyFile, getMediaType( req ) ) )
-                                                            .url( calculateUrl( path ) ), path ).withCleanup(
-                            new DeleteInterceptor( bodyFile ) ).headersFrom( req );
+                                                            .url( calculateUrl( path ) ), path ).withBodyFile(
+                            bodyFile ).headersFrom( req ).call();
         }
         catch ( IOException exception )
         {
-            return new RequestAdapter( exception );
+            return new RequestAdapter( exception ).call();
         }
     }
 
-    public RequestAdapter put( String path, InputStream is, HttpServerRequest req )
+    @Override
+    public UpstreamCall put( String path, InputStream is, HttpServerRequest req )
     {
         try
         {
-            File bodyFile = cacheInputStream( is );
-
-            return new RequestAdapter( new Request.Builder().put( RequestBody.create( bodyFile, getMediaType( req ) ) )
-                                                            .url( calculateUrl( path ) ), path ).withCleanup(
-                            new DeleteInterceptor( bodyFile ) ).headersFrom( req );
+            return put( path, cacheInputStream( is ), req );
         }
         catch ( IOException exception )
         {
-            return new RequestAdapter( exception );
+            return new RequestAdapter( exception ).call();
         }
     }
 
-    private MediaType getMediaType( HttpServerRequest req )
+    @Override
+    public UpstreamCall put( String path, File bodyFile, HttpServerRequest req )
     {
-        String contentType = req.getHeader( "Content-Type" );
-        if ( contentType != null )
-        {
-            return MediaType.get( contentType );
-        }
-        return null;
+        return new RequestAdapter( new Request.Builder().put( RequestBody.create( bodyFile, getMediaType( req ) ) )
+                                                        .url( calculateUrl( path ) ), path ).withBodyFile(
+                        bodyFile ).headersFrom( req ).call();
     }
 
-    private File cacheInputStream( InputStream is ) throws IOException
+    @Override
+    public UpstreamCall put( String path, File bodyFile, HttpServerRequest req, Map<String, String> headers )
     {
-        File bodyFile = Files.createTempFile( "post-", ".bin" ).toFile();
-        try (OutputStream os = new FileOutputStream( bodyFile ))
-        {
-            IOUtils.copy( is, os );
-        }
+        String contentType = headers.get( "Content-Type" );
+        MediaType mediaType = contentType == null ? getMediaType( req ) : MediaType.get( contentType );
+        return new RequestAdapter( new Request.Builder().put( RequestBody.create( bodyFile, mediaType ) )
+                                                        .url( calculateUrl( path ) ), path ).withBodyFile( bodyFile )
+                                                                                            .headersFrom( req )
+                                                                                            .withHeaders( headers )
+                                                                                            .call();
+    }
 
-        return bodyFile;
+    @Override
+    public UpstreamCall delete( String path, HttpServerRequest req )
+    {
+        return new RequestAdapter( new Request.Builder().delete().url( calculateUrl( path ) ), path ).headersFrom(
+                        req ).call();
     }
 
-    public RequestAdapter delete( String path )
+    private MediaType getMediaType( HttpServerRequest req )
     {
-        return new RequestAdapter( new Request.Builder().delete().url( calculateUrl( path ) ), path );
+        String contentType = req == null ? null : req.getHeader( "Content-Type" );
+        if ( contentType != null )
+        {
+            return MediaType.get( contentType );
+        }
+        return null;
     }
 
     private String calculateUrl( String path )
@@ -161,19 +208,79 @@ public class WebClientAdapter
         return sb.toString();
     }
 
+    @Override
     public void reinit()
     {
-        Duration d = Duration.ofMillis( timeout.get() );
-        this.client = new OkHttpClient.Builder().addInterceptor( new RetryInterceptor( proxyConfiguration.getRetry() ) )
-                                                .callTimeout( d )
-                                                .readTimeout( d )
-                                                .writeTimeout( d )
-                                                .connectTimeout( d )
-                                                .retryOnConnectionFailure( true )
-                                                .build();
+        long t = resolveTimeout( serviceConfig.readTimeout, timeout.get() );
+        Duration d = Duration.ofMillis( t );
+        OkHttpClient.Builder builder = new OkHttpClient.Builder().callTimeout( d )
+                                                                 .readTimeout( d )
+                                                                 .writeTimeout( d )
+                                                                 .connectTimeout( d )
+                                                                 .retryOnConnectionFailure( true )
+                                                                 .dispatcher( dispatcher );
+        applyPool( builder, serviceConfig.pool );
+        OkHttpClient old = client;
+        this.serviceTimeout = t;
+        this.client = builder.build();
+        if ( old != null )
+        {
+            // in-flight calls keep their connections; the idle ones of the old pool are not needed anymore
+            old.connectionPool().evictAll();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        OkHttpClient current = client;
+        if ( current != null )
+        {
+            current.dispatcher().executorService().shutdown();
+            current.connectionPool().evictAll();
+        }
+    }
+
+    @Override
+    public Map<String, Long> poolState()
+    {
+        OkHttpClient current = client;
+        Map<String, Long> ret = new LinkedHashMap<>();
+        ret.put( "connections", (long) current.connectionPool().connectionCount() );
+        ret.put( "idle", (long) current.connectionPool().idleConnectionCount() );
+        ret.put( "running", (long) dispatcher.runningCallsCount() );
+        ret.put( "queued", (long) dispatcher.queuedCallsCount() );
+        ret.put( "maxRequests", (long) dispatcher.getMaxRequests() );
+        ret.put( "maxRequestsPerHost", (long) dispatcher.getMaxRequestsPerHost() );
+        return ret;
+    }
+
+    private void applyPool( OkHttpClient.Builder builder, ServiceConfig.Pool pool )
+    {
+        if ( pool == null )
+        {
+            dispatcher.setMaxRequests( DEFAULT_MAX_REQUESTS );
+            dispatcher.setMaxRequestsPerHost( DEFAULT_MAX_REQUESTS_PER_HOST );
+            return;
+        }
+
+        dispatcher.setMaxRequests( pool.maxRequests > 0 ? pool.maxRequests : DEFAULT_MAX_REQUESTS );
+        dispatcher.setMaxRequestsPerHost(
+                        pool.maxRequestsPerHost > 0 ? pool.maxRequestsPerHost : DEFAULT_MAX_REQUESTS_PER_HOST );
+
+        if ( pool.maxIdle > 0 || isNotBlank( pool.keepAlive ) )
+        {
+            long keepAlive = resolveTimeout( pool.keepAlive, DEFAULT_KEEP_ALIVE );
+            builder.connectionPool( new ConnectionPool( pool.maxIdle > 0 ? pool.maxIdle : DEFAULT_MAX_IDLE, keepAlive,
+                                                        TimeUnit.MILLISECONDS ) );
+        }
+        if ( pool.sendBuffer > 0 || pool.receiveBuffer > 0 )
+        {
+            builder.socketFactory( new BufferSizeSocketFactory( pool.sendBuffer, pool.receiveBuffer ) );
+        }
     }
 
-    public final class RequestAdapter
+    private final class RequestAdapter
     {
         private Request.Builder requestBuilder;
 
@@ -181,7 +288,7 @@ public class WebClientAdapter
 
         private IOException exception;
 
-        private Interceptor cleanupInterceptor;
+        private File bodyFile;
 
         public RequestAdapter( Request.Builder requestBuilder, String path )
         {
@@ -196,7 +303,7 @@ public class WebClientAdapter
 
         public RequestAdapter headersFrom( HttpServerRequest request )
         {
-            if ( exception != null )
+            if ( exception != null || request == null )
             {
                 return this;
             }
@@ -211,71 +318,64 @@ public class WebClientAdapter
 
             String traceId = UUID.randomUUID().toString();
             requestBuilder.header( HEADER_PROXY_TRACE_ID, traceId );
-            if ( headers.get( PROXY_ORIGIN ) == null )
+            if ( headers.get( HEADER_PROXY_ORIGIN ) == null )
             {
-                String uri = request.absoluteURI();
-
-                try
-                {
-                    URL url = new URL( uri );
-                    String protocol = url.getProtocol();
-                    String authority = url.getAuthority();
-                    requestBuilder.header( PROXY_ORIGIN, String.format( "%s://%s", protocol, authority ) );
-                }
-                catch ( MalformedURLException e )
+                String proxyOrigin = getProxyOrigin( request );
+                if ( proxyOrigin != null )
                 {
-                    logger.error( "Failed to parse requested URI: '" + uri + "'", e ); // shouldn't happen
+                    requestBuilder.header( HEADER_PROXY_ORIGIN, proxyOrigin );
                 }
             }
 
             return this;
         }
 
-        public CallAdapter call()
+        public UpstreamCall call()
         {
             if ( exception != null )
             {
                 return new CallAdapter( exception );
             }
 
-            Duration pathTimeout = Duration.parse( "pt" + proxyConfiguration.getReadTimeout() );
             if ( otel.enabled() )
             {
-                Span.current()
-                    .setAttribute( "target.timeout", pathTimeout != null ? pathTimeout.toMillis() : timeout.get() );
+                Span.current().setAttribute( "target.timeout", serviceTimeout );
             }
-            OkHttpClient callClient = client;
-            if ( pathTimeout != null || cleanupInterceptor != null )
+            UpstreamCall attempt = new CallAdapter( client, requestBuilder, serviceConfig );
+            UpstreamCall retrying =
+                            new RetryingUpstreamCall( attempt, RetryPolicy.from( proxyConfiguration.getRetry() ),
+                                                      metrics, otel, path );
+            if ( bodyFile == null )
             {
-                OkHttpClient.Builder builder = client.newBuilder();
-                if ( pathTimeout != null )
-                {
-                    builder.callTimeout( pathTimeout )
-                           .readTimeout( pathTimeout )
-                           .writeTimeout( pathTimeout )
-                           .connectTimeout( pathTimeout );
-                }
-
-                if ( cleanupInterceptor != null )
-                {
-                    builder.interceptors().add( 0, cleanupInterceptor );
-                    //                    builder.addInterceptor( cleanupInterceptor );
-                }
+                return retrying;
+            }
 
-                callClient = builder.build();
+            if ( otel.enabled() )
+            {
+                Span.current().setAttribute( "sidecar.target.bodyFile", bodyFile.getPath() );
             }
+            // the body is re-sent on retries, so it's only deleted once the call is over
+            return () -> retrying.enqueue().onTermination().invoke( () -> deleteBodyFile( bodyFile ) );
+        }
 
-            return new CallAdapter( callClient, requestBuilder, serviceConfig );
+        public RequestAdapter withHeaders( Map<String, String> headers )
+        {
+            if ( exception == null )
+            {
+                headers.forEach( requestBuilder::header );
+            }
+            return this;
         }
 
-        public RequestAdapter withCleanup( Interceptor cleanupInterceptor )
+        public RequestAdapter withBodyFile( File bodyFile )
         {
-            this.cleanupInterceptor = cleanupInterceptor;
+            this.bodyFile = bodyFile;
             return this;
         }
     }
 
-    public final class CallAdapter
+    private final class CallAdapter
+                    implements UpstreamCall
     {
         private OkHttpClient callClient;
 
@@ -297,14 +397,15 @@ public class WebClientAdapter
             this.exception = exception;
         }
 
-        public Uni<Response> enqueue()
+        @Override
+        public Uni<UpstreamResponse> enqueue()
         {
             if ( exception != null )
             {
                 return UniHelper.toUni( Future.failedFuture( exception ) );
             }
 
-            return UniHelper.toUni( Future.future( ( p ) -> {
+            return UniHelper.toUni( Future.<UpstreamResponse>future( ( p ) -> {
                 logger.debug( "Starting upstream request..." );
 
                 Span span;
@@ -368,7 +469,7 @@ public class WebClientAdapter
                             span.end();
                         }
                         logger.trace( "Success: " + call.request().url() + " -> " + response.code() );
-                        p.complete( response );
+                        p.complete( new OkHttpUpstreamResponse( response ) );
                     }
                 } );
             } ) );
@@ -376,137 +477,118 @@ public class WebClientAdapter
 
     }
 
-    private class RetryInterceptor
-                    implements Interceptor
+    /**
+     * Sets the buffer sizes before the socket connects, so a larger receive window can be negotiated.
+     */
+    private static final class BufferSizeSocketFactory
+                    extends SocketFactory
     {
-        private final int count;
+        private final SocketFactory delegate = SocketFactory.getDefault();
 
-        private final long interval;
+        private final int sendBuffer;
 
-        private final long maxBackOff;
+        private final int receiveBuffer;
 
-        RetryInterceptor( ProxyConfiguration.Retry retry )
+        BufferSizeSocketFactory( int sendBuffer, int receiveBuffer )
         {
-            this.count = retry == null || retry.count < 0 ? DEFAULT_RETRY_COUNT : retry.count;
-            this.interval = retry == null || retry.interval < 0 ? DEFAULT_BACKOFF_MILLIS : retry.interval;
-            this.maxBackOff = retry == null || retry.maxBackOff < 0 ? DEFAULT_MAX_BACKOFF_MILLIS : retry.maxBackOff;
+            this.sendBuffer = sendBuffer;
+            this.receiveBuffer = receiveBuffer;
         }
 
-        @NotNull
-        @Override
-        public Response intercept( @NotNull Chain chain ) throws IOException
-        {
-            Request req = chain.request();
-            Response resp;
-            int tryCounter = 0;
-            long start = System.currentTimeMillis();
-            long backOff = 0l;
-            do
+        private Socket configure( Socket socket ) throws SocketException
+        {
+            if ( sendBuffer > 0 )
             {
-                try
-                {
-                    resp = chain.proceed( req );
-                    if ( resp.code() < 500 )
-                    {
-                        return resp;
-                    }
-                    else
-                    {
-                        if ( tryCounter >= count )
-                        {
-                            return resp;
-                        }
-                        else
-                        {
-                            if ( otel.enabled() )
-                            {
-                                Span.current().setAttribute( "target.try." + tryCounter + ".status_code", resp.code() );
-                            }
-
-                            logger.debug( "TRY({}/{}): Response missing or indicates server error: {}. Retrying",
-                                          tryCounter, count, resp );
-                        }
-                    }
-                }
-                catch ( IOException e )
-                {
-                    if ( tryCounter >= count )
-                    {
-                        throw e;
-                    }
-                    if ( otel.enabled() )
-                    {
-                        Span.current().setAttribute( "target.try." + tryCounter + ".error_message", e.getMessage() );
-                        Span.current()
-                            .setAttribute( "target.try." + tryCounter + ".error_class", e.getClass().getSimpleName() );
-                    }
-
-                    logger.debug( "TRY(" + tryCounter + "/" + count + "): Failed upstream request: " + req.url(), e );
-                }
+                socket.setSendBufferSize( sendBuffer );
+            }
+            if ( receiveBuffer > 0 )
+            {
+                socket.setReceiveBufferSize( receiveBuffer );
+            }
+            return socket;
+        }
 
-                try
-                {
-                    Thread.sleep( interval );
-                    backOff = System.currentTimeMillis() - start;
-                }
-                catch ( InterruptedException e )
-                {
-                    if ( otel.enabled() )
-                    {
-                        Span.current().setAttribute( "target.interrupted", 1 );
-                        Span.current().setAttribute( "target.try." + tryCounter + ".interrupted", 1 );
-                    }
+        @Override
+        public Socket createSocket() throws IOException
+        {
+            return configure( delegate.createSocket() );
+        }
 
-                    return new Response.Builder().code( 502 )
-                                                 .message( "Thread interruption while waiting for upstream retry!" )
-                                                 .build();
-                }
+        @Override
+        public Socket createSocket( String host, int port ) throws IOException
+        {
+            Socket socket = createSocket();
+            socket.connect( new InetSocketAddress( host, port ) );
+            return socket;
+        }
 
-                tryCounter++;
-            }
-            while ( tryCounter < count && backOff <= maxBackOff );
+        @Override
+        public Socket createSocket( String host, int port, InetAddress localHost, int localPort ) throws IOException
+        {
+            Socket socket = createSocket();
+            socket.bind( new InetSocketAddress( localHost, localPort ) );
+            socket.connect( new InetSocketAddress( host, port ) );
+            return socket;
+        }
 
-            if ( otel.enabled() )
-            {
-                Span.current().setAttribute( "target.retries", tryCounter );
-            }
+        @Override
+        public Socket createSocket( InetAddress host, int port ) throws IOException
+        {
+            Socket socket = createSocket();
+            socket.connect( new InetSocketAddress( host, port ) );
+            return socket;
+        }
 
-            throw new IOException( "Proxy retry interceptor reached an unexpected fall-through condition!" );
+        @Override
+        public Socket createSocket( InetAddress address, int port, InetAddress localAddress, int localPort )
+                        throws IOException
+        {
+            Socket socket = createSocket();
+            socket.bind( new InetSocketAddress( localAddress, localPort ) );
+            socket.connect( new InetSocketAddress( address, port ) );
+            return socket;
         }
     }
 
-    private class DeleteInterceptor
-                    implements Interceptor
+    private static final class OkHttpUpstreamResponse
+                    implements UpstreamResponse
     {
-        private final File bodyFile;
+        private final Response response;
 
-        public DeleteInterceptor( File bodyFile )
+        OkHttpUpstreamResponse( Response response )
         {
-            this.bodyFile = bodyFile;
+            this.response = response;
         }
 
-        @NotNull
         @Override
-        public Response intercept( @NotNull Chain chain ) throws IOException
+        public int code()
         {
-            try
-            {
-                if ( otel.enabled() )
-                {
-                    Span.current().setAttribute( "sidecar.target.bodyFile", bodyFile.getPath() );
-                }
+            return response.code();
+        }
 
-                return chain.proceed( chain.request() );
-            }
-            finally
-            {
-                logger.debug( "Deleting input post/put body tempfile: {}", bodyFile );
-                boolean deleted = Files.deleteIfExists( bodyFile.toPath() );
-                if ( !deleted )
-                {
-                    logger.trace( "Could not delete body input file: {}", bodyFile );
-                }
-            }
+        @Override
+        public String message()
+        {
+            return response.message();
+        }
+
+        @Override
+        public String header( String name )
+        {
+            return response.header( name );
+        }
+
+        @Override
+        public void forEachHeader( BiConsumer<String, String> consumer )
+        {
+            response.headers().forEach( header -> consumer.accept( header.getFirst(), header.getSecond() ) );
+        }
+
+        @Override
+        public InputStream bodyStream()
+        {
+            ResponseBody body = response.body();
+            return body == null ? null : body.byteStream();
         }
     }
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.bench;
+
+import okhttp3.OkHttpClient;
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.services.SidecarMetrics;
+import org.commonjava.util.sidecar.util.OtelAdapter;
+import org.commonjava.util.sidecar.util.UpstreamCall;
+import org.commonjava.util.sidecar.util.WebClientAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per request cost of preparing an OkHttp upstream call, before anything is sent. 'cached' is what WebClientAdapter
+ * does now, 'rebuilt' adds the client that used to be built for every request. Compare gc.alloc.rate.norm, which
+ * {@link #main(String[])} reports through the GC profiler.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+@Fork( 1 )
+public class ClientVariantBenchmark
+{
+    private static final String PATH = "/api/content/maven/hosted/bench/foo/bar/1.0/bar-1.0.jar";
+
+    private WebClientAdapter client;
+
+    private OkHttpClient base;
+
+    private String readTimeout;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        ServiceConfig service = new ServiceConfig();
+        service.host = "localhost";
+        service.port = 8080;
+        service.pathPattern = "/api/.+";
+
+        ProxyConfiguration proxyConfiguration = new ProxyConfiguration();
+        readTimeout = "30m";
+        client = new WebClientAdapter( service, proxyConfiguration, new AtomicLong( TimeUnit.MINUTES.toMillis( 30 ) ),
+                                       new OtelAdapter(), new SidecarMetrics() );
+        base = new OkHttpClient();
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        client.close();
+        base.dispatcher().executorService().shutdown();
+    }
+
+    @Benchmark
+    public UpstreamCall cached()
+    {
+        return client.get( PATH, null );
+    }
+
+    @Benchmark
+    public void rebuilt( Blackhole bh )
+    {
+        Duration d = Duration.parse( "pt" + readTimeout );
+        bh.consume( base.newBuilder().callTimeout( d ).readTimeout( d ).writeTimeout( d ).connectTimeout( d ).build() );
+        bh.consume( client.get( PATH, null ) );
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        new Runner( new OptionsBuilder().include( ClientVariantBenchmark.class.getSimpleName() )
+                                        .addProfiler( GCProfiler.class )
+                                        .build() ).run();
+    }
+}
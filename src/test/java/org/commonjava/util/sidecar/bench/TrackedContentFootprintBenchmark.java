@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.bench;
+
+import org.commonjava.util.sidecar.model.AccessChannel;
+import org.commonjava.util.sidecar.model.StoreEffect;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.TrackedContent;
+import org.commonjava.util.sidecar.model.TrackedContentEntry;
+import org.commonjava.util.sidecar.model.TrackingKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.ref.Reference;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap taken by a report of 1M downloads, built the way ProxyService builds its entries: new keys for every request,
+ * digests as hex Strings and origin URLs ending with the path. {@link #main(String[])} first prints the heap the report
+ * retains per entry, then runs the benchmark for the time to build it and, through the GC profiler, what that
+ * allocates.
+ */
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx4g" )
+public class TrackedContentFootprintBenchmark
+{
+    private static final int ENTRIES = 1_000_000;
+
+    private static final String ORIGIN = "https://repo.maven.apache.org/maven2";
+
+    @Benchmark
+    public TrackedContent build()
+    {
+        return build( ENTRIES );
+    }
+
+    static TrackedContent build( int count )
+    {
+        TrackedContent content = new TrackedContent();
+        for ( int i = 0; i < count; i++ )
+        {
+            String path = "/org/commonjava/bench/artifact-" + i + "/1.0/artifact-" + i + "-1.0.jar";
+            content.appendDownload( new TrackedContentEntry( new TrackingKey( "build-1000" ),
+                                                             new StoreKey( "maven", StoreType.remote, "central" ),
+                                                             AccessChannel.NATIVE, ORIGIN + path, path,
+                                                             StoreEffect.DOWNLOAD, 1024L + i, hex( i, 32 ),
+                                                             hex( i, 40 ), hex( i, 64 ) ) );
+        }
+        return content;
+    }
+
+    private static String hex( int value, int length )
+    {
+        StringBuilder sb = new StringBuilder( length );
+        String digits = Integer.toHexString( value );
+        for ( int i = digits.length(); i < length; i++ )
+        {
+            sb.append( 'a' );
+        }
+        return sb.append( digits ).toString();
+    }
+
+    private static long usedAfterGc() throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for ( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+            Thread.sleep( 100 );
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        long before = usedAfterGc();
+        TrackedContent content = build( ENTRIES );
+        long retained = usedAfterGc() - before;
+        Reference.reachabilityFence( content );
+        System.out.printf( "%d entries retain %d MB, %d bytes per entry%n", ENTRIES, retained >> 20,
+                           retained / ENTRIES );
+
+        new Runner( new OptionsBuilder().include( TrackedContentFootprintBenchmark.class.getSimpleName() )
+                                        .addProfiler( GCProfiler.class )
+                                        .build() ).run();
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.bench;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServer;
+import org.commonjava.util.sidecar.config.ProxyConfiguration;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.services.SidecarMetrics;
+import org.commonjava.util.sidecar.util.OtelAdapter;
+import org.commonjava.util.sidecar.util.UpstreamClient;
+import org.commonjava.util.sidecar.util.UpstreamResponse;
+import org.commonjava.util.sidecar.util.VertxClientAdapter;
+import org.commonjava.util.sidecar.util.WebClientAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.commonjava.util.sidecar.util.UpstreamClient.ENGINE_OKHTTP;
+import static org.commonjava.util.sidecar.util.UpstreamClient.ENGINE_VERTX;
+
+/**
+ * Proxied GET throughput of the two upstream engines against a local Vert.x server, with the body read the same way
+ * ProxyStreamingOutput does. Run it via {@link #main(String[])} once the test classes are compiled.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 10 )
+@Fork( 1 )
+@Threads( 32 )
+public class UpstreamEngineBenchmark
+{
+    @Param( { ENGINE_OKHTTP, ENGINE_VERTX } )
+    public String engine;
+
+    @Param( { "1024", "262144" } )
+    public int bodySize;
+
+    private Vertx vertx;
+
+    private HttpServer server;
+
+    private UpstreamClient client;
+
+    @Setup( Level.Trial )
+    public void setup() throws Exception
+    {
+        // outside of Quarkus the context propagation provider is set up lazily, which races between benchmark threads
+        Uni.createFrom().completionStage( CompletableFuture.completedFuture( 0 ) ).await().indefinitely();
+
+        vertx = Vertx.vertx();
+        Buffer body = Buffer.buffer( new byte[bodySize] );
+        server = vertx.createHttpServer()
+                      .requestHandler( req -> req.response()
+                                                 .putHeader( "Content-Type", "application/octet-stream" )
+                                                 .end( body ) )
+                      .listen( 0 )
+                      .toCompletionStage()
+                      .toCompletableFuture()
+                      .get();
+
+        ServiceConfig service = new ServiceConfig();
+        service.host = "localhost";
+        service.port = server.actualPort();
+        service.pathPattern = "/api/.+";
+        service.engine = engine;
+
+        ProxyConfiguration proxyConfiguration = new ProxyConfiguration();
+        AtomicLong timeout = new AtomicLong( TimeUnit.SECONDS.toMillis( 30 ) );
+        OtelAdapter otel = new OtelAdapter();
+        SidecarMetrics metrics = new SidecarMetrics();
+        client = ENGINE_VERTX.equals( engine ) ?
+                        new VertxClientAdapter( vertx, service, proxyConfiguration, timeout, otel, metrics ) :
+                        new WebClientAdapter( service, proxyConfiguration, timeout, otel, metrics );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws Exception
+    {
+        client.close();
+        server.close().toCompletionStage().toCompletableFuture().get();
+        vertx.close().toCompletionStage().toCompletableFuture().get();
+    }
+
+    @Benchmark
+    public long get() throws Exception
+    {
+        UpstreamResponse resp = client.get( "/api/content/maven/hosted/bench/foo/bar/1.0/bar-1.0.jar", null )
+                                      .enqueue()
+                                      .await()
+                                      .indefinitely();
+        long total = 0;
+        byte[] buf = new byte[8192];
+        try (InputStream in = resp.bodyStream())
+        {
+            int n;
+            while ( ( n = in.read( buf ) ) >= 0 )
+            {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        new Runner( new OptionsBuilder().include( UpstreamEngineBenchmark.class.getSimpleName() ).build() ).run();
+    }
+}
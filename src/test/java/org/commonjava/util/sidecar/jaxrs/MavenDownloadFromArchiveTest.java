@@ -22,7 +22,10 @@ import org.junit.jupiter.api.Test;
 
 import static io.restassured.RestAssured.given;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static javax.ws.rs.core.Response.Status.NOT_MODIFIED;
 import static javax.ws.rs.core.Response.Status.OK;
+import static javax.ws.rs.core.Response.Status.PARTIAL_CONTENT;
+import static org.hamcrest.CoreMatchers.startsWith;
 
 @QuarkusTest
 @TestProfile( MockTestProfile.class )
@@ -48,6 +51,28 @@ public class MavenDownloadFromArchiveTest
                .statusCode( OK.getStatusCode() );
     }
 
+    @Test
+    public void testRangeDownload()
+    {
+        given().header( "Range", "bytes=0-99" )
+               .when()
+               .get( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.jar" )
+               .then()
+               .statusCode( PARTIAL_CONTENT.getStatusCode() )
+               .header( "Content-Length", "100" )
+               .header( "Content-Range", startsWith( "bytes 0-99/" ) );
+    }
+
+    @Test
+    public void testNotModified()
+    {
+        given().header( "If-Modified-Since", "Fri, 31 Dec 2100 23:59:59 GMT" )
+               .when()
+               .get( "/api/folo/track/2021/maven/group/repo1/org/apache/maven/maven-core/3.0/maven-core-3.0.jar" )
+               .then()
+               .statusCode( NOT_MODIFIED.getStatusCode() );
+    }
+
     @Test
     public void testDownloadNotFound()
     {
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.jaxrs;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.restassured.RestAssured;
+import io.restassured.config.DecoderConfig;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.sidecar.jaxrs.mock.MockTestProfile;
+import org.commonjava.util.sidecar.model.AccessChannel;
+import org.commonjava.util.sidecar.model.StoreEffect;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.TrackedContentEntry;
+import org.commonjava.util.sidecar.model.TrackingKey;
+import org.commonjava.util.sidecar.services.ReportService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import static io.restassured.RestAssured.given;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_ENCODING;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static javax.ws.rs.core.Response.Status.OK;
+import static org.commonjava.util.sidecar.jaxrs.ReportResource.APPLICATION_NDJSON;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@QuarkusTest
+@TestProfile( MockTestProfile.class )
+public class ReportResourceTest
+{
+    private static final String REPORT_PATH = "/api/folo/track/2021/record";
+
+    private static final String PATH = "/org/apache/maven/maven-core/3.0/maven-core-3.0.jar";
+
+    @Inject
+    ReportService reportService;
+
+    @BeforeEach
+    public void setup()
+    {
+        reportService.appendDownload(
+                        new TrackedContentEntry( new TrackingKey( "2021" ), new StoreKey( "maven", StoreType.remote,
+                                                                                          "central" ),
+                                                 AccessChannel.NATIVE, "", PATH, StoreEffect.DOWNLOAD, 1L, "md5",
+                                                 "sha1", "sha256" ) );
+    }
+
+    @AfterEach
+    public void cleanup()
+    {
+        reportService.clearReport();
+    }
+
+    @Test
+    public void testJsonIsTheDefault()
+    {
+        given().when()
+               .get( REPORT_PATH )
+               .then()
+               .statusCode( OK.getStatusCode() )
+               .contentType( startsWith( APPLICATION_JSON ) )
+               .body( "downloads[0].path", equalTo( PATH ) );
+
+        given().accept( "*/*" )
+               .when()
+               .get( REPORT_PATH )
+               .then()
+               .statusCode( OK.getStatusCode() )
+               .contentType( startsWith( APPLICATION_JSON ) );
+    }
+
+    @Test
+    public void testNdjson()
+    {
+        given().accept( APPLICATION_NDJSON )
+               .when()
+               .get( REPORT_PATH )
+               .then()
+               .statusCode( OK.getStatusCode() )
+               .contentType( startsWith( APPLICATION_NDJSON ) )
+               .body( startsWith( "{" ), containsString( PATH ) );
+    }
+
+    @Test
+    public void testGzip() throws IOException
+    {
+        byte[] body = given().config( RestAssured.config()
+                                                 .decoderConfig( DecoderConfig.decoderConfig().noContentDecoders() ) )
+                             .header( ACCEPT_ENCODING, "gzip" )
+                             .when()
+                             .get( REPORT_PATH )
+                             .then()
+                             .statusCode( OK.getStatusCode() )
+                             .header( CONTENT_ENCODING, "gzip" )
+                             .extract()
+                             .asByteArray();
+
+        try (GZIPInputStream in = new GZIPInputStream( new ByteArrayInputStream( body ) ))
+        {
+            assertTrue( new String( IOUtils.toByteArray( in ), UTF_8 ).contains( PATH ) );
+        }
+    }
+
+    @Test
+    public void testGzipRefused()
+    {
+        given().config( RestAssured.config().decoderConfig( DecoderConfig.decoderConfig().noContentDecoders() ) )
+               .header( ACCEPT_ENCODING, "gzip;q=0, identity" )
+               .when()
+               .get( REPORT_PATH )
+               .then()
+               .statusCode( OK.getStatusCode() )
+               .header( CONTENT_ENCODING, nullValue() )
+               .body( containsString( PATH ) );
+    }
+
+    @Test
+    public void testAcceptsGzip()
+    {
+        assertTrue( ReportResource.acceptsGzip( "gzip" ) );
+        assertTrue( ReportResource.acceptsGzip( "deflate, GZIP;q=0.5" ) );
+        assertFalse( ReportResource.acceptsGzip( "gzip;q=0" ) );
+        assertFalse( ReportResource.acceptsGzip( "gzip; q=0.0" ) );
+        assertFalse( ReportResource.acceptsGzip( "x-gzip-not" ) );
+        assertFalse( ReportResource.acceptsGzip( null ) );
+    }
+}
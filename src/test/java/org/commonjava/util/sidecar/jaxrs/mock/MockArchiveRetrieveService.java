@@ -69,6 +69,12 @@ public class MockArchiveRetrieveService
         }
     }
 
+    @Override
+    protected void startPreSeed()
+    {
+        // content is written by init()
+    }
+
     @Override
     public String getBuildConfigId()
     {
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class TrackedContentEntryTest
+{
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    private static final String CENTRAL = "https://repo.maven.apache.org/maven2";
+
+    @Test
+    public void testValuesReadBackAsSet()
+    {
+        TrackedContentEntry entry = entry( "/org/foo/1/foo-1.jar", CENTRAL + "/org/foo/1/foo-1.jar" );
+        for ( String digest : new String[] { MD5, MD5.toUpperCase(), "", "0g", "abc", "١٢", null } )
+        {
+            entry.setMd5( digest );
+            assertEquals( digest, entry.getMd5() );
+        }
+        entry.setSize( null );
+        assertNull( entry.getSize() );
+        entry.setSize( 0L );
+        assertEquals( 0L, entry.getSize() );
+        entry.setTimestamps( Set.of( 3L, 1L, 2L ) );
+        assertEquals( List.of( 1L, 2L, 3L ), List.copyOf( entry.getTimestamps() ) );
+        entry.setTimestamps( null );
+        assertNull( entry.getTimestamps() );
+    }
+
+    @Test
+    public void testOriginUrlFollowsPath()
+    {
+        TrackedContentEntry entry = entry( "/org/foo/1/foo-1.jar", CENTRAL + "/org/foo/1/foo-1.jar" );
+        entry.setPath( "/org/foo/1/foo-1.pom" );
+        assertEquals( CENTRAL + "/org/foo/1/foo-1.jar", entry.getOriginUrl() );
+
+        // e.g. Jackson setting the origin before the path
+        TrackedContentEntry read = new TrackedContentEntry();
+        read.setOriginUrl( CENTRAL + "/org/foo/1/foo-1.jar" );
+        read.setPath( "/org/foo/1/foo-1.jar" );
+        assertEquals( CENTRAL + "/org/foo/1/foo-1.jar", read.getOriginUrl() );
+        read.setOriginUrl( "" );
+        assertEquals( "", read.getOriginUrl() );
+    }
+
+    @Test
+    public void testKeysAreShared() throws Exception
+    {
+        TrackedContentEntry a = entry( "/a.jar", "" );
+        TrackedContentEntry b = entry( "/b.jar", "" );
+        assertSame( a.getTrackingKey(), b.getTrackingKey() );
+        assertSame( a.getStoreKey(), b.getStoreKey() );
+
+        ObjectMapper mapper = new ObjectMapper();
+        TrackedContentEntry read = mapper.readValue( mapper.writeValueAsBytes( a ), TrackedContentEntry.class );
+        assertSame( a.getStoreKey(), read.getStoreKey() );
+        assertEquals( a, read );
+        assertEquals( a.getTimestamps(), read.getTimestamps() );
+    }
+
+    @Test
+    public void testExternalizedForm() throws Exception
+    {
+        TrackedContentEntry entry = entry( "/org/foo/1/foo-1.jar", CENTRAL + "/org/foo/1/foo-1.jar" );
+        entry.setTimestamps( Set.of( 1L, 2L ) );
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream( bytes ))
+        {
+            out.writeObject( entry );
+        }
+        TrackedContentEntry read;
+        try (ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ))
+        {
+            read = (TrackedContentEntry) in.readObject();
+        }
+        assertEquals( entry, read );
+        assertEquals( entry.getOriginUrl(), read.getOriginUrl() );
+        assertEquals( MD5, read.getMd5() );
+        assertEquals( 10L, read.getSize() );
+        assertEquals( Set.of( 1L, 2L ), read.getTimestamps() );
+    }
+
+    private TrackedContentEntry entry( String path, String originUrl )
+    {
+        return new TrackedContentEntry( new TrackingKey( "1000" ), new StoreKey( "maven", StoreType.remote, "central" ),
+                                        AccessChannel.NATIVE, originUrl, path, StoreEffect.DOWNLOAD, 10L, MD5, "sha1",
+                                        "sha256" );
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TrackedContentTest
+{
+    private static final int THREADS = 64;
+
+    private static final int PATHS = 2_000;
+
+    private final TrackingKey trackingKey = new TrackingKey( "1000" );
+
+    private final StoreKey storeKey = new StoreKey( "maven", StoreType.remote, "central" );
+
+    @Test
+    public void testEqualEntriesAreMerged()
+    {
+        TrackedContent content = new TrackedContent();
+        content.appendDownload( download( "/a.jar", 1L ) );
+        content.appendDownload( download( "/a.jar", 2L ) );
+        content.appendDownload( download( "/b.jar", 3L ) );
+
+        Set<TrackedContentEntry> downloads = content.getDownloads();
+        assertEquals( 2, downloads.size() );
+        TrackedContentEntry a = downloads.stream().filter( e -> e.getPath().equals( "/a.jar" ) ).findFirst().get();
+        assertEquals( Set.of( 1L, 2L ), a.getTimestamps() );
+        assertEquals( 0, content.getUploads().size() );
+    }
+
+    @Test
+    public void testSnapshotIsNotChangedByLaterAppends()
+    {
+        TrackedContent content = new TrackedContent();
+        TrackedContentEntry a = download( "/a.jar", 1L );
+        content.appendDownload( a );
+
+        TrackedContent snapshot = content.snapshot();
+        content.appendDownload( download( "/a.jar", 2L ) );
+        content.appendDownload( download( "/b.jar", 3L ) );
+
+        assertEquals( 1, snapshot.downloads().size() );
+        assertSame( a, snapshot.downloads().iterator().next() );
+        assertEquals( Set.of( 1L ), a.getTimestamps() );
+        assertEquals( 2, content.downloads().size() );
+    }
+
+    @Test
+    public void testConcurrentAppendsLoseNothing()
+    {
+        TrackedContent content = new TrackedContent();
+        AtomicBoolean done = new AtomicBoolean();
+
+        assertTimeoutPreemptively( Duration.ofSeconds( 30 ), () -> {
+            ExecutorService pool = Executors.newFixedThreadPool( THREADS + 1 );
+            CountDownLatch start = new CountDownLatch( 1 );
+            List<Future<?>> writers = new ArrayList<>();
+            for ( int t = 0; t < THREADS; t++ )
+            {
+                long thread = t;
+                writers.add( pool.submit( () -> {
+                    start.await();
+                    // every thread appends every path, so each entry is merged THREADS times
+                    for ( int i = 0; i < PATHS; i++ )
+                    {
+                        content.appendDownload( download( "/org/foo/" + i + "/foo.jar", thread ) );
+                    }
+                    return null;
+                } ) );
+            }
+            Future<?> reader = pool.submit( () -> {
+                start.await();
+                while ( !done.get() )
+                {
+                    for ( TrackedContentEntry entry : content.snapshot().getDownloads() )
+                    {
+                        assertTrue( entry.getTimestamps().size() <= THREADS );
+                    }
+                }
+                return null;
+            } );
+
+            start.countDown();
+            for ( Future<?> writer : writers )
+            {
+                writer.get();
+            }
+            done.set( true );
+            reader.get();
+            pool.shutdown();
+            assertTrue( pool.awaitTermination( 5, TimeUnit.SECONDS ) );
+        } );
+
+        Set<TrackedContentEntry> downloads = content.getDownloads();
+        assertEquals( PATHS, downloads.size() );
+        for ( TrackedContentEntry entry : downloads )
+        {
+            assertEquals( THREADS, entry.getTimestamps().size(), entry.getPath() );
+        }
+    }
+
+    private TrackedContentEntry download( String path, long timestamp )
+    {
+        TrackedContentEntry entry =
+                        new TrackedContentEntry( trackingKey, storeKey, AccessChannel.NATIVE, "", path,
+                                                 StoreEffect.DOWNLOAD, 1L, "", "", "" );
+        entry.setTimestamps( Set.of( timestamp ) );
+        return entry;
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.sun.net.httpserver.HttpServer;
+import io.vertx.mutiny.core.eventbus.EventBus;
+import org.apache.commons.io.FileUtils;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ArchiveRetrieveServiceTest
+{
+    private static final String POM = "org/foo/1.0/foo-1.0.pom";
+
+    private static final String JAR = "org/foo/1.0/foo-1.0.jar";
+
+    private static final int SMALL_ENTRIES = 100;
+
+    private final ArchiveRetrieveService service = new ArchiveRetrieveService()
+    {
+        @Override
+        public String getBuildConfigId()
+        {
+            return "1000";
+        }
+    };
+
+    private final Map<String, byte[]> entries = new LinkedHashMap<>();
+
+    // the archive is sent up to the middle, then held until this is released
+    private final CountDownLatch release = new CountDownLatch( 1 );
+
+    private Path dir;
+
+    private Path repo;
+
+    private HttpServer server;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        dir = Files.createTempDirectory( "pre-seed-" );
+        repo = Files.createDirectories( dir.resolve( "repo" ) );
+
+        server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        server.createContext( "/archive/1000", exchange -> {
+            byte[] zip = zip();
+            exchange.sendResponseHeaders( 200, zip.length );
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write( zip, 0, zip.length / 2 );
+                out.flush();
+                release.await( 10, TimeUnit.SECONDS );
+                out.write( zip, zip.length / 2, zip.length - zip.length / 2 );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        } );
+        server.start();
+
+        SidecarConfig config = new SidecarConfig();
+        config.localRepository = Optional.of( repo.toString() );
+        config.archiveApi = Optional.of( "http://localhost:" + server.getAddress().getPort() + "/archive/" );
+        config.preSeedWorkers = 2;
+        config.preSeedStorage = "extract";
+        SidecarMetrics metrics = new SidecarMetrics();
+
+        ReportService reportService = new ReportService();
+        reportService.sidecarConfig = config;
+
+        BlobStore blobStore = new BlobStore();
+        blobStore.sidecarConfig = config;
+        blobStore.metrics = metrics;
+
+        IntegrityVerifier verifier = new IntegrityVerifier();
+        verifier.sidecarConfig = config;
+        verifier.metrics = metrics;
+        verifier.reportService = reportService;
+
+        service.sidecarConfig = config;
+        service.metrics = metrics;
+        service.reportService = reportService;
+        service.blobStore = blobStore;
+        service.verifier = verifier;
+        service.bus = new EventBus( (io.vertx.core.eventbus.EventBus) Proxy.newProxyInstance(
+                        getClass().getClassLoader(), new Class<?>[] { io.vertx.core.eventbus.EventBus.class },
+                        ( proxy, method, args ) -> null ) );
+        service.init();
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException
+    {
+        release.countDown();
+        server.stop( 0 );
+        FileUtils.deleteDirectory( dir.toFile() );
+    }
+
+    @Test
+    public void testContentIsProxiedUntilPreSeeded() throws Exception
+    {
+        entries.put( POM, "<project/>".getBytes() );
+
+        service.startPreSeed();
+        assertFalse( service.isReady() );
+        assertTrue( service.shouldProxy( "/" + POM ) );
+
+        release.countDown();
+        awaitReady();
+        assertFalse( service.shouldProxy( "/" + POM ) );
+        assertTrue( service.isAvailableLocally( "/" + POM ) );
+    }
+
+    @Test
+    public void testEntriesAreWrittenThroughTheWorkers() throws Exception
+    {
+        entries.put( POM, "<project/>".getBytes() );
+        byte[] large = new byte[1024 * 1024 + 10]; // written by the reader itself
+        Arrays.fill( large, (byte) 7 );
+        entries.put( JAR, large );
+        for ( int i = 0; i < SMALL_ENTRIES; i++ )
+        {
+            entries.put( "org/bar/" + i + "/bar-" + i + ".jar", ( "bar " + i ).getBytes() );
+        }
+
+        service.startPreSeed();
+        release.countDown();
+        awaitReady();
+
+        for ( Map.Entry<String, byte[]> entry : entries.entrySet() )
+        {
+            assertArrayEquals( entry.getValue(), Files.readAllBytes( repo.resolve( entry.getKey() ) ),
+                               entry.getKey() );
+        }
+        assertEquals( SMALL_ENTRIES + 2, service.metrics.get( "preseed.entries" ) );
+        try (Stream<Path> files = Files.walk( repo ))
+        {
+            assertFalse( files.anyMatch( p -> p.toString().endsWith( ".pre-seed" ) ) );
+        }
+        awaitWritersStopped();
+    }
+
+    @Test
+    public void testEntriesOutsideTheRepositoryAreSkipped() throws Exception
+    {
+        entries.put( POM, "<project/>".getBytes() );
+        entries.put( "../evil.txt", "evil".getBytes() );
+        entries.put( "/../../evil-abs.txt", "evil".getBytes() );
+        entries.put( "org/../../evil-nested.txt", "evil".getBytes() );
+
+        service.startPreSeed();
+        release.countDown();
+        awaitReady();
+
+        assertTrue( Files.isRegularFile( repo.resolve( POM ) ) );
+        assertFalse( Files.exists( dir.resolve( "evil.txt" ) ) );
+        assertFalse( Files.exists( dir.resolve( "evil-abs.txt" ) ) );
+        assertFalse( Files.exists( dir.resolve( "evil-nested.txt" ) ) );
+        assertFalse( Files.exists( dir.getParent().resolve( "evil-abs.txt" ) ) );
+        assertEquals( 1, service.metrics.get( "preseed.entries" ) );
+    }
+
+    private byte[] zip() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream( bytes ))
+        {
+            for ( Map.Entry<String, byte[]> entry : entries.entrySet() )
+            {
+                zip.putNextEntry( new ZipEntry( entry.getKey() ) );
+                zip.write( entry.getValue() );
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private void awaitReady() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ( !service.isReady() && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertTrue( service.isReady() );
+    }
+
+    private void awaitWritersStopped() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ( hasWriters() && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertFalse( hasWriters() );
+    }
+
+    private static boolean hasWriters()
+    {
+        return Thread.getAllStackTraces().keySet().stream().anyMatch( t -> t.getName().equals( "pre-seed-writer" ) );
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BlobStoreTest
+{
+    private final BlobStore store = new BlobStore();
+
+    private final byte[] content = "<project/>".getBytes();
+
+    private final String sha256 = DigestUtils.sha256Hex( content );
+
+    private Path repo;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        repo = Files.createTempDirectory( "repo-" );
+        SidecarConfig config = new SidecarConfig();
+        config.localRepository = Optional.of( repo.toString() );
+        config.preSeedDedup = true;
+        store.sidecarConfig = config;
+        store.metrics = new SidecarMetrics();
+        store.init();
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException
+    {
+        FileUtils.deleteDirectory( repo.toFile() );
+    }
+
+    @Test
+    public void testSameContentIsStoredOnce() throws IOException
+    {
+        Path first = repo.resolve( "org/foo/1.0/foo-1.0.pom" );
+        assertFalse( store.linkExisting( sha256, first ) );
+        store.store( write( content ), sha256, first );
+
+        Path second = repo.resolve( "org/foo/1.1/foo-1.1.pom" );
+        assertTrue( store.linkExisting( sha256, second ) );
+
+        Path third = repo.resolve( "org/bar/1.0/bar-1.0.pom" );
+        store.store( write( content ), sha256, third );
+
+        assertArrayEquals( content, Files.readAllBytes( second ) );
+        assertArrayEquals( content, Files.readAllBytes( third ) );
+        assertEquals( 1L, Files.walk( repo.resolve( BlobStore.BLOB_DIR ) ).filter( Files::isRegularFile ).count() );
+        assertEquals( 2, store.metrics.get( "blob.dedup" ) );
+    }
+
+    @Test
+    public void testUnusedBlobsArePruned() throws IOException
+    {
+        BlobStore previous = new BlobStore();
+        previous.sidecarConfig = store.sidecarConfig;
+        previous.metrics = store.metrics;
+        previous.init();
+        previous.store( write( content ), sha256, repo.resolve( "a.pom" ) );
+        byte[] other = "<other/>".getBytes();
+        previous.store( write( other ), DigestUtils.sha256Hex( other ), repo.resolve( "b.pom" ) );
+
+        assertTrue( store.linkExisting( sha256, repo.resolve( "c.pom" ) ) );
+        store.prune();
+
+        assertEquals( 1L, Files.walk( repo.resolve( BlobStore.BLOB_DIR ) ).filter( Files::isRegularFile ).count() );
+        assertTrue( store.linkExisting( sha256, repo.resolve( "d.pom" ) ) );
+    }
+
+    private Path write( byte[] bytes ) throws IOException
+    {
+        Path tmp = Files.createTempFile( repo, "tmp-", ".bin" );
+        Files.write( tmp, bytes );
+        return tmp;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IntegrityVerifierTest
+{
+    private final IntegrityVerifier verifier = new IntegrityVerifier();
+
+    private final Map<String, HistoricalEntryDTO> report = new HashMap<>();
+
+    private final byte[] content = "<project/>".getBytes();
+
+    @BeforeEach
+    public void setup()
+    {
+        SidecarConfig config = new SidecarConfig();
+        config.verifyEnabled = true;
+        config.verifyThreads = 2;
+        config.verifyMaxMbPerSec = 0;
+        verifier.sidecarConfig = config;
+        verifier.metrics = new SidecarMetrics();
+        verifier.reportService = new ReportService()
+        {
+            @Override
+            public HistoricalEntryDTO getHistoricalEntry( String path )
+            {
+                return report.get( path );
+            }
+        };
+    }
+
+    @Test
+    public void testMatchingContentIsVerified()
+    {
+        expect( "/org/foo/1.0/foo-1.0.pom", DigestUtils.sha256Hex( content ), null, (long) content.length );
+
+        assertNull( verifier.getState( "org/foo/1.0/foo-1.0.pom" ) );
+        assertTrue( verifier.verify( "org/foo/1.0/foo-1.0.pom", source( content, new AtomicInteger() ) ) );
+        assertEquals( Boolean.TRUE, verifier.getState( "/org/foo/1.0/foo-1.0.pom" ) );
+    }
+
+    @Test
+    public void testCorruptContentIsQuarantined()
+    {
+        expect( "/org/foo/1.0/foo-1.0.pom", null, DigestUtils.sha1Hex( content ), null );
+        AtomicInteger quarantined = new AtomicInteger();
+
+        assertFalse( verifier.verify( "/org/foo/1.0/foo-1.0.pom", source( "<broken".getBytes(), quarantined ) ) );
+        assertEquals( Boolean.FALSE, verifier.getState( "/org/foo/1.0/foo-1.0.pom" ) );
+        assertEquals( 1, quarantined.get() );
+        assertEquals( 1, verifier.metrics.get( "verify.corrupt" ) );
+    }
+
+    @Test
+    public void testSizeMismatchIsCorrupt()
+    {
+        expect( "/a.pom", DigestUtils.sha256Hex( content ), null, content.length + 1L );
+
+        assertFalse( verifier.verify( "/a.pom", source( content, new AtomicInteger() ) ) );
+    }
+
+    @Test
+    public void testReadErrorIsVerifiedAgain()
+    {
+        expect( "/a.pom", DigestUtils.sha256Hex( content ), null, null );
+        AtomicInteger quarantined = new AtomicInteger();
+
+        assertFalse( verifier.verify( "/a.pom", () -> {
+            throw new IOException( "read error" );
+        } ) );
+        assertNull( verifier.getState( "/a.pom" ) );
+        assertTrue( verifier.verify( "/a.pom", source( content, quarantined ) ) );
+        assertEquals( 0, quarantined.get() );
+    }
+
+    @Test
+    public void testNothingToVerifyAgainst()
+    {
+        expect( "/a.pom", null, null, null );
+
+        assertEquals( Boolean.TRUE, verifier.getState( "/a.pom" ) );
+        assertEquals( Boolean.TRUE, verifier.getState( "/not/in/report.pom" ) );
+    }
+
+    @Test
+    public void testBackgroundPassVerifiesEachPathOnce() throws Exception
+    {
+        expect( "/a.pom", DigestUtils.sha256Hex( content ), null, null );
+        expect( "/b.pom", DigestUtils.sha256Hex( content ), null, null );
+        AtomicInteger opened = new AtomicInteger();
+
+        verifier.verifyAll( List.of( "/a.pom", "/b.pom", "/gone.pom" ), p -> "/gone.pom".equals( p ) ?
+                        null :
+                        () -> {
+                            opened.incrementAndGet();
+                            return new ByteArrayInputStream( content );
+                        } );
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ( verifier.getState( "/b.pom" ) == null && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+
+        assertTrue( verifier.verify( "/a.pom", () -> {
+            opened.incrementAndGet();
+            return new ByteArrayInputStream( content );
+        } ) );
+        assertEquals( Boolean.TRUE, verifier.getState( "/b.pom" ) );
+        assertEquals( 2, opened.get() );
+        verifier.destroy();
+    }
+
+    private void expect( String path, String sha256, String sha1, Long size )
+    {
+        HistoricalEntryDTO entry = new HistoricalEntryDTO();
+        entry.setPath( path );
+        entry.setSha256( sha256 );
+        entry.setSha1( sha1 );
+        entry.setSize( size );
+        report.put( path, entry );
+    }
+
+    private IntegrityVerifier.Source source( byte[] bytes, AtomicInteger quarantined )
+    {
+        return new IntegrityVerifier.Source()
+        {
+            @Override
+            public InputStream open()
+            {
+                return new ByteArrayInputStream( bytes );
+            }
+
+            @Override
+            public void quarantine()
+            {
+                quarantined.incrementAndGet();
+            }
+        };
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.smallrye.mutiny.Uni;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.util.UpstreamCall;
+import org.commonjava.util.sidecar.util.UpstreamClient;
+import org.commonjava.util.sidecar.util.UpstreamResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.commonjava.util.sidecar.util.TestUtil.response;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class MetadataCacheTest
+{
+    private static final String PATH = "/api/content/maven/group/public/org/foo/maven-metadata.xml";
+
+    private static final byte[] BODY = "<metadata/>".getBytes();
+
+    private final MetadataCache cache = new MetadataCache();
+
+    private final List<Map<String, String>> requests = new ArrayList<>();
+
+    private final List<UpstreamResponse> responses = new ArrayList<>();
+
+    private final UpstreamClient client = (UpstreamClient) Proxy.newProxyInstance(
+                    getClass().getClassLoader(), new Class<?>[] { UpstreamClient.class }, ( proxy, method, args ) -> {
+                        @SuppressWarnings( "unchecked" )
+                        Map<String, String> headers = (Map<String, String>) args[2];
+                        requests.add( headers );
+                        UpstreamResponse resp = responses.remove( 0 );
+                        return (UpstreamCall) () -> Uni.createFrom().item( resp );
+                    } );
+
+    private SidecarConfig config;
+
+    @BeforeEach
+    public void setup()
+    {
+        config = new SidecarConfig();
+        config.metadataCacheEnabled = true;
+        config.metadataCacheTtl = "1m";
+        config.metadataCacheStaleWhileRevalidate = "0s";
+        config.metadataCacheMaxEntries = 10;
+        cache.sidecarConfig = config;
+        cache.metrics = new SidecarMetrics();
+    }
+
+    @Test
+    public void testFreshEntryIsServedFromMemory()
+    {
+        cache.init();
+        responses.add( response( 200, Map.of( "ETag", "\"v1\"" ), BODY ) );
+
+        assertArrayEquals( BODY, read( get() ) );
+        assertArrayEquals( BODY, read( get() ) );
+        assertEquals( 1, requests.size() );
+    }
+
+    @Test
+    public void testExpiredEntryIsRevalidatedWithEtag()
+    {
+        config.metadataCacheTtl = "0s";
+        cache.init();
+        responses.add( response( 200, Map.of( "ETag", "\"v1\"" ), BODY ) );
+        responses.add( response( 304, Map.of( "ETag", "\"v1\"" ), new byte[0] ) );
+
+        get();
+        UpstreamResponse revalidated = get();
+
+        assertEquals( 200, revalidated.code() );
+        assertArrayEquals( BODY, read( revalidated ) );
+        assertNull( requests.get( 0 ).get( "If-None-Match" ) );
+        assertEquals( "\"v1\"", requests.get( 1 ).get( "If-None-Match" ) );
+    }
+
+    @Test
+    public void testExpiredEntryIsServedStaleOnUpstreamError()
+    {
+        config.metadataCacheTtl = "0s";
+        cache.init();
+        responses.add( response( 200, Map.of( "ETag", "\"v1\"" ), BODY ) );
+        responses.add( response( 502 ) );
+
+        get();
+        UpstreamResponse stale = get();
+
+        assertEquals( 200, stale.code() );
+        assertArrayEquals( BODY, read( stale ) );
+    }
+
+    @Test
+    public void testErrorsAreNotCached()
+    {
+        cache.init();
+        responses.add( response( 404 ) );
+        responses.add( response( 200, Map.of( "ETag", "\"v1\"" ), BODY ) );
+
+        assertEquals( 404, get().code() );
+        assertEquals( 200, get().code() );
+        assertEquals( 2, requests.size() );
+    }
+
+    private UpstreamResponse get()
+    {
+        return cache.get( PATH, null, client ).enqueue().await().indefinitely();
+    }
+
+    private byte[] read( UpstreamResponse resp )
+    {
+        try (InputStream in = resp.bodyStream())
+        {
+            return IOUtils.toByteArray( in );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.http.HttpMethod;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.dto.HistoricalEntryDTO;
+import org.commonjava.util.sidecar.util.UpstreamCall;
+import org.commonjava.util.sidecar.util.UpstreamClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import static org.commonjava.util.sidecar.util.TestUtil.response;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PrefetcherTest
+{
+    private static final String JAR = "/org/foo/1.0/foo-1.0.jar";
+
+    private final Prefetcher prefetcher = new Prefetcher();
+
+    private final IntegrityVerifier verifier = new IntegrityVerifier();
+
+    private final ArchiveRetrieveService archiveService = new ArchiveRetrieveService()
+    {
+        @Override
+        public String getBuildConfigId()
+        {
+            return "1000";
+        }
+    };
+
+    private final Map<String, HistoricalEntryDTO> report = new HashMap<>();
+
+    private final Map<String, byte[]> upstream = new HashMap<>();
+
+    private final List<String> fetched = Collections.synchronizedList( new ArrayList<>() );
+
+    private final UpstreamClient client = (UpstreamClient) Proxy.newProxyInstance(
+                    getClass().getClassLoader(), new Class<?>[] { UpstreamClient.class }, ( proxy, method, args ) -> {
+                        String path = (String) args[0];
+                        String key = upstream.keySet()
+                                                 .stream()
+                                                 .filter( path::endsWith )
+                                                 .findFirst()
+                                                 .orElseThrow();
+                        return (UpstreamCall) () -> {
+                            fetched.add( key );
+                            return Uni.createFrom().item( response( 200, Map.of(), upstream.get( key ) ) );
+                        };
+                    } );
+
+    private Path repo;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        repo = Files.createTempDirectory( "repo-" );
+        SidecarConfig config = new SidecarConfig();
+        config.localRepository = Optional.of( repo.toString() );
+        config.prefetchEnabled = true;
+        config.prefetchConcurrency = 1;
+        config.verifyEnabled = true;
+        SidecarMetrics metrics = new SidecarMetrics();
+        ReportService reportService = new ReportService()
+        {
+            @Override
+            public HistoricalEntryDTO getHistoricalEntry( String path )
+            {
+                return report.get( path.startsWith( "/" ) ? path : "/" + path );
+            }
+
+            @Override
+            public Set<String> getHistoricalPaths()
+            {
+                return report.keySet();
+            }
+        };
+
+        BlobStore blobStore = new BlobStore();
+        blobStore.sidecarConfig = config;
+        blobStore.metrics = metrics;
+
+        verifier.sidecarConfig = config;
+        verifier.metrics = metrics;
+        verifier.reportService = reportService;
+
+        archiveService.sidecarConfig = config;
+        archiveService.metrics = metrics;
+        archiveService.reportService = reportService;
+        archiveService.blobStore = blobStore;
+        archiveService.verifier = verifier;
+        archiveService.prefetcher = prefetcher;
+
+        SingleFlight singleFlight = new SingleFlight();
+        singleFlight.metrics = metrics;
+
+        prefetcher.sidecarConfig = config;
+        prefetcher.metrics = metrics;
+        prefetcher.reportService = reportService;
+        prefetcher.archiveService = archiveService;
+        prefetcher.singleFlight = singleFlight;
+        prefetcher.verifier = verifier;
+        prefetcher.classifier = new Classifier()
+        {
+            @Override
+            public <R> R classifyAnd( String path, HttpMethod method,
+                                      BiFunction<UpstreamClient, ServiceConfig, R> action )
+            {
+                return action.apply( client, null );
+            }
+        };
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException
+    {
+        prefetcher.destroy();
+        FileUtils.deleteDirectory( repo.toFile() );
+    }
+
+    @Test
+    public void testPomsFirstThenSmallFiles() throws Exception
+    {
+        expect( "/org/foo/1.0/foo-1.0.jar", 300 );
+        expect( "/org/foo/1.0/foo-1.0-sources.jar", 20 );
+        expect( "/org/foo/1.0/foo-1.0.pom", 500 );
+        expect( "/org/bar/1.0/bar-1.0.pom", 10 );
+        archiveService.buildIndex();
+        prefetcher.start();
+        awaitPrefetched();
+
+        assertEquals( List.of( "/org/bar/1.0/bar-1.0.pom", "/org/foo/1.0/foo-1.0.pom",
+                               "/org/foo/1.0/foo-1.0-sources.jar", "/org/foo/1.0/foo-1.0.jar" ), fetched );
+        assertTrue( archiveService.isAvailableLocally( "/org/foo/1.0/foo-1.0.jar" ) );
+    }
+
+    @Test
+    public void testLocalAndMetadataPathsAreSkipped() throws Exception
+    {
+        write( JAR, expect( JAR, 3 ) );
+        expect( "/org/foo/maven-metadata.xml", 10 );
+        expect( "/foo/package.json", 10 );
+        expect( "/org/foo/1.0/foo-1.0.pom", 10 );
+        archiveService.buildIndex();
+        prefetcher.start();
+        awaitPrefetched();
+
+        assertEquals( List.of( "/org/foo/1.0/foo-1.0.pom" ), fetched );
+        assertEquals( 1, prefetcher.metrics.get( "prefetch.fetched" ) );
+    }
+
+    @Test
+    public void testQuarantinedPathIsFetchedAgain() throws Exception
+    {
+        byte[] content = expect( JAR, 3 );
+        write( JAR, "broken".getBytes() );
+        archiveService.buildIndex();
+        prefetcher.start();
+
+        assertFalse( verifier.verify( JAR, archiveService.sourceOf( JAR ) ) );
+        awaitFetched( 1 );
+
+        assertEquals( List.of( JAR ), fetched );
+        assertTrue( archiveService.isAvailableLocally( JAR ) );
+        assertArrayEquals( content, Files.readAllBytes( repo.resolve( JAR.substring( 1 ) ) ) );
+        assertTrue( Files.exists( repo.resolve( IntegrityVerifier.QUARANTINE_DIR ).resolve( JAR.substring( 1 ) ) ) );
+
+        // the fetched content is verified again instead of being taken for corrupt
+        assertNull( verifier.getState( JAR ) );
+        assertTrue( verifier.verify( JAR, archiveService.sourceOf( JAR ) ) );
+    }
+
+    @Test
+    public void testQuarantinedPathIsDroppedFromIndex() throws Exception
+    {
+        expect( JAR, 3 );
+        write( JAR, "broken".getBytes() );
+        archiveService.buildIndex();
+
+        assertFalse( verifier.verify( JAR, archiveService.sourceOf( JAR ) ) );
+
+        assertFalse( archiveService.isAvailableLocally( JAR ) );
+        assertTrue( fetched.isEmpty() );
+
+        // not started yet, so it is fetched with the rest of the missing paths
+        prefetcher.start();
+        awaitFetched( 1 );
+        assertTrue( archiveService.isAvailableLocally( JAR ) );
+    }
+
+    /**
+     * @return the content upstream has for the path, which the report recorded
+     */
+    private byte[] expect( String path, int size )
+    {
+        byte[] content = new byte[size];
+        Arrays.fill( content, (byte) path.length() );
+        HistoricalEntryDTO entry =
+                        new HistoricalEntryDTO( new StoreKey( "maven", StoreType.remote, "central" ), path );
+        entry.setSha256( DigestUtils.sha256Hex( content ) );
+        entry.setSize( (long) size );
+        report.put( path, entry );
+        upstream.put( path, content );
+        return content;
+    }
+
+    private void write( String path, byte[] content ) throws IOException
+    {
+        Path file = repo.resolve( path.substring( 1 ) );
+        Files.createDirectories( file.getParent() );
+        Files.write( file, content );
+    }
+
+    private void awaitPrefetched() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ( prefetcher.metrics.get( "prefetch.pending" ) > 0 && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 0, prefetcher.metrics.get( "prefetch.pending" ) );
+    }
+
+    private void awaitFetched( int count ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ( prefetcher.metrics.get( "prefetch.fetched" ) < count && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( count, prefetcher.metrics.get( "prefetch.fetched" ) );
+    }
+}
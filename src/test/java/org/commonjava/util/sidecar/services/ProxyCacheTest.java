@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.util.DigestingOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProxyCacheTest
+{
+    private static final int ENTRY_SIZE = 300 * 1024;
+
+    private final byte[] content = "<project/>".getBytes();
+
+    private SidecarConfig config;
+
+    private ProxyCache cache;
+
+    private Path repo;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        repo = Files.createTempDirectory( "repo-" );
+        config = new SidecarConfig();
+        config.localRepository = Optional.of( repo.toString() );
+        config.proxyCacheEnabled = true;
+        config.proxyCacheMaxSizeMb = 1;
+        config.proxyCacheEviction = "lru";
+        cache = newCache();
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException
+    {
+        FileUtils.deleteDirectory( repo.toFile() );
+    }
+
+    @Test
+    public void testCommittedSpoolIsServed() throws IOException
+    {
+        ProxyCache.Spool spool = cache.spool( "/org/foo/1.0/foo-1.0.pom", "application/xml", "central" );
+        assertNull( cache.spool( "/org/foo/1.0/foo-1.0.pom", "application/xml", "central" ) ); // being spooled
+        put( spool, content );
+
+        ProxyCache.Entry entry = cache.get( "/org/foo/1.0/foo-1.0.pom" );
+        assertNotNull( entry );
+        assertEquals( content.length, entry.size );
+        assertEquals( DigestUtils.sha1Hex( content ), entry.sha1 );
+        assertEquals( "central", entry.origin );
+        assertArrayEquals( content, Files.readAllBytes( cache.fileOf( entry ).toPath() ) );
+        assertEquals( content.length, cache.metrics.get( "proxy.cache.size" ) );
+    }
+
+    @Test
+    public void testAbortedSpoolIsDropped() throws IOException
+    {
+        ProxyCache.Spool spool = cache.spool( "/org/foo/1.0/foo-1.0.jar", null, null );
+        spool.write( content, 0, content.length );
+        spool.abort();
+        spool.commit( new DigestingOutputStream( OutputStream.nullOutputStream() ) ); // no effect after abort
+
+        assertNull( cache.get( "/org/foo/1.0/foo-1.0.jar" ) );
+        assertEquals( 0, cache.metrics.get( "proxy.cache.entries" ) );
+        try (Stream<Path> tmp = Files.list( repo.resolve( ProxyCache.CACHE_DIR ).resolve( ".tmp" ) ))
+        {
+            assertEquals( 0, tmp.count() );
+        }
+        assertNotNull( cache.spool( "/org/foo/1.0/foo-1.0.jar", null, null ) ); // may be spooled again
+    }
+
+    @Test
+    public void testIndexIsReloadedAfterRestart() throws IOException
+    {
+        put( "/org/foo/1.0/foo-1.0.pom", content );
+        put( "/org/foo/1.0/foo-1.0.jar", content );
+        cache.get( "/org/foo/1.0/foo-1.0.pom" );
+        cache.get( "/org/foo/1.0/foo-1.0.pom" );
+        cache.destroy();
+        Files.delete( repo.resolve( ProxyCache.CACHE_DIR ).resolve( "org/foo/1.0/foo-1.0.jar" ) );
+
+        ProxyCache restarted = newCache();
+        ProxyCache.Entry entry = restarted.get( "/org/foo/1.0/foo-1.0.pom" );
+        assertNotNull( entry );
+        assertEquals( 3, entry.getHits() );
+        assertEquals( DigestUtils.sha256Hex( content ), entry.sha256 );
+        assertNull( restarted.get( "/org/foo/1.0/foo-1.0.jar" ) ); // its file is gone
+        assertEquals( content.length, restarted.metrics.get( "proxy.cache.size" ) );
+    }
+
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() throws IOException
+    {
+        assertEquals( "/a.jar", fillAndEvict() );
+    }
+
+    @Test
+    public void testLfuEvictsLeastFrequentlyUsed() throws IOException
+    {
+        config.proxyCacheEviction = "lfu";
+        cache = newCache();
+
+        assertEquals( "/b.jar", fillAndEvict() );
+    }
+
+    @Test
+    public void testHitsAreNotLost() throws Exception
+    {
+        put( "/a.jar", content );
+        Thread[] threads = new Thread[8];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i] = new Thread( () -> {
+                for ( int j = 0; j < 10_000; j++ )
+                {
+                    cache.get( "/a.jar" );
+                }
+            } );
+            threads[i].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        assertEquals( 80_000, cache.get( "/a.jar" ).getHits() - 1 );
+    }
+
+    @Test
+    public void testPathsOutsideTheCacheAreRefused()
+    {
+        assertNull( cache.spool( "/../../outside.jar", null, null ) );
+        assertNull( cache.spool( "/org/../../outside.jar", null, null ) );
+        assertFalse( new File( repo.toFile(), "outside.jar" ).exists() );
+    }
+
+    @Test
+    public void testMetadataChecksumsAreNotCacheable()
+    {
+        assertTrue( cache.isCacheable( "/org/foo/1.0/foo-1.0.jar.sha1" ) );
+        assertTrue( cache.isCacheable( "/org/foo/1.0/foo-1.0.pom.asc" ) );
+        assertFalse( cache.isCacheable( "/org/foo/maven-metadata.xml" ) );
+        assertFalse( cache.isCacheable( "/org/foo/maven-metadata.xml.sha1" ) );
+        assertFalse( cache.isCacheable( "/org/foo/maven-metadata.xml.md5" ) );
+        assertFalse( cache.isCacheable( "/org/foo/maven-metadata.xml.asc.sha256" ) );
+        assertFalse( cache.isCacheable( "/foo/package.json.sha512" ) );
+        assertFalse( cache.isCacheable( "/org/foo/1.0-SNAPSHOT/foo-1.0-SNAPSHOT.jar" ) );
+    }
+
+    /**
+     * Store three entries, with a used least recently and b least frequently, then a fourth that takes the cache over
+     * its cap.
+     *
+     * @return the path that was evicted
+     */
+    private String fillAndEvict() throws IOException
+    {
+        byte[] body = new byte[ENTRY_SIZE];
+        String[] paths = { "/a.jar", "/b.jar", "/c.jar" };
+        long[] hits = { 5, 0, 3 };
+        for ( int i = 0; i < paths.length; i++ )
+        {
+            put( paths[i], body );
+            ProxyCache.Entry entry = cache.get( paths[i] );
+            entry.lastAccess = i + 1;
+            entry.setHits( hits[i] );
+        }
+        put( "/d.jar", body );
+
+        long cap = config.proxyCacheMaxSizeMb * 1024 * 1024;
+        assertTrue( cache.metrics.get( "proxy.cache.size" ) <= cap / 10 * 9 );
+        assertEquals( 1, cache.metrics.get( "proxy.cache.evicted" ) );
+        String evicted = null;
+        for ( String path : new String[] { "/a.jar", "/b.jar", "/c.jar", "/d.jar" } )
+        {
+            if ( cache.get( path ) == null )
+            {
+                evicted = path;
+                assertFalse( new File( repo.resolve( ProxyCache.CACHE_DIR ).toFile(), path ).exists() );
+            }
+        }
+        return evicted;
+    }
+
+    private ProxyCache newCache()
+    {
+        ProxyCache cache = new ProxyCache();
+        cache.sidecarConfig = config;
+        cache.objectMapper = new ObjectMapper();
+        cache.metrics = new SidecarMetrics();
+        cache.init();
+        return cache;
+    }
+
+    private void put( String path, byte[] body ) throws IOException
+    {
+        put( cache.spool( path, null, null ), body );
+    }
+
+    private void put( ProxyCache.Spool spool, byte[] body ) throws IOException
+    {
+        DigestingOutputStream digest = new DigestingOutputStream( OutputStream.nullOutputStream() );
+        digest.write( body );
+        spool.write( body, 0, body.length );
+        spool.commit( digest );
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.AccessChannel;
+import org.commonjava.util.sidecar.model.StoreEffect;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.TrackedContentEntry;
+import org.commonjava.util.sidecar.model.TrackingKey;
+import org.commonjava.util.sidecar.util.UpstreamCall;
+import org.commonjava.util.sidecar.util.UpstreamClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import static org.commonjava.util.sidecar.util.TestUtil.response;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReportPusherTest
+{
+    private final List<JsonNode> pushed = new ArrayList<>();
+
+    private final ReportPusher pusher = new ReportPusher();
+
+    private int status = 201;
+
+    @BeforeEach
+    public void setup()
+    {
+        SidecarConfig config = new SidecarConfig();
+        config.reportPushEnabled = true;
+        config.reportPushBatchSize = 10;
+        pusher.sidecarConfig = config;
+        pusher.metrics = new SidecarMetrics();
+        pusher.objectMapper = new ObjectMapper();
+        pusher.classifier = new Classifier()
+        {
+            @Override
+            public <R> R classifyAnd( String path, HttpMethod method,
+                                      BiFunction<UpstreamClient, ServiceConfig, R> action )
+            {
+                return action.apply( new ImportClient(), null );
+            }
+        };
+        pusher.init();
+    }
+
+    @Test
+    public void testPushesAreCumulative()
+    {
+        offer( 25 );
+        pusher.pushPending();
+
+        assertEquals( 3, pushed.size() );
+        assertEquals( List.of( 10, 20, 25 ), List.of( size( 0 ), size( 1 ), size( 2 ) ) );
+        assertEquals( 25, pusher.metrics.get( "report.push.entries" ) );
+        assertEquals( 0, pusher.metrics.get( "report.push.pending" ) );
+    }
+
+    @Test
+    public void testPushedRecordsArePushedAgain()
+    {
+        offer( 5 );
+        pusher.pushPending();
+        pusher.offer( download( "/new.jar" ) );
+        pusher.pushPending();
+
+        // Indy replaces the record on import, so what it has must be sent along
+        assertEquals( 2, pushed.size() );
+        assertEquals( 6, size( 1 ) );
+        assertEquals( 6, pusher.metrics.get( "report.push.entries" ) );
+    }
+
+    @Test
+    public void testFailedBatchIsKept()
+    {
+        status = 503;
+        offer( 15 );
+        pusher.pushPending();
+
+        assertEquals( 1, pushed.size() );
+        assertEquals( 1, pusher.metrics.get( "report.push.failed" ) );
+
+        status = 201;
+        pusher.retryAt = 0;
+        pusher.pushPending();
+
+        assertEquals( 3, pushed.size() );
+        assertEquals( pushed.get( 0 ), pushed.get( 1 ) );
+        assertEquals( 15, size( 2 ) );
+        assertEquals( 15, pusher.metrics.get( "report.push.entries" ) );
+    }
+
+    @Test
+    public void testFinalImportSendsWholeReport() throws IOException
+    {
+        ReportService service = new ReportService();
+        service.objectMapper = new ObjectMapper();
+        service.journal = new TrackingJournal();
+        service.pusher = pusher;
+        for ( int i = 0; i < 25; i++ )
+        {
+            service.appendDownload( download( "/" + i + ".jar" ) );
+        }
+        pusher.pushPending();
+        service.appendDownload( download( "/late.jar" ) );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.writeImport( out, false );
+
+        // Indy replaces the record on import, so the batches pushed before must be in it too
+        JsonNode report = new ObjectMapper().readTree( out.toByteArray() );
+        assertEquals( 26, report.get( "downloads" ).size() );
+
+        // nothing may replace the imported report afterwards
+        service.appendDownload( download( "/after.jar" ) );
+        pusher.pushPending();
+        assertEquals( 3, pushed.size() );
+        assertTrue( pusher.isSealed() );
+
+        pusher.clear();
+        pusher.offer( download( "/next.jar" ) );
+        pusher.pushPending();
+        assertEquals( 4, pushed.size() );
+    }
+
+    private void offer( int count )
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            pusher.offer( download( "/" + i + ".jar" ) );
+        }
+    }
+
+    private int size( int batch )
+    {
+        return pushed.get( batch ).get( "downloads" ).size();
+    }
+
+    private TrackedContentEntry download( String path )
+    {
+        return new TrackedContentEntry( new TrackingKey( "1000" ), new StoreKey( "maven", StoreType.remote, "central" ),
+                                        AccessChannel.NATIVE, "", path, StoreEffect.DOWNLOAD, 1L, "md5", "sha1",
+                                        "sha256" );
+    }
+
+    private class ImportClient
+                    implements UpstreamClient
+    {
+        @Override
+        public UpstreamCall put( String path, File bodyFile, HttpServerRequest req, Map<String, String> headers )
+        {
+            return () -> {
+                try
+                {
+                    pushed.add( new ObjectMapper().readTree( bodyFile ) );
+                }
+                catch ( IOException e )
+                {
+                    return Uni.createFrom().failure( e );
+                }
+                bodyFile.delete();
+                return Uni.createFrom().item( response( status ) );
+            };
+        }
+
+        @Override
+        public UpstreamCall head( String path, HttpServerRequest req )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UpstreamCall get( String path, HttpServerRequest req )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UpstreamCall get( String path, HttpServerRequest req, Map<String, String> headers )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UpstreamCall post( String path, InputStream is, HttpServerRequest req )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UpstreamCall put( String path, InputStream is, HttpServerRequest req )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UpstreamCall put( String path, File bodyFile, HttpServerRequest req )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UpstreamCall delete( String path, HttpServerRequest req )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reinit()
+        {
+        }
+    }
+}
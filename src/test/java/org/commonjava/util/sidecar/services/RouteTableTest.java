@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import org.commonjava.util.sidecar.config.ServiceConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class RouteTableTest
+{
+    @Test
+    public void testPrefixRoutes()
+    {
+        ServiceConfig api = service( "/api/.+", null );
+        ServiceConfig content = service( "/api/content/.+", "GET,HEAD" );
+        RouteTable table = new RouteTable( Arrays.asList( content, api ) );
+
+        assertSame( content, table.lookup( "/api/content/maven/foo.jar", "GET" ) );
+        assertSame( api, table.lookup( "/api/content/maven/foo.jar", "PUT" ) );
+        assertSame( api, table.lookup( "/api/admin", "GET" ) );
+        assertNull( table.lookup( "/api/", "GET" ) );
+        assertNull( table.lookup( "/other", "GET" ) );
+    }
+
+    @Test
+    public void testFirstMatchWins()
+    {
+        ServiceConfig api = service( "/api/.*", null );
+        ServiceConfig content = service( "/api/content/.+", null );
+        RouteTable table = new RouteTable( Arrays.asList( api, content ) );
+
+        assertSame( api, table.lookup( "/api/content/maven/foo.jar", "GET" ) );
+        assertSame( api, table.lookup( "/api/", "GET" ) );
+    }
+
+    @Test
+    public void testExactAndRegexRoutes()
+    {
+        ServiceConfig stats = service( "/api/stats/version-info", "GET" );
+        ServiceConfig jars = service( "/api/.+\\.jar", null );
+        ServiceConfig invalid = service( "/api/(.+", null );
+        RouteTable table = new RouteTable( Arrays.asList( invalid, stats, jars ) );
+
+        assertSame( stats, table.lookup( "/api/stats/version-info", "GET" ) );
+        assertNull( table.lookup( "/api/stats/version-info", "POST" ) );
+        assertSame( jars, table.lookup( "/api/content/foo.jar", "PUT" ) );
+        assertNull( table.lookup( "/api/content/foo.pom", "PUT" ) );
+    }
+
+    private ServiceConfig service( String pathPattern, String methods )
+    {
+        ServiceConfig sv = new ServiceConfig();
+        sv.host = "localhost";
+        sv.pathPattern = pathPattern;
+        sv.methods = methods;
+        return sv;
+    }
+}
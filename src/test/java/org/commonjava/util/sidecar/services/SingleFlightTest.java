@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.http.HttpServerRequest;
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.sidecar.util.UpstreamCall;
+import org.commonjava.util.sidecar.util.UpstreamResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.commonjava.util.sidecar.util.TestUtil.response;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SingleFlightTest
+{
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @BeforeEach
+    public void setup()
+    {
+        singleFlight.metrics = new SidecarMetrics();
+    }
+
+    @Test
+    public void testConcurrentGetsShareOneCall() throws Exception
+    {
+        byte[] body = new byte[100_000];
+        for ( int i = 0; i < body.length; i++ )
+        {
+            body[i] = (byte) i;
+        }
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<UpstreamResponse> upstream = new CompletableFuture<>();
+        UpstreamCall call = () -> {
+            calls.incrementAndGet();
+            return Uni.createFrom().completionStage( upstream );
+        };
+
+        CompletableFuture<UpstreamResponse> leader =
+                        singleFlight.get( "/a.jar", () -> call ).enqueue().subscribeAsCompletionStage();
+        CompletableFuture<UpstreamResponse> follower =
+                        singleFlight.get( "/a.jar", () -> call ).enqueue().subscribeAsCompletionStage();
+        upstream.complete( response( 200, Map.of( "X-Foo", "bar" ), body ) );
+
+        UpstreamResponse followerResp = follower.get();
+        CompletableFuture<byte[]> followerBody = CompletableFuture.supplyAsync( () -> read( followerResp ) );
+        assertArrayEquals( body, read( leader.get() ) );
+        assertArrayEquals( body, followerBody.get() );
+        assertEquals( 1, calls.get() );
+        assertEquals( "bar", followerResp.header( "X-Foo" ) );
+    }
+
+    @Test
+    public void testErrorsAreNotShared() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<UpstreamResponse> first = new CompletableFuture<>();
+        UpstreamCall call = () -> calls.incrementAndGet() == 1 ?
+                        Uni.createFrom().completionStage( first ) :
+                        Uni.createFrom().item( response( 200, Map.of(), new byte[] { 1 } ) );
+
+        CompletableFuture<UpstreamResponse> leader =
+                        singleFlight.get( "/b.jar", () -> call ).enqueue().subscribeAsCompletionStage();
+        CompletableFuture<UpstreamResponse> follower =
+                        singleFlight.get( "/b.jar", () -> call ).enqueue().subscribeAsCompletionStage();
+        first.complete( response( 404 ) );
+
+        assertEquals( 404, leader.get().code() );
+        assertEquals( 200, follower.get().code() );
+        assertEquals( 2, calls.get() );
+    }
+
+    @Test
+    public void testRangeAndConditionalRequestsAreNotShared() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<UpstreamResponse> upstream = new CompletableFuture<>();
+        UpstreamCall call = () -> {
+            calls.incrementAndGet();
+            return Uni.createFrom().completionStage( upstream );
+        };
+
+        CompletableFuture<UpstreamResponse> leader = singleFlight.get( "/c.jar", request( null ), () -> call )
+                                                                 .enqueue()
+                                                                 .subscribeAsCompletionStage();
+        for ( String header : List.of( "Range", "If-None-Match", "If-Modified-Since" ) )
+        {
+            singleFlight.get( "/c.jar", request( header ), () -> call ).enqueue().subscribeAsCompletionStage();
+        }
+        assertEquals( 4, calls.get() );
+        assertEquals( 0, singleFlight.metrics.get( "upstream.coalesced" ) );
+
+        upstream.complete( response( 200, Map.of(), new byte[] { 1 } ) );
+        assertArrayEquals( new byte[] { 1 }, read( leader.get() ) );
+    }
+
+    @Test
+    public void testCancelledLeaderIsNotWaitedFor() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        UpstreamCall call = () -> calls.incrementAndGet() == 1 ?
+                        Uni.createFrom().completionStage( new CompletableFuture<>() ) :
+                        Uni.createFrom().item( response( 200, Map.of(), new byte[] { 1 } ) );
+
+        CompletableFuture<UpstreamResponse> leader =
+                        singleFlight.get( "/d.jar", () -> call ).enqueue().subscribeAsCompletionStage();
+        CompletableFuture<UpstreamResponse> follower =
+                        singleFlight.get( "/d.jar", () -> call ).enqueue().subscribeAsCompletionStage();
+        leader.cancel( true );
+
+        assertArrayEquals( new byte[] { 1 }, read( follower.get( 10, SECONDS ) ) );
+        CompletableFuture<UpstreamResponse> later =
+                        singleFlight.get( "/d.jar", () -> call ).enqueue().subscribeAsCompletionStage();
+        assertArrayEquals( new byte[] { 1 }, read( later.get( 10, SECONDS ) ) );
+        assertEquals( 3, calls.get() );
+        assertEquals( 1, singleFlight.metrics.get( "upstream.coalesced" ) );
+    }
+
+    @Test
+    public void testFollowerStopsWaitingForSlowLeader() throws Exception
+    {
+        singleFlight.followTimeout = Duration.ofMillis( 100 );
+        AtomicInteger calls = new AtomicInteger();
+        UpstreamCall call = () -> calls.incrementAndGet() == 1 ?
+                        Uni.createFrom().completionStage( new CompletableFuture<>() ) :
+                        Uni.createFrom().item( response( 200, Map.of(), new byte[] { 1 } ) );
+
+        singleFlight.get( "/e.jar", () -> call ).enqueue().subscribeAsCompletionStage();
+        CompletableFuture<UpstreamResponse> follower =
+                        singleFlight.get( "/e.jar", () -> call ).enqueue().subscribeAsCompletionStage();
+
+        assertArrayEquals( new byte[] { 1 }, read( follower.get( 10, SECONDS ) ) );
+        assertEquals( 2, calls.get() );
+    }
+
+    @Test
+    public void testUnmadeCallDoesNotLead() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        UpstreamCall call = () -> {
+            calls.incrementAndGet();
+            return Uni.createFrom().item( response( 200, Map.of(), new byte[] { 1 } ) );
+        };
+
+        singleFlight.get( "/f.jar", () -> call );
+        UpstreamResponse resp = singleFlight.get( "/f.jar", () -> call ).enqueue().subscribeAsCompletionStage().get();
+
+        assertArrayEquals( new byte[] { 1 }, read( resp ) );
+        assertEquals( 1, calls.get() );
+        assertEquals( 0, singleFlight.metrics.get( "upstream.coalesced" ) );
+    }
+
+    /**
+     * @return a request with just the given header set
+     */
+    private HttpServerRequest request( String header )
+    {
+        InvocationHandler handler = ( proxy, method, args ) -> {
+            if ( method.getName().equals( "getHeader" ) && args[0].toString().equalsIgnoreCase( header ) )
+            {
+                return "bytes=0-0";
+            }
+            return null;
+        };
+        return (HttpServerRequest) Proxy.newProxyInstance( getClass().getClassLoader(),
+                                                           new Class<?>[] { HttpServerRequest.class }, handler );
+    }
+
+    private byte[] read( UpstreamResponse resp )
+    {
+        try (InputStream in = resp.bodyStream())
+        {
+            return IOUtils.toByteArray( in );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.commonjava.util.sidecar.config.SidecarConfig;
+import org.commonjava.util.sidecar.model.AccessChannel;
+import org.commonjava.util.sidecar.model.StoreEffect;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.TrackedContent;
+import org.commonjava.util.sidecar.model.TrackedContentEntry;
+import org.commonjava.util.sidecar.model.TrackingKey;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TrackingJournalTest
+{
+    private Path repo;
+
+    private TrackedContent content;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        repo = Files.createTempDirectory( "repo-" );
+        content = new TrackedContent();
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException
+    {
+        FileUtils.deleteDirectory( repo.toFile() );
+    }
+
+    @Test
+    public void testRecordsAreReplayedAfterRestart()
+    {
+        TrackingJournal journal = start( 1000 );
+        record( journal, download( "1000", "/a.jar", 1L ) );
+        record( journal, download( "1000", "/a.jar", 2L ) );
+        record( journal, upload( "1000", "/b.pom" ) );
+        journal.stop();
+
+        TrackedContent replayed = replay( "1000" );
+        assertEquals( 1, replayed.getDownloads().size() );
+        assertEquals( Set.of( 1L, 2L ), replayed.getDownloads().iterator().next().getTimestamps() );
+        assertEquals( 1, replayed.getUploads().size() );
+    }
+
+    @Test
+    public void testCompactionKeepsAllRecords()
+    {
+        TrackingJournal journal = start( 3 );
+        for ( int i = 0; i < 10; i++ )
+        {
+            record( journal, download( "1000", "/" + i + ".jar", i ) );
+        }
+        journal.stop();
+
+        assertEquals( 10, replay( "1000" ).getDownloads().size() );
+        assertEquals( 10, journal.metrics.get( "journal.records" ) );
+    }
+
+    @Test
+    public void testOtherBuildsAndTornRecordsAreSkipped() throws IOException
+    {
+        TrackingJournal journal = start( 1000 );
+        record( journal, download( "1000", "/a.jar", 1L ) );
+        record( journal, download( "2000", "/b.jar", 1L ) );
+        journal.stop();
+        Files.write( repo.resolve( TrackingJournal.JOURNAL_DIR ).resolve( "journal.jsonl" ), "{\"path\":\"/c".getBytes(),
+                     APPEND );
+
+        TrackedContent replayed = replay( "1000" );
+        assertEquals( 1, replayed.getDownloads().size() );
+        assertEquals( "/a.jar", replayed.getDownloads().iterator().next().getPath() );
+    }
+
+    @Test
+    public void testClearDropsRecords()
+    {
+        TrackingJournal journal = start( 1000 );
+        record( journal, download( "1000", "/a.jar", 1L ) );
+        content = new TrackedContent();
+        journal.clear();
+        record( journal, download( "1000", "/b.jar", 1L ) );
+        journal.stop();
+
+        TrackedContent replayed = replay( "1000" );
+        assertEquals( 1, replayed.getDownloads().size() );
+        assertEquals( "/b.jar", replayed.getDownloads().iterator().next().getPath() );
+    }
+
+    @Test
+    public void testRecordsAreNotReplayedAfterImport() throws Exception
+    {
+        TrackingJournal journal = start( 1000 );
+        record( journal, download( "1000", "/a.jar", 1L ) );
+        journal.finish();
+        record( journal, download( "1000", "/b.jar", 1L ) );
+        awaitDeleted();
+        journal.stop();
+
+        assertEquals( 0, replay( "1000" ).getDownloads().size() );
+    }
+
+    @Test
+    public void testRecordsAreNotReplayedAfterCleanShutdown()
+    {
+        TrackingJournal journal = start( 1000 );
+        record( journal, download( "1000", "/a.jar", 1L ) );
+        journal.destroy();
+
+        assertEquals( 0, replay( "1000" ).getDownloads().size() );
+    }
+
+    private void awaitDeleted() throws InterruptedException
+    {
+        Path file = repo.resolve( TrackingJournal.JOURNAL_DIR ).resolve( "snapshot.jsonl" );
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ( Files.exists( file ) && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+    }
+
+    private TrackingJournal start( long compactAfter )
+    {
+        TrackingJournal journal = create( compactAfter );
+        journal.start( () -> {
+            List<TrackedContentEntry> entries = new ArrayList<>( content.getUploads() );
+            entries.addAll( content.getDownloads() );
+            return entries;
+        } );
+        return journal;
+    }
+
+    private TrackingJournal create( long compactAfter )
+    {
+        TrackingJournal journal = new TrackingJournal();
+        SidecarConfig config = new SidecarConfig();
+        config.localRepository = Optional.of( repo.toString() );
+        config.trackingJournalEnabled = true;
+        config.trackingJournalCompactAfter = compactAfter;
+        journal.sidecarConfig = config;
+        journal.objectMapper = new ObjectMapper();
+        journal.metrics = new SidecarMetrics();
+        journal.init();
+        return journal;
+    }
+
+    private TrackedContent replay( String trackingId )
+    {
+        TrackedContent replayed = new TrackedContent();
+        create( 1000 ).replay( trackingId, e -> {
+            if ( e.getEffect() == StoreEffect.UPLOAD )
+            {
+                replayed.appendUpload( e );
+            }
+            else
+            {
+                replayed.appendDownload( e );
+            }
+        } );
+        return replayed;
+    }
+
+    private void record( TrackingJournal journal, TrackedContentEntry entry )
+    {
+        if ( entry.getEffect() == StoreEffect.UPLOAD )
+        {
+            content.appendUpload( entry );
+        }
+        else
+        {
+            content.appendDownload( entry );
+        }
+        journal.append( entry );
+    }
+
+    private TrackedContentEntry download( String trackingId, String path, long timestamp )
+    {
+        TrackedContentEntry entry = entry( trackingId, path, StoreEffect.DOWNLOAD );
+        entry.setTimestamps( Set.of( timestamp ) );
+        return entry;
+    }
+
+    private TrackedContentEntry upload( String trackingId, String path )
+    {
+        return entry( trackingId, path, StoreEffect.UPLOAD );
+    }
+
+    private TrackedContentEntry entry( String trackingId, String path, StoreEffect effect )
+    {
+        return new TrackedContentEntry( new TrackingKey( trackingId ), new StoreKey( "maven", StoreType.remote,
+                                                                                     "central" ),
+                                        AccessChannel.NATIVE, "", path, effect, 1L, "md5", "sha1", "sha256" );
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ArchiveZipTest
+{
+    private static final String JAR = "org/foo/foo/1.0/foo-1.0.jar";
+
+    private static final String POM = "org/foo/foo/1.0/foo-1.0.pom";
+
+    private final byte[] jar = TestUtil.getBytes( 200_000 );
+
+    private final byte[] pom = "<project/>".getBytes();
+
+    private File file;
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        file = Files.createTempFile( "archive-", ".zip" ).toFile();
+        try (ZipOutputStream zip = new ZipOutputStream( new FileOutputStream( file ) ))
+        {
+            zip.putNextEntry( new ZipEntry( "org/foo/" ) );
+            zip.closeEntry();
+            zip.putNextEntry( new ZipEntry( JAR ) );
+            zip.write( jar );
+            zip.closeEntry();
+
+            ZipEntry stored = new ZipEntry( POM );
+            CRC32 crc = new CRC32();
+            crc.update( pom );
+            stored.setMethod( ZipEntry.STORED );
+            stored.setSize( pom.length );
+            stored.setCrc( crc.getValue() );
+            zip.putNextEntry( stored );
+            zip.write( pom );
+            zip.closeEntry();
+            zip.setComment( "build 1000" );
+        }
+    }
+
+    @AfterEach
+    public void cleanup()
+    {
+        file.delete();
+    }
+
+    @Test
+    public void testDeflatedEntry() throws IOException
+    {
+        try (ArchiveZip archive = ArchiveZip.open( file ))
+        {
+            assertEquals( 2, archive.size() );
+            ArchiveZip.Entry entry = archive.get( "/" + JAR );
+            assertFalse( entry.isStored() );
+            assertEquals( jar.length, entry.getSize() );
+            try (InputStream in = archive.openStream( entry ))
+            {
+                assertArrayEquals( jar, IOUtils.toByteArray( in ) );
+            }
+        }
+    }
+
+    @Test
+    public void testStoredEntryOffset() throws IOException
+    {
+        try (ArchiveZip archive = ArchiveZip.open( file ); RandomAccessFile raf = new RandomAccessFile( file, "r" ))
+        {
+            ArchiveZip.Entry entry = archive.get( POM );
+            assertTrue( entry.isStored() );
+
+            byte[] data = new byte[(int) entry.getSize()];
+            raf.seek( archive.dataOffset( entry ) );
+            raf.readFully( data );
+            assertArrayEquals( pom, data );
+        }
+    }
+
+    @Test
+    public void testMissing() throws IOException
+    {
+        try (ArchiveZip archive = ArchiveZip.open( file ))
+        {
+            assertNull( archive.get( "org/foo/" ) );
+            assertNull( archive.get( "org/foo/foo/1.0/foo-1.0.war" ) );
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ByteRangeTest
+{
+    @Test
+    public void testSingleRanges()
+    {
+        assertRange( ByteRange.parse( "bytes=0-99", 1000 ), 0, 99 );
+        assertRange( ByteRange.parse( "bytes=900-", 1000 ), 900, 999 );
+        assertRange( ByteRange.parse( "bytes=-100", 1000 ), 900, 999 );
+        assertRange( ByteRange.parse( "bytes=500-5000", 1000 ), 500, 999 );
+        assertRange( ByteRange.parse( "bytes=-5000", 1000 ), 0, 999 );
+    }
+
+    @Test
+    public void testMultipleRanges()
+    {
+        List<ByteRange> ranges = ByteRange.parse( "bytes=0-9, 20-29,-5", 100 );
+        assertEquals( 3, ranges.size() );
+        assertEquals( 20, ranges.get( 1 ).getStart() );
+        assertEquals( 95, ranges.get( 2 ).getStart() );
+        assertEquals( "bytes 0-9/100", ranges.get( 0 ).toContentRange( 100 ) );
+    }
+
+    @Test
+    public void testUnsatisfiable()
+    {
+        assertTrue( ByteRange.parse( "bytes=1000-", 1000 ).isEmpty() );
+        assertTrue( ByteRange.parse( "bytes=-0", 1000 ).isEmpty() );
+    }
+
+    @Test
+    public void testIgnored()
+    {
+        assertNull( ByteRange.parse( "items=0-1", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=10-5", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=a-b", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=5", 1000 ) );
+    }
+
+    private void assertRange( List<ByteRange> ranges, long start, long end )
+    {
+        assertEquals( 1, ranges.size() );
+        assertEquals( start, ranges.get( 0 ).getStart() );
+        assertEquals( end, ranges.get( 0 ).getEnd() );
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PathIndexTest
+{
+    @Test
+    public void testHitsAndMisses()
+    {
+        PathIndex index = new PathIndex( 16 );
+        for ( int i = 0; i < 10_000; i++ )
+        {
+            assertTrue( index.add( "org/foo/" + i + "/foo-" + i + ".jar" ) );
+        }
+        assertFalse( index.add( "org/foo/5/foo-5.jar" ) );
+        assertEquals( 10_000, index.size() );
+
+        for ( int i = 0; i < 10_000; i++ )
+        {
+            assertTrue( index.contains( "org/foo/" + i + "/foo-" + i + ".jar" ) );
+            assertFalse( index.contains( "org/foo/" + i + "/foo-" + i + ".pom" ) );
+        }
+        assertFalse( index.contains( "org/foo/5" ) );
+    }
+
+    @Test
+    public void testRemove()
+    {
+        PathIndex index = new PathIndex( 16 );
+        for ( int i = 0; i < 10_000; i++ )
+        {
+            index.add( "org/foo/" + i + "/foo-" + i + ".jar" );
+        }
+        for ( int i = 0; i < 10_000; i += 2 )
+        {
+            assertTrue( index.remove( "org/foo/" + i + "/foo-" + i + ".jar" ) );
+        }
+        assertFalse( index.remove( "org/foo/0/foo-0.jar" ) );
+        assertEquals( 5_000, index.size() );
+
+        // the paths that probed past a removed one are still found
+        for ( int i = 0; i < 10_000; i++ )
+        {
+            assertEquals( i % 2 == 1, index.contains( "org/foo/" + i + "/foo-" + i + ".jar" ) );
+        }
+        assertTrue( index.add( "org/foo/0/foo-0.jar" ) );
+        assertTrue( index.contains( "org/foo/0/foo-0.jar" ) );
+    }
+
+    @Test
+    public void testNonAsciiPaths()
+    {
+        PathIndex index = new PathIndex();
+        index.add( "@scope/café/-/café-1.0.tgz" );
+        assertTrue( index.contains( "@scope/café/-/café-1.0.tgz" ) );
+        assertFalse( index.contains( "@scope/cafe/-/cafe-1.0.tgz" ) );
+        assertTrue( index.memoryBytes() > 0 );
+    }
+}
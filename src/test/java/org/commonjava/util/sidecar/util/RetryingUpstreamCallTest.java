@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import io.smallrye.mutiny.Uni;
+import org.commonjava.util.sidecar.services.SidecarMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.commonjava.util.sidecar.util.RetryingUpstreamCall.METRIC_RETRY_AFTER;
+import static org.commonjava.util.sidecar.util.RetryingUpstreamCall.METRIC_RETRY_COUNT;
+import static org.commonjava.util.sidecar.util.RetryingUpstreamCall.METRIC_RETRY_EXHAUSTED;
+import static org.commonjava.util.sidecar.util.RetryingUpstreamCall.METRIC_RETRY_ON_ERROR;
+import static org.commonjava.util.sidecar.util.TestUtil.response;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RetryingUpstreamCallTest
+{
+    private final SidecarMetrics metrics = new SidecarMetrics();
+
+    private final OtelAdapter otel = new OtelAdapter();
+
+    @Test
+    public void testBackOffBounds()
+    {
+        RetryPolicy policy = new RetryPolicy( 3, 100, 1000 );
+        long delay = 0;
+        for ( int i = 0; i < 50; i++ )
+        {
+            long next = policy.nextDelay( delay );
+            assertTrue( next >= 100 && next <= 1000, "Delay out of bounds: " + next );
+            assertTrue( next <= Math.max( 100, delay * 3 ), "Delay grew too fast: " + delay + " -> " + next );
+            delay = next;
+        }
+    }
+
+    @Test
+    public void testParseRetryAfter()
+    {
+        assertEquals( 2000L, RetryPolicy.parseRetryAfter( "2", 0 ) );
+        assertEquals( 5000L, RetryPolicy.parseRetryAfter( "Thu, 01 Jan 1970 00:00:10 GMT", 5000 ) );
+        assertEquals( 0L, RetryPolicy.parseRetryAfter( "Thu, 01 Jan 1970 00:00:10 GMT", 20000 ) );
+        assertNull( RetryPolicy.parseRetryAfter( "soon", 0 ) );
+        assertNull( RetryPolicy.parseRetryAfter( null, 0 ) );
+    }
+
+    @Test
+    public void testRetryOnStatusThenSucceed()
+    {
+        AtomicInteger tries = new AtomicInteger();
+        UpstreamCall attempt = () -> Uni.createFrom()
+                                        .item( tries.getAndIncrement() < 2 ?
+                                                               response( 503, Map.of( "Retry-After", "1" ),
+                                                                         new byte[0] ) :
+                                                               response( 200 ) );
+        UpstreamResponse resp = retrying( attempt, new RetryPolicy( 3, 1, 5000 ) ).enqueue().await().indefinitely();
+
+        assertEquals( 200, resp.code() );
+        assertEquals( 3, tries.get() );
+        Map<String, Long> values = metrics.snapshot();
+        assertEquals( 2L, values.get( METRIC_RETRY_COUNT ) );
+        assertEquals( 2L, values.get( METRIC_RETRY_AFTER ) );
+    }
+
+    @Test
+    public void testRetryAfterBeyondMaxBackOff()
+    {
+        AtomicInteger tries = new AtomicInteger();
+        UpstreamCall attempt = () -> {
+            tries.incrementAndGet();
+            return Uni.createFrom().item( response( 503, Map.of( "Retry-After", "3600" ), new byte[0] ) );
+        };
+        UpstreamResponse resp = retrying( attempt, new RetryPolicy( 3, 1, 1000 ) ).enqueue().await().indefinitely();
+
+        assertEquals( 503, resp.code() );
+        assertEquals( 1, tries.get() );
+        assertEquals( 1L, metrics.get( METRIC_RETRY_EXHAUSTED ) );
+    }
+
+    @Test
+    public void testErrorsExhaustRetries()
+    {
+        AtomicInteger tries = new AtomicInteger();
+        UpstreamCall attempt = () -> {
+            tries.incrementAndGet();
+            return Uni.createFrom().failure( new IOException( "connection refused" ) );
+        };
+
+        assertThrows( Exception.class, () -> retrying( attempt, new RetryPolicy( 2, 1, 1000 ) ).enqueue()
+                                                                                                .await()
+                                                                                                .indefinitely() );
+        assertEquals( 3, tries.get() );
+        assertEquals( 2L, metrics.get( METRIC_RETRY_ON_ERROR ) );
+        assertEquals( 1L, metrics.get( METRIC_RETRY_EXHAUSTED ) );
+    }
+
+    @Test
+    public void testMaxBackOffBoundsTotalRetryTime()
+    {
+        AtomicInteger tries = new AtomicInteger();
+        UpstreamCall attempt = () -> {
+            tries.incrementAndGet();
+            return Uni.createFrom().failure( new IOException( "connection refused" ) );
+        };
+
+        long start = System.currentTimeMillis();
+        assertThrows( Exception.class, () -> retrying( attempt, new RetryPolicy( 100, 50, 300 ) ).enqueue()
+                                                                                                  .await()
+                                                                                                  .indefinitely() );
+        assertTrue( System.currentTimeMillis() - start < 2000 );
+        assertTrue( tries.get() < 10, "Retried past the budget: " + tries.get() );
+        assertEquals( 1L, metrics.get( METRIC_RETRY_EXHAUSTED ) );
+    }
+
+    private RetryingUpstreamCall retrying( UpstreamCall attempt, RetryPolicy policy )
+    {
+        return new RetryingUpstreamCall( attempt, policy, metrics, otel, "GET /test" );
+    }
+}
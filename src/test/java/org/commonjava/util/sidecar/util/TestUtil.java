@@ -15,7 +15,12 @@
  */
 package org.commonjava.util.sidecar.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
 
 public class TestUtil
 {
@@ -28,4 +33,50 @@ public class TestUtil
         rd.nextBytes( bytes );
         return bytes;
     }
+
+    public static UpstreamResponse response( int code )
+    {
+        return response( code, Map.of(), new byte[0] );
+    }
+
+    /**
+     * @return a response with the given headers, looked up ignoring case, and body
+     */
+    public static UpstreamResponse response( int code, Map<String, String> headers, byte[] body )
+    {
+        Map<String, String> copy = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+        copy.putAll( headers );
+        return new UpstreamResponse()
+        {
+            @Override
+            public int code()
+            {
+                return code;
+            }
+
+            @Override
+            public String message()
+            {
+                return "";
+            }
+
+            @Override
+            public String header( String name )
+            {
+                return copy.get( name );
+            }
+
+            @Override
+            public void forEachHeader( BiConsumer<String, String> consumer )
+            {
+                copy.forEach( consumer );
+            }
+
+            @Override
+            public InputStream bodyStream()
+            {
+                return new ByteArrayInputStream( body );
+            }
+        };
+    }
 }
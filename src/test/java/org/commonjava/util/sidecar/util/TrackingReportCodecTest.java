@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.commonjava.util.sidecar.model.AccessChannel;
+import org.commonjava.util.sidecar.model.StoreEffect;
+import org.commonjava.util.sidecar.model.StoreKey;
+import org.commonjava.util.sidecar.model.StoreType;
+import org.commonjava.util.sidecar.model.TrackedContent;
+import org.commonjava.util.sidecar.model.TrackedContentEntry;
+import org.commonjava.util.sidecar.model.TrackingKey;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TrackingReportCodecTest
+{
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    private static final String SHA1 = "0123456789abcdef0123456789abcdef01234567";
+
+    private static final String SHA256 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private static final String CENTRAL = "https://repo.maven.apache.org/maven2";
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        Set<TrackedContentEntry> uploads = new HashSet<>();
+        uploads.add( entry( "/org/foo/1/foo-1.jar", StoreEffect.UPLOAD, null, MD5, SHA1, SHA256, 100L,
+                            Set.of( 5L, 2L, 9L ) ) );
+        Set<TrackedContentEntry> downloads = new HashSet<>();
+        downloads.add( entry( "/org/bar/2/bar-2.pom", StoreEffect.DOWNLOAD, CENTRAL + "/org/bar/2/bar-2.pom",
+                              MD5.toUpperCase(), "", null, null, null ) );
+        downloads.add( entry( "/org/baz/3/baz-3.jar", StoreEffect.DOWNLOAD, CENTRAL + "/elsewhere/baz-3.jar", MD5,
+                              "not a digest", SHA256, 0L, Set.of() ) );
+        downloads.add( entry( "/org/qux/4/qux-4.jar", StoreEffect.DOWNLOAD, "", MD5, SHA1, SHA256, 7L,
+                              Set.of( 1000L ) ) );
+        TrackedContent content = new TrackedContent( new TrackingKey( "1000" ), uploads, downloads );
+
+        TrackedContent read = roundTrip( content );
+
+        assertEquals( content.getKey(), read.getKey() );
+        assertEquals( describe( content.getUploads() ), describe( read.getUploads() ) );
+        assertEquals( describe( content.getDownloads() ), describe( read.getDownloads() ) );
+    }
+
+    @Test
+    public void testSmallerThanJson() throws IOException
+    {
+        Set<TrackedContentEntry> downloads = new HashSet<>();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            String path = "/org/foo/" + i + "/foo-" + i + ".jar";
+            downloads.add( entry( path, StoreEffect.DOWNLOAD, CENTRAL + path, MD5, SHA1, SHA256, 1000L + i,
+                                  Set.of( 1_700_000_000_000L + i, 1_700_000_001_000L + i ) ) );
+        }
+        TrackedContent content = new TrackedContent( new TrackingKey( "1000" ), new HashSet<>(), downloads );
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        TrackingReportCodec.write( content, binary );
+        byte[] json = new ObjectMapper().writeValueAsBytes( content );
+
+        assertTrue( binary.size() * 4 < json.length, binary.size() + " vs " + json.length );
+        assertEquals( 1000, roundTrip( content ).getDownloads().size() );
+    }
+
+    @Test
+    public void testRejectsOtherContent()
+    {
+        assertThrows( IOException.class, () -> TrackingReportCodec.read(
+                        new ByteArrayInputStream( "{\"key\":null}".getBytes() ) ) );
+    }
+
+    private TrackedContent roundTrip( TrackedContent content ) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TrackingReportCodec.write( content, out );
+        return TrackingReportCodec.read( new ByteArrayInputStream( out.toByteArray() ) );
+    }
+
+    private Map<String, List<Object>> describe( Set<TrackedContentEntry> entries )
+    {
+        return entries.stream().collect( Collectors.toMap( TrackedContentEntry::getPath, this::describe ) );
+    }
+
+    private List<Object> describe( TrackedContentEntry e )
+    {
+        return Arrays.asList( e.getTrackingKey(), e.getStoreKey(), e.getAccessChannel(), e.getOriginUrl(),
+                              e.getEffect(), e.getMd5(), e.getSha1(), e.getSha256(), e.getSize(), e.getIndex(),
+                              e.getTimestamps() == null ? null : new TreeSet<>( e.getTimestamps() ) );
+    }
+
+    private TrackedContentEntry entry( String path, StoreEffect effect, String originUrl, String md5, String sha1,
+                                       String sha256, Long size, Set<Long> timestamps )
+    {
+        TrackedContentEntry entry =
+                        new TrackedContentEntry( new TrackingKey( "1000" ), new StoreKey( "maven", StoreType.remote,
+                                                                                          "central" ),
+                                                 AccessChannel.NATIVE, originUrl, path, effect, size, md5, sha1,
+                                                 sha256 );
+        entry.setIndex( 1000L );
+        entry.setTimestamps( timestamps );
+        return entry;
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2011-2021 Red Hat, Inc. (https://github.com/Commonjava/indy-sidecar)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.sidecar.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class WeakInternerTest
+{
+    @Test
+    public void testEqualValuesShareOneInstance()
+    {
+        WeakInterner<String> interner = new WeakInterner<>();
+        String first = interner.intern( new String( "http://repo/" ) );
+
+        assertSame( first, interner.intern( new String( "http://repo/" ) ) );
+        assertNull( interner.intern( null ) );
+    }
+
+    @Test
+    public void testUnusedValuesAreDropped() throws InterruptedException
+    {
+        WeakInterner<String> interner = new WeakInterner<>();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            interner.intern( "http://repo-" + i + "/" );
+        }
+        String kept = interner.intern( new String( "http://kept/" ) );
+
+        for ( int i = 0; i < 50 && interner.size() > 1; i++ )
+        {
+            System.gc();
+            Thread.sleep( 10 );
+        }
+        assertEquals( 1, interner.size() );
+        assertSame( kept, interner.intern( new String( "http://kept/" ) ) );
+    }
+}